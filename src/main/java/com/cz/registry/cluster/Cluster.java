@@ -1,7 +1,12 @@
 package com.cz.registry.cluster;
 
 import com.cz.registry.cluster.connect.Channel;
+import com.cz.registry.cluster.raft.FileRaftStorage;
+import com.cz.registry.cluster.raft.RaftServer;
+import com.cz.registry.cluster.raft.RegistryStateMachine;
 import com.cz.registry.config.ConfigProperties;
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
 import com.cz.registry.meta.Server;
 import com.cz.registry.service.impl.CzRegistryService;
 import com.cz.registry.util.RegistryUtils;
@@ -11,8 +16,10 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.commons.util.InetUtils;
 import org.springframework.cloud.commons.util.InetUtilsProperties;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * registry cluster
@@ -41,6 +48,24 @@ public class Cluster {
     @Getter
     private List<Server> servers;
 
+    ServerHealth serverHealth;
+
+    /**
+     * raft 节点, 共识方式不是 raft 时为 null
+     */
+    @Getter
+    private RaftServer raft;
+
+    /**
+     * 最近一次确认本地数据已追上主服务器的时间, 本地数据不旧于该时刻的主服务器
+     */
+    private volatile long syncedAt;
+
+    /**
+     * 同步完成监听者
+     */
+    private final List<Runnable> syncListeners = new CopyOnWriteArrayList<>();
+
     /**
      * 初始化服务器列表。
      * 此方法遍历配置属性中的注册服务器列表，并为每个服务器信息创建一个新的服务器对象，
@@ -53,8 +78,11 @@ public class Cluster {
         initSelfServer();
         // 初始化集群
         initServers();
+        // 按配置启用 raft 共识
+        initRaft();
         // 创建一个定时任务线程池，用于定期检查服务器的健康状态
-        new ServerHealth(this, channel).process();
+        serverHealth = new ServerHealth(this, channel);
+        serverHealth.process();
     }
 
     /**
@@ -84,6 +112,33 @@ public class Cluster {
         log.info("init servers:{}" , this.servers);
     }
 
+    /**
+     * 共识方式为 raft 时创建并启动 raft 节点, 主服务器由 raft 领导者决定。
+     * raft 的任期、投票与日志保存在 dataDir 下的 raft 目录中, 未配置 dataDir 时拒绝启动。
+     */
+    private void initRaft() {
+        if (!"raft".equals(configProperties.getConsensus())) {
+            return;
+        }
+        if (!servers.contains(MY_SELF)) {
+            log.warn("czRegistry==> raft servers {} do not contain self {}", servers, MY_SELF);
+        }
+        if (configProperties.getDataDir() == null || configProperties.getDataDir().isBlank()) {
+            throw new RegistryException("consensus raft requires registry.dataDir to persist raft state",
+                    ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+        List<String> peers = servers.stream().map(Server::getUrl).filter(url -> !url.equals(MY_SELF.getUrl())).toList();
+        FileRaftStorage storage = new FileRaftStorage(Path.of(configProperties.getDataDir(), "raft"));
+        raft = new RaftServer(MY_SELF.getUrl(), peers, channel, new RegistryStateMachine(), storage, configProperties);
+        // 领导者变化时立即更新主服务器, 不等待下一次探测
+        raft.setLeaderListener(leader -> {
+            servers.forEach(server -> server.setMaster(server.getUrl().equals(leader)));
+            MY_SELF.setMaster(MY_SELF.getUrl().equals(leader));
+            log.info("czRegistry==> raft leader changed to {}", leader);
+        });
+        raft.start();
+    }
+
     /**
      * 获取当前系统中的主服务器。
      * 该方法通过遍历服务器列表，筛选出状态为激活（isStatus）且标记为主服务器（isMaster）的服务器。
@@ -110,6 +165,60 @@ public class Cluster {
         return MY_SELF; // 返回当前实例代表的服务器
     }
 
+    /**
+     * 当前节点是否为持有有效租约的主服务器。
+     * raft 共识下领导者只在多数节点近期确认其领导地位时持有租约, 租约内不会选出新的领导者,
+     * 因此可以不经网络往返直接以本地数据响应线性一致读; 租约过期后立即不再执行主节点操作,
+     * 无需等待下一次服务器探测。简单共识没有跟随者确认, 以主服务器标记为准。
+     *
+     * @return 持有租约时返回 true
+     */
+    public boolean hasLease() {
+        return raft != null ? raft.hasLease() : MY_SELF.isMaster();
+    }
+
+    /**
+     * 获取本地数据的陈旧程度。
+     * 持有租约的主服务器的数据总是最新的; 其他节点为距最近一次确认追上主服务器的时长。
+     *
+     * @return 陈旧程度，单位毫秒，从未与主服务器同步时返回 Long.MAX_VALUE
+     */
+    public long staleness() {
+        if (hasLease()) {
+            return 0L;
+        }
+        long synced = syncedAt;
+        return synced == 0L ? Long.MAX_VALUE : Math.max(0L, System.currentTimeMillis() - synced);
+    }
+
+    /**
+     * 记录本地数据已追上给定时刻的主服务器，并通知同步完成监听者。
+     *
+     * @param probedAt 探测主服务器版本的时间
+     */
+    void synced(long probedAt) {
+        syncedAt = Math.max(syncedAt, probedAt);
+        syncListeners.forEach(Runnable::run);
+    }
+
+    /**
+     * 添加同步完成监听者。
+     *
+     * @param listener 监听者
+     */
+    public void addSyncListener(Runnable listener) {
+        syncListeners.add(listener);
+    }
+
+    /**
+     * 请求立即与主服务器同步一次，不等待下一个同步周期。
+     */
+    public void requestSync() {
+        if (serverHealth != null) {
+            serverHealth.syncNow();
+        }
+    }
+
 }
 
 
@@ -0,0 +1,110 @@
+package com.cz.registry.cluster;
+
+/**
+ * phi accrual 故障检测
+ * 记录最近若干次成功探测的间隔, 按其均值与标准差估计正态分布, 以距上次成功探测的时长在该分布下的尾部概率
+ * 给出怀疑程度 phi = -log10(P(间隔 >= 当前时长))。phi 为 1 时误判概率约 10%, 为 8 时约 10^-8。
+ * <p>
+ * 与一次失败就判定下线相比, 偶发的丢包或延迟抖动只会让 phi 小幅上升, 只有持续没有成功探测时才会超过阈值
+ *
+ * @author Zjianru
+ */
+public class PhiAccrualDetector {
+
+    /**
+     * 最近的探测间隔, 环形缓冲
+     */
+    private final long[] intervals;
+
+    /**
+     * 计算标准差时使用的下限, 单位毫秒, 避免间隔非常稳定时一次小的延迟就让 phi 陡增
+     */
+    private final long minStdDeviation;
+
+    /**
+     * 可接受的停顿时长, 单位毫秒, 计入间隔均值, 在此时长内错过的探测几乎不提高 phi
+     */
+    private final long acceptablePause;
+
+    private int count;
+
+    private int next;
+
+    private long sum;
+
+    private long squareSum;
+
+    /**
+     * 最近一次成功探测的时间, 从未成功时为 -1
+     */
+    private long lastHeartbeat = -1L;
+
+    /**
+     * @param windowSize      记录的探测间隔数
+     * @param minStdDeviation 标准差下限, 单位毫秒
+     * @param acceptablePause 可接受的停顿时长, 单位毫秒
+     * @param firstInterval   第一次成功探测时估计的间隔, 一般为探测周期, 单位毫秒
+     */
+    public PhiAccrualDetector(int windowSize, long minStdDeviation, long acceptablePause, long firstInterval) {
+        this.intervals = new long[Math.max(windowSize, 2)];
+        this.minStdDeviation = minStdDeviation;
+        this.acceptablePause = acceptablePause;
+        // 以估计的间隔及其上下浮动两个样本起步, 使前几次探测就有合理的均值与标准差
+        add(firstInterval - firstInterval / 4);
+        add(firstInterval + firstInterval / 4);
+    }
+
+    /**
+     * 记录一次成功探测
+     *
+     * @param now 当前时间, 单位毫秒
+     */
+    public synchronized void heartbeat(long now) {
+        if (lastHeartbeat >= 0 && now > lastHeartbeat) {
+            add(now - lastHeartbeat);
+        }
+        lastHeartbeat = now;
+    }
+
+    /**
+     * 当前的怀疑程度
+     *
+     * @param now 当前时间, 单位毫秒
+     * @return phi, 从未成功探测时为正无穷
+     */
+    public synchronized double phi(long now) {
+        if (lastHeartbeat < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double mean = (double) sum / count;
+        double variance = Math.max((double) squareSum / count - mean * mean, 0d);
+        double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviation);
+        return phi(now - lastHeartbeat, mean + acceptablePause, stdDeviation);
+    }
+
+    /**
+     * 正态分布尾部概率的 logistic 近似, 误差在 0.1% 以内, 且在远离均值时不会下溢为 0
+     */
+    static double phi(long elapsed, double mean, double stdDeviation) {
+        double y = (elapsed - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long removed = intervals[next];
+            sum -= removed;
+            squareSum -= removed * removed;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        squareSum += interval * interval;
+    }
+}
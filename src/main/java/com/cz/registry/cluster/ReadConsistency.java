@@ -0,0 +1,106 @@
+package com.cz.registry.cluster;
+
+import com.cz.registry.config.ConfigProperties;
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.service.impl.CzRegistryService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 读取一致性控制
+ * 客户端可以要求读取结果不低于某个版本, 或不旧于某个时长; 从节点满足要求时直接返回本地数据,
+ * 不满足时立即向主节点发起一次同步并短暂等待, 等待超时后请求失败, 由客户端改为读取主节点。
+ * 要求线性一致读时只有持有租约的主节点可以响应
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class ReadConsistency {
+
+    private final Cluster cluster;
+
+    private final ConfigProperties configProperties;
+
+    /**
+     * 等待同步的监视器, 版本变化或同步完成时唤醒
+     */
+    private final Object monitor = new Object();
+
+    /**
+     * 正在等待的请求数, 没有等待者时版本变化不进入监视器, 避免影响写操作
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public ReadConsistency(Cluster cluster, ConfigProperties configProperties) {
+        this.cluster = cluster;
+        this.configProperties = configProperties;
+        CzRegistryService.addListener((service, version) -> wakeUp());
+        cluster.addSyncListener(this::wakeUp);
+    }
+
+    /**
+     * 等待本地数据满足读取一致性要求
+     *
+     * @param minVersion   要求的注册中心全局版本号下限, 可取之前读到的任一服务版本号, 为空表示不要求
+     * @param maxStaleness 允许的最大陈旧时长, 单位毫秒, 为空表示不要求
+     * @param linearizable 是否要求线性一致读
+     * @throws RegistryException 等待超时仍不满足要求, 或要求线性一致读而当前节点不是持有租约的主节点
+     */
+    public void await(Long minVersion, Long maxStaleness, boolean linearizable) {
+        if (linearizable && !cluster.hasLease()) {
+            throw new RegistryException("linearizable read requires master lease ! current master is " + cluster.getMaster(),
+                    ExErrorCodes.STALE_READ);
+        }
+        if (minVersion == null && maxStaleness == null) {
+            return;
+        }
+        if (satisfied(minVersion, maxStaleness)) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + configProperties.getReadWaitTimeout();
+        waiting.incrementAndGet();
+        try {
+            awaitUntil(minVersion, maxStaleness, deadline);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private void awaitUntil(Long minVersion, Long maxStaleness, long deadline) {
+        synchronized (monitor) {
+            while (!satisfied(minVersion, maxStaleness)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    log.debug("czRegistry==> read consistency not satisfied, minVersion {} maxStaleness {}, version {} staleness {}",
+                            minVersion, maxStaleness, CzRegistryService.getVersion(), cluster.staleness());
+                    throw new RegistryException("read consistency not satisfied ! version " + CzRegistryService.getVersion()
+                            + " staleness " + cluster.staleness() + "ms ==> current master is " + cluster.getMaster(),
+                            ExErrorCodes.STALE_READ);
+                }
+                cluster.requestSync();
+                try {
+                    monitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RegistryException(e, ExErrorCodes.STALE_READ);
+                }
+            }
+        }
+    }
+
+    private boolean satisfied(Long minVersion, Long maxStaleness) {
+        return (minVersion == null || CzRegistryService.getVersion() >= minVersion)
+                && (maxStaleness == null || cluster.staleness() <= maxStaleness);
+    }
+
+    private void wakeUp() {
+        if (waiting.get() == 0) {
+            return;
+        }
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+}
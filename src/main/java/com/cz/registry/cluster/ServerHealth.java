@@ -1,14 +1,18 @@
 package com.cz.registry.cluster;
 
 import com.cz.registry.cluster.connect.Channel;
+import com.cz.registry.meta.ChangeSet;
 import com.cz.registry.meta.Server;
-import com.cz.registry.meta.Snapshot;
 import com.cz.registry.service.impl.CzRegistryService;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * check server health
@@ -30,6 +34,18 @@ public class ServerHealth {
 
     Long timeOut = 5 * 1000L;
 
+    /**
+     * 各服务器的故障检测
+     * key->server, 按 url 区分
+     * value->该服务器成功探测的间隔历史
+     */
+    final Map<Server, PhiAccrualDetector> detectors = new ConcurrentHashMap<>();
+
+    /**
+     * 是否已有待执行的即时同步, 用于合并并发的同步请求
+     */
+    final AtomicBoolean syncRequested = new AtomicBoolean(false);
+
     /**
      * 启动一个定时任务，用于周期性地处理服务器状态更新、主服务器选举和快照同步。
      * 初始延迟为0，之后每隔指定的timeOut时间执行一次任务。
@@ -39,15 +55,20 @@ public class ServerHealth {
         // 创建一个定时任务，该任务会定期执行更新服务器状态、选举主服务器和同步快照的操作
         executor.scheduleAtFixedRate(() -> {
             try {
+                long probedAt = System.currentTimeMillis();
                 // 1. 更新服务状态
                 log.debug("----update servers status----");
                 updateServers();
                 // 2. 选主
                 log.debug("----elect master----");
                 electMaster();
+                Server master = cluster.getMaster();
+                long probedVersion = master == null ? 0L : master.getVersion();
                 // 3. 同步快照
                 log.debug("----sync snapshot----");
-                syncSnapshot();
+                if (syncSnapshot()) {
+                    markSynced(probedAt, master, probedVersion);
+                }
             } catch (Exception e) {
                 // 捕获并打印任务执行过程中发生的异常
                 e.printStackTrace();
@@ -55,60 +76,167 @@ public class ServerHealth {
         }, 0, timeOut, TimeUnit.MILLISECONDS); // 指定任务的初始延迟和执行周期
     }
 
+    /**
+     * 立即与主服务器同步一次, 不等待下一个周期。
+     * 只探测主服务器的最新版本并同步, 在定时任务线程中执行; 已有待执行的同步时直接返回。
+     */
+    public void syncNow() {
+        if (!syncRequested.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            syncRequested.set(false);
+            try {
+                Server master = cluster.getMaster();
+                if (master == null || cluster.self().isMaster()) {
+                    return;
+                }
+                long probedAt = System.currentTimeMillis();
+                probe(master).join();
+                long probedVersion = master.getVersion();
+                if (syncSnapshot()) {
+                    markSynced(probedAt, master, probedVersion);
+                }
+            } catch (Exception e) {
+                log.debug(" ===>>> sync now failed", e);
+            }
+        });
+    }
+
+    /**
+     * 本地版本已追上探测时主服务器的版本时, 记录本地数据不旧于探测时刻的主服务器。
+     * 同步期间主服务器发生变化, 或本地版本仍未达到探测到的版本时, 保留此前的同步时刻。
+     *
+     * @param probedAt      探测主服务器版本的时间
+     * @param master        探测时的主服务器
+     * @param probedVersion 探测时主服务器的版本
+     */
+    private void markSynced(long probedAt, Server master, long probedVersion) {
+        if (master != null && master == cluster.getMaster() && cluster.self().getVersion() >= probedVersion) {
+            cluster.synced(probedAt);
+        }
+    }
+
     /**
      * 选举主服务器
      */
     private void electMaster() {
+        // raft 共识下主服务器由 raft 领导者决定
+        if (cluster.getRaft() != null) {
+            return;
+        }
         new Election().electMaster(cluster.getServers());
     }
 
     /**
      * 探测并刷新注册中心服务器的状态信息。
-     * 该方法会并行遍历服务器列表，对除自身外的每台服务器进行健康检查，更新其状态、是否为主服务器以及版本信息。
+     * 该方法会同时向除自身外的每台服务器异步发出健康检查，全部完成后返回，更新其状态、是否为主服务器以及版本信息。
+     * 探测请求不占用公共线程池，慢节点不会阻塞其他节点的探测。
      */
     private void updateServers() {
         log.debug("start update servers");
-        cluster.getServers().parallelStream() // 使用并行流遍历服务器列表以提高效率
+        CompletableFuture.allOf(cluster.getServers().stream()
                 // 过滤掉当前服务器自身
-                .filter(server -> !server.equals(cluster.self())).forEach(server -> {
-                    try {
-                        // 尝试从服务器的URL获取服务器信息
-                        Server serverInfo = channel.get(server.getUrl() + "/info", Server.class);
-                        log.debug(" ===>>> health check success for {}", serverInfo);
-                        if (serverInfo != null) {
-                            // 更新服务器状态为健康，设置为主服务器或从服务器状态，并更新版本信息
-                            server.setStatus(true);
-                            server.setMaster(serverInfo.isMaster());
-                            server.setVersion(serverInfo.getVersion());
+                .filter(server -> !server.equals(cluster.self()))
+                .map(this::probe)
+                .toArray(CompletableFuture[]::new)).join();
+    }
+
+    /**
+     * 异步探测单台服务器, 更新其状态、是否为主服务器以及版本信息。
+     * 单次探测失败不直接判定下线, 只有故障检测的怀疑程度超过阈值时才标记为下线, 避免偶发的丢包或延迟引起重新选主。
+     *
+     * @param server 待探测的服务器
+     * @return 探测完成并更新服务器信息后完成, 探测失败时同样正常完成
+     */
+    private CompletableFuture<Void> probe(Server server) {
+        // 尝试从服务器的URL获取服务器信息
+        return channel.getAsync(server.getUrl() + "/info", Server.class, cluster.configProperties.getProbeTimeout())
+                .handle((serverInfo, ex) -> {
+                    long now = System.currentTimeMillis();
+                    PhiAccrualDetector detector = detectors.computeIfAbsent(server, s -> new PhiAccrualDetector(
+                            cluster.configProperties.getPhiWindowSize(), cluster.configProperties.getPhiMinStdDeviation(),
+                            cluster.configProperties.getPhiAcceptablePause(), timeOut));
+                    if (ex != null) {
+                        double phi = detector.phi(now);
+                        if (server.isStatus() && phi < cluster.configProperties.getPhiThreshold()) {
+                            log.debug(" ===>>> health check failed for {}, phi {} below threshold, keep status", server, phi);
+                            return null;
                         }
-                    } catch (Exception ex) {
-                        // 如果健康检查失败，则将服务器状态标记为不健康，并设置为非主服务器
-                        log.debug(" ===>>> health check failed for {}", server);
+                        // 怀疑程度超过阈值，则将服务器状态标记为不健康，并设置为非主服务器
+                        log.debug(" ===>>> health check failed for {}, phi {}", server, phi);
                         server.setStatus(false);
-                        server.setMaster(false);
+                        if (cluster.getRaft() == null) {
+                            server.setMaster(false);
+                        }
+                        return null;
+                    }
+                    log.debug(" ===>>> health check success for {}", serverInfo);
+                    if (serverInfo != null) {
+                        detector.heartbeat(now);
+                        // 更新服务器状态为健康，设置为主服务器或从服务器状态，并更新版本信息
+                        server.setStatus(true);
+                        // raft 共识下主服务器只由 raft 领导者决定
+                        if (cluster.getRaft() == null) {
+                            server.setMaster(serverInfo.isMaster());
+                        }
+                        server.setVersion(serverInfo.getVersion());
                     }
+                    return null;
                 });
     }
 
     /**
      * 同步快照功能。
-     * 该方法用于检查当前服务器是否为主服务器，如果不是，并且其版本号小于主服务器的版本号，则从主服务器获取快照并进行对准。
-     * 这个过程通过向主服务器请求快照，并使用获取的快照重置本地的状态来完成。
+     * 该方法用于检查当前服务器是否为主服务器，如果不是，并且其版本号小于主服务器的版本号，则从主服务器拉取增量变更并应用。
+     * 只有当本地版本已超出主服务器变更日志的范围，或本地版本高于主服务器（与主服务器产生分歧）时，才改为全量快照同步。
+     *
+     * @return 未在追上主服务器之前中止时返回 true; 主服务器尚未发布到探测到的版本等原因中止时返回 false
      */
-    private void syncSnapshot() {
+    private boolean syncSnapshot() {
         Server self = cluster.self();
         Server master = cluster.getMaster();
-        // 检查当前服务器是否为主服务器，并对比版本号
-        if (!self.isMaster() && self.getVersion() < master.getVersion()) {
-            // 记录日志，说明开始进行同步
-            log.debug("current server is not master,version is {} ,master version is {}", self.getVersion(), master.getVersion());
-            log.debug("start sync from master {}", master);
-            // 从主服务器获取快照
-            Snapshot masterSnapshot = channel.get(master.getUrl() + "/snapshot", Snapshot.class);
-            // 记录获取到的快照，并开始进行状态重置
-            log.debug("get master snapshot:{} start RESET ----", masterSnapshot);
-            Long resetVersion = CzRegistryService.reset(masterSnapshot);
-            log.debug("RESET end,resetVersion:{}", resetVersion);
+        // raft 共识下实例变更通过 raft 日志复制
+        if (self.isMaster() || master == null || cluster.getRaft() != null) {
+            return true;
+        }
+        // 本地版本高于主服务器，说明与主服务器产生分歧，以主服务器为准全量同步
+        if (self.getVersion() > master.getVersion()) {
+            log.debug("current server version {} is ahead of master version {}", self.getVersion(), master.getVersion());
+            return syncFullSnapshot(master);
+        }
+        // 逐批拉取增量变更，直到追上主服务器
+        long version = self.getVersion();
+        while (version < master.getVersion()) {
+            log.debug("current server is not master,version is {} ,master version is {}", version, master.getVersion());
+            ChangeSet changes = channel.get(master.getUrl() + "/changes?since=" + version, ChangeSet.class);
+            if (changes == null || changes.isFull()) {
+                // 本地版本已超出主服务器变更日志范围，改为全量快照同步
+                return syncFullSnapshot(master);
+            }
+            if (changes.getChanges().isEmpty()) {
+                // 主服务器已分配的版本尚未连续发布, 本轮未追上, 下一轮再同步
+                log.debug("master {} has not published beyond version {} yet", master, version);
+                return false;
+            }
+            version = CzRegistryService.applyChanges(changes);
+            log.debug("apply {} changes from master, current version:{}", changes.getChanges().size(), version);
         }
+        return true;
+    }
+
+    /**
+     * 从主服务器获取全量快照，并使用快照重置本地的状态。
+     * 快照以二进制流的方式传输, 边读取边应用, 不在内存中构建完整的快照对象。
+     *
+     * @param master 主服务器
+     * @return 重置成功时返回 true
+     */
+    private boolean syncFullSnapshot(Server master) {
+        log.debug("start sync from master {}, start RESET ----", master);
+        Long resetVersion = channel.stream(master.getUrl() + "/snapshot/stream", CzRegistryService::reset,
+                cluster.configProperties.getSnapshotTimeout());
+        log.debug("RESET end,resetVersion:{}", resetVersion);
+        return resetVersion != null;
     }
 }
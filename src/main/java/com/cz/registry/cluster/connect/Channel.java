@@ -1,5 +1,9 @@
 package com.cz.registry.cluster.connect;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 通信能力提供
@@ -8,6 +12,11 @@ package com.cz.registry.cluster.connect;
  */
 public interface Channel {
 
+    /**
+     * 标记请求由从节点转发而来, 收到该请求的节点不再二次转发
+     */
+    String FORWARDED_HEADER = "X-Registry-Forwarded";
+
     /**
      * post 方式通信
      *
@@ -18,6 +27,26 @@ public interface Channel {
      */
     <T> T post(String url, String param, Class<T> clazz);
 
+    /**
+     * post 方式异步通信, 不阻塞调用线程
+     *
+     * @param url   url
+     * @param body  请求对象, 由通信实现决定编码方式
+     * @param clazz clazz
+     * @return 响应解析完成后完成, 通信失败时以 RegistryException 异常完成
+     */
+    <T> CompletableFuture<T> postAsync(String url, Object body, Class<T> clazz);
+
+    /**
+     * 将写请求转发给主节点, 请求带有 {@link #FORWARDED_HEADER}; 主节点返回错误时抛出异常
+     *
+     * @param url   url
+     * @param param param
+     * @param type  response type
+     * @return response
+     */
+    <T> T forward(String url, String param, Type type);
+
     /**
      * get 方式通信
      *
@@ -27,4 +56,57 @@ public interface Channel {
      */
     <T> T get(String url, Class<T> clazz);
 
+    /**
+     * get 方式异步通信, 不阻塞调用线程
+     *
+     * @param url   url
+     * @param clazz clazz
+     * @return 响应解析完成后完成, 通信失败时以 RegistryException 异常完成
+     */
+    <T> CompletableFuture<T> getAsync(String url, Class<T> clazz);
+
+    /**
+     * get 方式异步通信, 整个请求必须在截止时间内完成; 响应较慢时可发出对冲请求
+     *
+     * @param url     url
+     * @param clazz   clazz
+     * @param timeout 截止时间, 单位毫秒
+     * @return 响应解析完成后完成, 通信失败或超过截止时间时以 RegistryException 异常完成
+     */
+    <T> CompletableFuture<T> getAsync(String url, Class<T> clazz, long timeout);
+
+    /**
+     * get 方式通信, 以流的方式读取响应体, 不把整个响应读入内存
+     *
+     * @param url    url
+     * @param reader 响应体读取
+     * @return reader 的返回值
+     */
+    <T> T stream(String url, StreamReader<T> reader);
+
+    /**
+     * get 方式通信, 以流的方式读取响应体, 包括读取响应体在内的整个请求必须在截止时间内完成
+     *
+     * @param url     url
+     * @param reader  响应体读取
+     * @param timeout 截止时间, 单位毫秒
+     * @return reader 的返回值
+     */
+    <T> T stream(String url, StreamReader<T> reader, long timeout);
+
+    /**
+     * 响应体流读取
+     */
+    @FunctionalInterface
+    interface StreamReader<T> {
+        /**
+         * 读取响应体
+         *
+         * @param in 响应体输入流, 由调用方关闭
+         * @return 读取结果
+         * @throws IOException 读取失败
+         */
+        T read(InputStream in) throws IOException;
+    }
+
 }
@@ -0,0 +1,110 @@
+package com.cz.registry.cluster.connect;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 集群二进制通信的消息帧
+ * 同一连接上可以同时有多个请求在途, 响应按请求 id 对应, 不要求按请求顺序返回
+ * <pre>
+ * frame    := length:int32 id:int64 kind:int8 [path] body
+ * path     := length:int32 bytes, 仅请求帧携带, UTF-8 编码的路径与查询参数, 如 /changes?since=10
+ * body     := 剩余字节; 请求与成功响应为 JSONB 编码的对象, 失败响应为 UTF-8 编码的错误信息
+ * </pre>
+ *
+ * @param id   请求 id, 响应帧与对应请求帧相同
+ * @param kind 帧类型
+ * @param path 请求路径, 响应帧为 null
+ * @param body 消息体, 没有消息体时为空数组
+ * @author Zjianru
+ */
+public record Frame(long id, byte kind, String path, byte[] body) {
+
+    /**
+     * 请求帧
+     */
+    public static final byte REQUEST = 0;
+
+    /**
+     * 成功响应帧
+     */
+    public static final byte OK = 1;
+
+    /**
+     * 失败响应帧
+     */
+    public static final byte ERROR = 2;
+
+    /**
+     * 单个帧的长度上限, 防止错误的长度字段导致分配过大的内存
+     */
+    public static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    public static final byte[] EMPTY = new byte[0];
+
+    public static Frame request(long id, String path, byte[] body) {
+        return new Frame(id, REQUEST, path, body);
+    }
+
+    public static Frame ok(long id, byte[] body) {
+        return new Frame(id, OK, null, body);
+    }
+
+    public static Frame error(long id, String message) {
+        return new Frame(id, ERROR, null, String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 写出一个帧, 由调用方保证同一输出流上的写出互斥并负责 flush
+     *
+     * @param out 输出流
+     * @throws IOException 写出失败
+     */
+    public void write(DataOutputStream out) throws IOException {
+        byte[] pathBytes = kind == REQUEST ? path.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        int length = Long.BYTES + 1 + (kind == REQUEST ? Integer.BYTES + pathBytes.length : 0) + body.length;
+        out.writeInt(length);
+        out.writeLong(id);
+        out.writeByte(kind);
+        if (kind == REQUEST) {
+            out.writeInt(pathBytes.length);
+            out.write(pathBytes);
+        }
+        out.write(body);
+    }
+
+    /**
+     * 读取一个帧
+     *
+     * @param in 输入流
+     * @return 帧
+     * @throws IOException 读取失败, 连接关闭或帧格式错误
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < Long.BYTES + 1 || length > MAX_LENGTH) {
+            throw new IOException("illegal frame length " + length);
+        }
+        long id = in.readLong();
+        byte kind = in.readByte();
+        int remaining = length - Long.BYTES - 1;
+        String path = null;
+        if (kind == REQUEST) {
+            int pathLength = in.readInt();
+            if (pathLength < 0 || pathLength > remaining - Integer.BYTES) {
+                throw new IOException("illegal frame path length " + pathLength);
+            }
+            byte[] pathBytes = new byte[pathLength];
+            in.readFully(pathBytes);
+            path = new String(pathBytes, StandardCharsets.UTF_8);
+            remaining -= Integer.BYTES + pathLength;
+        } else if (kind != OK && kind != ERROR) {
+            throw new IOException("illegal frame kind " + kind);
+        }
+        byte[] body = remaining == 0 ? EMPTY : new byte[remaining];
+        in.readFully(body);
+        return new Frame(id, kind, path, body);
+    }
+}
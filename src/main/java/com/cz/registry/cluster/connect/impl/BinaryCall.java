@@ -0,0 +1,384 @@
+package com.cz.registry.cluster.connect.impl;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONB;
+import com.cz.registry.cluster.connect.Channel;
+import com.cz.registry.cluster.connect.Frame;
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于长连接的二进制通信
+ * 每个对端节点一条 tcp 长连接, 消息按 {@link Frame} 分帧, 对象以 JSONB 编码, 同一连接上的请求并发在途, 按 id 对应响应。
+ * 对端的二进制端口为其 http 端口加上固定偏移。
+ * <p>
+ * 写请求转发与全量快照仍然走 http: 前者需要保留客户端请求的原始语义, 后者是大块数据,
+ * 放在共享的长连接上会阻塞同一连接上的心跳与复制消息
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class BinaryCall implements Channel {
+
+    /**
+     * 转发写请求与下载快照使用的 http 通信
+     */
+    private final HttpCall http;
+
+    /**
+     * 默认的连接与请求超时时间, 单位毫秒
+     */
+    private final long timeout;
+
+    /**
+     * 二进制端口相对 http 端口的偏移
+     */
+    private final int portOffset;
+
+    /**
+     * 与对端的连接
+     * key->对端二进制地址 host:port
+     * value->连接, 建立失败或断开后移除, 下次请求时重新建立
+     */
+    private final Map<String, CompletableFuture<Connection>> connections = new ConcurrentHashMap<>();
+
+    /**
+     * 连续超时达到该次数时认为连接已失效, 关闭后下次请求重新建立
+     */
+    static final int MAX_CONSECUTIVE_TIMEOUTS = 3;
+
+    /**
+     * 每个连接等待写出的帧数上限, 超过时请求直接失败, 避免对端停止读取时无限堆积
+     */
+    static final int MAX_QUEUED_FRAMES = 1024;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * 建立连接的线程, 避免在调用线程中等待连接超时
+     */
+    private final ExecutorService connector = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "czRegistry-binary-connector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param http       http 通信
+     * @param timeout    默认的连接与请求超时时间, 单位毫秒
+     * @param portOffset 二进制端口相对 http 端口的偏移
+     */
+    public BinaryCall(HttpCall http, long timeout, int portOffset) {
+        this.http = http;
+        this.timeout = timeout;
+        this.portOffset = portOffset;
+    }
+
+    @Override
+    public <T> T post(String url, String param, Class<T> clazz) {
+        return join(send(url, JSONB.toBytes(JSON.parse(param)), clazz, timeout));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> postAsync(String url, Object body, Class<T> clazz) {
+        return send(url, JSONB.toBytes(body), clazz, timeout);
+    }
+
+    @Override
+    public <T> T forward(String url, String param, Type type) {
+        return http.forward(url, param, type);
+    }
+
+    @Override
+    public <T> T get(String url, Class<T> clazz) {
+        return join(getAsync(url, clazz));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> getAsync(String url, Class<T> clazz) {
+        return getAsync(url, clazz, timeout);
+    }
+
+    /**
+     * get 方式异步通信
+     * 请求在长连接上复用, 慢响应不会阻塞同一连接上的其他请求, 因此不发出对冲请求
+     *
+     * @param url     url
+     * @param timeout 截止时间, 单位毫秒
+     * @return 响应解析完成后完成
+     */
+    @Override
+    public <T> CompletableFuture<T> getAsync(String url, Class<T> clazz, long timeout) {
+        return send(url, Frame.EMPTY, clazz, timeout);
+    }
+
+    @Override
+    public <T> T stream(String url, StreamReader<T> reader) {
+        return http.stream(url, reader);
+    }
+
+    @Override
+    public <T> T stream(String url, StreamReader<T> reader, long timeout) {
+        return http.stream(url, reader, timeout);
+    }
+
+    /**
+     * 由 http 地址得到对端的二进制地址
+     *
+     * @param url        http 地址
+     * @param portOffset 二进制端口相对 http 端口的偏移
+     * @return 二进制地址
+     */
+    public static InetSocketAddress address(String url, int portOffset) {
+        URI uri = URI.create(url);
+        return InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort() + portOffset);
+    }
+
+    private <T> CompletableFuture<T> send(String url, byte[] body, Class<T> clazz, long timeout) {
+        log.debug("czRegistry==> [method]binarySend ==> url {}", url);
+        URI uri = URI.create(url);
+        String path = uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        InetSocketAddress address = address(url, portOffset);
+        String key = address.getHostString() + ":" + address.getPort();
+        long id = ids.incrementAndGet();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<Connection> connecting = connection(key, address);
+        connecting.whenComplete((connection, e) -> {
+            if (e != null) {
+                result.completeExceptionally(new RegistryException(unwrap(e), ExErrorCodes.SOCKET_TIME_OUT));
+                return;
+            }
+            connection.send(Frame.request(id, path, body), clazz, result);
+        });
+        // 超时后不再等待响应, 迟到的响应按 id 找不到请求时直接丢弃; 连续超时的连接视为已失效并关闭
+        // 先登记超时再完成请求, 调用方随后发出的请求不会再拿到待关闭的连接
+        CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS, Runnable::run).execute(() -> {
+            if (!result.isDone() && connecting.isDone() && !connecting.isCompletedExceptionally()) {
+                connecting.join().timedOut(id);
+            }
+            result.completeExceptionally(new RegistryException(url + " not answered in " + timeout + "ms",
+                    ExErrorCodes.SOCKET_TIME_OUT));
+        });
+        return result;
+    }
+
+    private CompletableFuture<Connection> connection(String key, InetSocketAddress address) {
+        CompletableFuture<Connection> existing = connections.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        CompletableFuture<Connection> connecting = new CompletableFuture<>();
+        existing = connections.putIfAbsent(key, connecting);
+        if (existing != null) {
+            return existing;
+        }
+        connector.execute(() -> {
+            try {
+                connecting.complete(new Connection(key, new InetSocketAddress(address.getHostString(), address.getPort())));
+            } catch (IOException e) {
+                log.debug("czRegistry==> binary connect to {} failed", key);
+                connections.remove(key, connecting);
+                connecting.completeExceptionally(e);
+            }
+        });
+        return connecting;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RegistryException registryException) {
+                throw registryException;
+            }
+            throw new RegistryException(e.getCause(), ExErrorCodes.SOCKET_TIME_OUT);
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        Throwable cause = e;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * 与一个对端的长连接
+     * 调用线程只把帧放入写队列, 由独立的写线程按序写出, 队列取空时才 flush; 对端停止读取时只阻塞写线程,
+     * 不阻塞调用方 (如 raft 的定时线程)。响应由独立的读线程接收
+     */
+    private final class Connection {
+
+        private final String key;
+
+        private final Socket socket;
+
+        private final DataOutputStream out;
+
+        /**
+         * 等待写出的帧
+         */
+        private final BlockingQueue<Frame> outgoing = new LinkedBlockingQueue<>(MAX_QUEUED_FRAMES);
+
+        private final Thread writer;
+
+        /**
+         * 在途请求
+         * key->请求 id
+         * value->等待响应的请求
+         */
+        private final Map<Long, Pending<?>> pending = new ConcurrentHashMap<>();
+
+        /**
+         * 连续超时的请求数, 收到任意响应时清零
+         */
+        private final AtomicInteger timeouts = new AtomicInteger();
+
+        private volatile boolean closed;
+
+        Connection(String key, InetSocketAddress address) throws IOException {
+            this.key = key;
+            this.socket = new Socket();
+            try {
+                socket.connect(address, (int) timeout);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.writer = new Thread(this::write, "czRegistry-binary-writer-" + key);
+            writer.setDaemon(true);
+            writer.start();
+            Thread reader = new Thread(this::read, "czRegistry-binary-" + key);
+            reader.setDaemon(true);
+            reader.start();
+            log.info("czRegistry==> binary connection to {} established", key);
+        }
+
+        <T> void send(Frame frame, Class<T> clazz, CompletableFuture<T> result) {
+            pending.put(frame.id(), new Pending<>(clazz, result));
+            if (closed) {
+                // 连接已在登记请求前关闭, 不会再有人完成该请求
+                pending.remove(frame.id());
+                result.completeExceptionally(new RegistryException("binary connection to " + key + " closed",
+                        ExErrorCodes.SOCKET_TIME_OUT));
+                return;
+            }
+            if (!outgoing.offer(frame) && pending.remove(frame.id()) != null) {
+                result.completeExceptionally(new RegistryException("binary connection to " + key + " has "
+                        + MAX_QUEUED_FRAMES + " frames queued", ExErrorCodes.SOCKET_TIME_OUT));
+            }
+        }
+
+        /**
+         * 写线程, 按入队顺序写出, 队列中暂时没有更多的帧时 flush, 使并发的请求合并为一次写出
+         */
+        private void write() {
+            try {
+                while (!closed) {
+                    Frame frame = outgoing.take();
+                    frame.write(out);
+                    if (outgoing.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // 连接已关闭
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        /**
+         * 请求超时, 不再等待其响应; 连续超时达到上限时对端可能已停止响应或连接已半开, 关闭连接
+         *
+         * @param id 请求 id
+         */
+        void timedOut(long id) {
+            if (pending.remove(id) != null && timeouts.incrementAndGet() >= MAX_CONSECUTIVE_TIMEOUTS) {
+                close(new IOException(MAX_CONSECUTIVE_TIMEOUTS + " consecutive requests timed out"));
+            }
+        }
+
+        private void read() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                while (true) {
+                    Frame frame = Frame.read(in);
+                    timeouts.set(0);
+                    Pending<?> request = pending.remove(frame.id());
+                    if (request != null) {
+                        request.complete(frame);
+                    }
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void close(IOException cause) {
+            closed = true;
+            CompletableFuture<Connection> current = connections.get(key);
+            if (current != null && current.getNow(null) == this && connections.remove(key, current)) {
+                log.info("czRegistry==> binary connection to {} closed: {}", key, cause.getMessage());
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // 连接已不可用
+            }
+            writer.interrupt();
+            outgoing.clear();
+            pending.values().forEach(request -> request.result.completeExceptionally(
+                    new RegistryException(cause, ExErrorCodes.SOCKET_TIME_OUT)));
+            pending.clear();
+        }
+    }
+
+    /**
+     * 等待响应的请求
+     *
+     * @param clazz  响应类型
+     * @param result 收到响应后完成
+     */
+    private record Pending<T>(Class<T> clazz, CompletableFuture<T> result) {
+
+        void complete(Frame frame) {
+            if (frame.kind() == Frame.ERROR) {
+                result.completeExceptionally(new RegistryException(new String(frame.body(), StandardCharsets.UTF_8),
+                        ExErrorCodes.REGISTER_CENTER_ERROR));
+                return;
+            }
+            try {
+                result.complete(frame.body().length == 0 ? null : JSONB.parseObject(frame.body(), clazz));
+            } catch (Exception e) {
+                result.completeExceptionally(new RegistryException(e, ExErrorCodes.SOCKET_TIME_OUT));
+            }
+        }
+    }
+}
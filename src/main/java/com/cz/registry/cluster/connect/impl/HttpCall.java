@@ -8,7 +8,13 @@ import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * code desc
@@ -22,12 +28,26 @@ public class HttpCall implements Channel {
 
     MediaType JSON_TYPE = MediaType.get("application/json; charset=utf-8");
 
-    public HttpCall(int timeout) {
+    /**
+     * 带截止时间的 get 请求超过该时长未响应时发出一次对冲请求, 单位毫秒, 不大于 0 时不对冲
+     */
+    private final long hedgeDelay;
+
+    /**
+     * @param timeout    默认的连接、读、写超时时间, 单位毫秒
+     * @param hedgeDelay 对冲请求的延迟, 单位毫秒, 不大于 0 时不对冲
+     */
+    public HttpCall(long timeout, long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+        // 异步请求由调度器执行, 默认每个主机最多 5 个并发请求, raft 消息与探测共用时容易排队
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(32);
         client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
                 .connectionPool(new ConnectionPool(16, 60, TimeUnit.SECONDS))
-                .readTimeout(timeout, TimeUnit.MICROSECONDS)
-                .writeTimeout(timeout, TimeUnit.MICROSECONDS)
-                .connectTimeout(timeout, TimeUnit.MICROSECONDS)
+                .readTimeout(timeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(timeout, TimeUnit.MILLISECONDS)
+                .connectTimeout(timeout, TimeUnit.MILLISECONDS)
                 .retryOnConnectionFailure(true)
                 .build();
     }
@@ -58,6 +78,55 @@ public class HttpCall implements Channel {
         }
     }
 
+    /**
+     * post 方式异步通信
+     *
+     * @param url  url
+     * @param body 请求对象, 以 json 编码
+     * @return 响应解析完成后完成
+     */
+    @Override
+    public <T> CompletableFuture<T> postAsync(String url, Object body, Class<T> clazz) {
+        String param = JSON.toJSONString(body);
+        log.debug("czRegistry==> [method]postAsync ==> url=={},param {}", url, param);
+        Request call = new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(param, JSON_TYPE))
+                .build();
+        return enqueue(client.newCall(call), clazz);
+    }
+
+    /**
+     * 将写请求转发给主节点, 复用连接池中与主节点的长连接
+     *
+     * @param url   url
+     * @param param param
+     * @param type  response type
+     * @return response
+     */
+    @Override
+    public <T> T forward(String url, String param, Type type) {
+        log.debug("czRegistry==> [method]forward ==> url=={},param {}", url, param);
+        Request call = new Request.Builder()
+                .url(url)
+                .header(FORWARDED_HEADER, "true")
+                .post(RequestBody.create(param, JSON_TYPE))
+                .build();
+        try (Response response = client.newCall(call).execute()) {
+            String body = response.body().string();
+            if (!response.isSuccessful()) {
+                throw new RegistryException("forward " + url + " failed with status " + response.code() + " ==> " + body,
+                        ExErrorCodes.REGISTER_CENTER_ERROR);
+            }
+            log.debug("czRegistry==> [method]forward ==> response {}", body);
+            return JSON.parseObject(body, type);
+        } catch (RegistryException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RegistryException(e, ExErrorCodes.SOCKET_TIME_OUT);
+        }
+    }
+
     /**
      * get 方式通信
      *
@@ -80,4 +149,186 @@ public class HttpCall implements Channel {
         }
 
     }
+
+    /**
+     * get 方式异步通信
+     *
+     * @param url url
+     * @return 响应解析完成后完成
+     */
+    @Override
+    public <T> CompletableFuture<T> getAsync(String url, Class<T> clazz) {
+        log.debug("czRegistry==> [method]getAsync ==> url {}", url);
+        Request call = new Request.Builder()
+                .url(url)
+                .get()
+                .build();
+        return enqueue(client.newCall(call), clazz);
+    }
+
+    /**
+     * get 方式异步通信, 整个请求必须在截止时间内完成
+     * get 请求是幂等的: 超过对冲延迟仍未响应, 或在此之前已失败时, 在剩余时间内再发出一次相同的请求,
+     * 先成功的响应生效并取消另一个请求, 两次都失败时才以异常完成
+     *
+     * @param url     url
+     * @param timeout 截止时间, 单位毫秒
+     * @return 响应解析完成后完成
+     */
+    @Override
+    public <T> CompletableFuture<T> getAsync(String url, Class<T> clazz, long timeout) {
+        log.debug("czRegistry==> [method]getAsync ==> url {} timeout {}ms", url, timeout);
+        Request request = new Request.Builder()
+                .url(url)
+                .get()
+                .build();
+        int attempts = hedgeDelay > 0 && hedgeDelay < timeout ? 2 : 1;
+        HedgedCall<T> hedged = new HedgedCall<>(request, clazz, System.currentTimeMillis() + timeout, attempts);
+        hedged.tryStart();
+        if (attempts > 1) {
+            CompletableFuture.delayedExecutor(hedgeDelay, TimeUnit.MILLISECONDS, Runnable::run).execute(hedged::tryStart);
+        }
+        return hedged.result;
+    }
+
+    /**
+     * get 方式通信, 以流的方式读取响应体
+     *
+     * @param url    url
+     * @param reader 响应体读取
+     * @return reader 的返回值
+     */
+    @Override
+    public <T> T stream(String url, StreamReader<T> reader) {
+        return stream(url, reader, 0L);
+    }
+
+    /**
+     * get 方式通信, 以流的方式读取响应体, 包括读取响应体在内的整个请求必须在截止时间内完成
+     *
+     * @param url     url
+     * @param reader  响应体读取
+     * @param timeout 截止时间, 单位毫秒, 为 0 时只受默认超时限制
+     * @return reader 的返回值
+     */
+    @Override
+    public <T> T stream(String url, StreamReader<T> reader, long timeout) {
+        log.debug("czRegistry==> [method]streamConnect ==> url {} timeout {}ms", url, timeout);
+        Request request = new Request.Builder()
+                .url(url)
+                .get()
+                .build();
+        Call call = client.newCall(request);
+        call.timeout().timeout(timeout, TimeUnit.MILLISECONDS);
+        try (Response response = call.execute()) {
+            if (!response.isSuccessful()) {
+                throw new RegistryException("stream " + url + " failed with status " + response.code(), ExErrorCodes.REGISTER_CENTER_ERROR);
+            }
+            return reader.read(response.body().byteStream());
+        } catch (RegistryException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RegistryException(e, ExErrorCodes.SOCKET_TIME_OUT);
+        }
+    }
+
+    /**
+     * 一次带对冲的请求, 最多发出 attempts 个相同的请求, 共用同一个截止时间
+     */
+    private class HedgedCall<T> {
+
+        private final Request request;
+
+        private final Class<T> clazz;
+
+        private final long deadline;
+
+        private final int attempts;
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private final List<Call> calls = new CopyOnWriteArrayList<>();
+
+        private final AtomicInteger started = new AtomicInteger();
+
+        private final AtomicInteger failed = new AtomicInteger();
+
+        HedgedCall(Request request, Class<T> clazz, long deadline, int attempts) {
+            this.request = request;
+            this.clazz = clazz;
+            this.deadline = deadline;
+            this.attempts = attempts;
+            // 任一请求成功后取消其余请求
+            result.whenComplete((response, e) -> calls.forEach(Call::cancel));
+        }
+
+        /**
+         * 在剩余时间内再发出一个请求
+         *
+         * @return 是否发出了请求; 已有结果、已到截止时间或请求数已达上限时返回 false
+         */
+        boolean tryStart() {
+            long remaining = deadline - System.currentTimeMillis();
+            if (result.isDone() || remaining <= 0) {
+                return false;
+            }
+            int count;
+            do {
+                count = started.get();
+                if (count >= attempts) {
+                    return false;
+                }
+            } while (!started.compareAndSet(count, count + 1));
+            Call call = client.newCall(request);
+            call.timeout().timeout(remaining, TimeUnit.MILLISECONDS);
+            calls.add(call);
+            enqueue(call, clazz).whenComplete((response, e) -> {
+                if (e == null) {
+                    result.complete(response);
+                    return;
+                }
+                int failures = failed.incrementAndGet();
+                // 还有请求在途时等待其结果; 否则立即重试, 不再等待对冲延迟; 无法重试时以异常完成
+                if (failures >= attempts || (started.get() <= failures && !tryStart())) {
+                    result.completeExceptionally(e);
+                }
+            });
+            return true;
+        }
+    }
+
+    /**
+     * 交给 okhttp 调度器异步执行, 调用线程不等待响应
+     * 所有对端共用调度器的线程, 线程数不随集群规模增长
+     *
+     * @param call  请求
+     * @param clazz 响应类型
+     * @return 响应解析完成后完成
+     */
+    private <T> CompletableFuture<T> enqueue(Call call, Class<T> clazz) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call c, IOException e) {
+                future.completeExceptionally(new RegistryException(e, ExErrorCodes.SOCKET_TIME_OUT));
+            }
+
+            @Override
+            public void onResponse(Call c, Response response) {
+                try (response) {
+                    String body = response.body().string();
+                    if (!response.isSuccessful()) {
+                        future.completeExceptionally(new RegistryException("call " + c.request().url() + " failed with status "
+                                + response.code() + " ==> " + body, ExErrorCodes.REGISTER_CENTER_ERROR));
+                        return;
+                    }
+                    log.debug("czRegistry==> [method]enqueue ==> url {} response {}", c.request().url(), body);
+                    future.complete(JSON.parseObject(body, clazz));
+                } catch (Exception e) {
+                    future.completeExceptionally(new RegistryException(e, ExErrorCodes.SOCKET_TIME_OUT));
+                }
+            }
+        });
+        return future;
+    }
 }
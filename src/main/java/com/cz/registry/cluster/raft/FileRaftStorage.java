@@ -0,0 +1,337 @@
+package com.cz.registry.cluster.raft;
+
+import com.alibaba.fastjson2.JSONB;
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 基于文件的 raft 持久化状态
+ * <p>
+ * 目录结构:
+ * <pre>
+ * hard-state  long 任期 + int 投票节点长度(未投票为 -1) + 投票节点(utf-8) + int crc32
+ * snapshot    long 快照索引 + long 快照任期 + int crc32 + 快照
+ * log         重复: int 条目长度 + int crc32 + 条目(JSONB 编码的 {@link LogEntry}), 只包含快照之后的条目
+ * </pre>
+ * 任期、投票与快照先写临时文件再原子重命名; 日志追加与截断后 fsync。
+ * 日志末尾被截断或校验失败的条目视为崩溃时未写完, 加载时丢弃
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class FileRaftStorage implements RaftStorage {
+
+    static final String HARD_STATE = "hard-state";
+
+    static final String SNAPSHOT = "snapshot";
+
+    static final String LOG = "log";
+
+    /**
+     * 单条日志的长度上限
+     */
+    static final int MAX_ENTRY_LENGTH = 64 * 1024 * 1024;
+
+    private final Path dir;
+
+    private FileChannel logFile;
+
+    /**
+     * 日志文件中每个条目的起始位置, 第 i 个元素为索引 firstIndex + i 的条目
+     */
+    private final List<Long> offsets = new ArrayList<>();
+
+    private long firstIndex = 1;
+
+    private long size;
+
+    public FileRaftStorage(Path dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public synchronized State load() {
+        try {
+            Files.createDirectories(dir);
+            long term = 0;
+            String votedFor = null;
+            Path hardState = dir.resolve(HARD_STATE);
+            if (Files.exists(hardState)) {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(hardState));
+                term = buffer.getLong();
+                int length = buffer.getInt();
+                if (length >= 0) {
+                    byte[] voted = new byte[length];
+                    buffer.get(voted);
+                    votedFor = new String(voted, StandardCharsets.UTF_8);
+                }
+                int checked = buffer.position();
+                if (buffer.getInt() != crc(buffer.array(), 0, checked)) {
+                    throw new IOException("checksum mismatch in " + hardState);
+                }
+            }
+            long snapshotIndex = 0;
+            long snapshotTerm = 0;
+            byte[] snapshot = null;
+            Path snapshotFile = dir.resolve(SNAPSHOT);
+            if (Files.exists(snapshotFile)) {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+                snapshotIndex = buffer.getLong();
+                snapshotTerm = buffer.getLong();
+                int crc = buffer.getInt();
+                snapshot = new byte[buffer.remaining()];
+                buffer.get(snapshot);
+                if (crc != crc(snapshot, 0, snapshot.length)) {
+                    throw new IOException("checksum mismatch in " + snapshotFile);
+                }
+            }
+            List<LogEntry> entries = new ArrayList<>();
+            boolean stale = readLog(snapshotIndex, entries);
+            firstIndex = snapshotIndex + 1;
+            if (stale) {
+                // 上次写出快照后尚未替换日志, 按快照重新写出日志
+                rewriteLog(entries);
+            } else {
+                logFile = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                logFile.position(size);
+            }
+            log.info("czRegistry==> raft storage {} loaded, term {}, snapshot {}, {} entries",
+                    dir, term, snapshotIndex, entries.size());
+            return new State(term, votedFor, snapshotIndex, snapshotTerm, snapshot, entries);
+        } catch (IOException e) {
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+    }
+
+    @Override
+    public synchronized void saveHardState(long term, String votedFor) {
+        byte[] voted = votedFor == null ? new byte[0] : votedFor.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + voted.length + 4);
+        buffer.putLong(term).putInt(votedFor == null ? -1 : voted.length).put(voted);
+        buffer.putInt(crc(buffer.array(), 0, buffer.position()));
+        try {
+            replace(HARD_STATE, buffer.array());
+        } catch (IOException e) {
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+    }
+
+    @Override
+    public synchronized void append(List<LogEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<byte[]> frames = new ArrayList<>(entries.size());
+        int length = 0;
+        for (LogEntry entry : entries) {
+            byte[] frame = encode(entry);
+            frames.add(frame);
+            length += frame.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            long position = size;
+            for (byte[] frame : frames) {
+                offsets.add(position);
+                position += frame.length;
+                buffer.put(frame);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                logFile.write(buffer);
+            }
+            logFile.force(false);
+            size = position;
+        } catch (IOException e) {
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+    }
+
+    @Override
+    public synchronized void truncateFrom(long index) {
+        int from = (int) (index - firstIndex);
+        if (from < 0 || from >= offsets.size()) {
+            return;
+        }
+        try {
+            size = offsets.get(from);
+            logFile.truncate(size);
+            logFile.position(size);
+            logFile.force(false);
+            offsets.subList(from, offsets.size()).clear();
+        } catch (IOException e) {
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+    }
+
+    @Override
+    public synchronized void saveSnapshot(long index, long term, byte[] snapshot, List<LogEntry> retained) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 8 + 4 + snapshot.length);
+        buffer.putLong(index).putLong(term).putInt(crc(snapshot, 0, snapshot.length)).put(snapshot);
+        try {
+            replace(SNAPSHOT, buffer.array());
+            firstIndex = index + 1;
+            rewriteLog(retained);
+        } catch (IOException e) {
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+    }
+
+    /**
+     * 关闭日志文件
+     *
+     * @throws IOException 关闭失败
+     */
+    public synchronized void close() throws IOException {
+        if (logFile != null) {
+            logFile.close();
+            logFile = null;
+        }
+    }
+
+    /**
+     * 按顺序读取日志, 遇到截断或校验失败的条目时丢弃其后的内容
+     *
+     * @param snapshotIndex 快照索引, 不大于该索引的条目已包含在快照中
+     * @param entries       读取到的快照之后的条目
+     * @return 日志中包含快照已覆盖的条目时返回 true, 需要重新写出日志
+     */
+    private boolean readLog(long snapshotIndex, List<LogEntry> entries) throws IOException {
+        Path path = dir.resolve(LOG);
+        offsets.clear();
+        size = 0;
+        if (!Files.exists(path)) {
+            return false;
+        }
+        boolean stale = false;
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int crc = in.readInt();
+                if (length <= 0 || length > MAX_ENTRY_LENGTH) {
+                    throw new EOFException("invalid entry length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (crc != crc(payload, 0, payload.length)) {
+                    throw new EOFException("checksum mismatch");
+                }
+                LogEntry entry = JSONB.parseObject(payload, LogEntry.class);
+                if (entry.getIndex() <= snapshotIndex) {
+                    stale = true;
+                } else {
+                    long expected = snapshotIndex + entries.size() + 1;
+                    if (entry.getIndex() != expected) {
+                        throw new IOException("raft log " + path + " expects index " + expected + " but found " + entry.getIndex());
+                    }
+                    entries.add(entry);
+                    offsets.add(position);
+                }
+                position += 8 + length;
+            }
+        } catch (EOFException e) {
+            log.warn("czRegistry==> discard torn tail of {} at offset {}: {}", path, position, e.getMessage());
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(position);
+                file.force(true);
+            }
+        }
+        size = position;
+        return stale;
+    }
+
+    /**
+     * 以给定条目重新写出日志文件, 写完后原子替换
+     */
+    private void rewriteLog(List<LogEntry> entries) throws IOException {
+        if (logFile != null) {
+            logFile.close();
+        }
+        Path tmp = dir.resolve(LOG + ".tmp");
+        offsets.clear();
+        long position = 0;
+        try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (LogEntry entry : entries) {
+                ByteBuffer frame = ByteBuffer.wrap(encode(entry));
+                offsets.add(position);
+                position += frame.remaining();
+                while (frame.hasRemaining()) {
+                    file.write(frame);
+                }
+            }
+            file.force(true);
+        }
+        Files.move(tmp, dir.resolve(LOG), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        size = position;
+        logFile = FileChannel.open(dir.resolve(LOG), StandardOpenOption.WRITE);
+        logFile.position(size);
+    }
+
+    /**
+     * 先写临时文件再原子替换, 崩溃时保留旧文件或新文件之一
+     */
+    private void replace(String name, byte[] content) throws IOException {
+        Path tmp = dir.resolve(name + ".tmp");
+        try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+            file.force(true);
+        }
+        Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    /**
+     * fsync 目录, 使新建、重命名的文件在崩溃后仍然可见
+     */
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // 部分平台不支持打开目录, 只影响崩溃时新文件的可见性
+            log.debug("czRegistry==> fsync directory {} failed", dir, e);
+        }
+    }
+
+    private static byte[] encode(LogEntry entry) {
+        byte[] payload = JSONB.toBytes(entry);
+        return ByteBuffer.allocate(8 + payload.length)
+                .putInt(payload.length)
+                .putInt(crc(payload, 0, payload.length))
+                .put(payload)
+                .array();
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
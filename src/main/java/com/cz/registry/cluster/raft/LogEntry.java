@@ -0,0 +1,32 @@
+package com.cz.registry.cluster.raft;
+
+import com.cz.registry.meta.InstanceChanges;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * raft 日志条目, 每个条目是一次注册中心实例变更
+ *
+ * @author Zjianru
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LogEntry {
+
+    /**
+     * 追加该条目时领导者的任期
+     */
+    private long term;
+
+    /**
+     * 日志索引, 从 1 开始
+     */
+    private long index;
+
+    /**
+     * 实例变更, 领导者上任时追加的空条目为 null
+     */
+    private InstanceChanges command;
+}
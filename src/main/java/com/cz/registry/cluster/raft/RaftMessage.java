@@ -0,0 +1,107 @@
+package com.cz.registry.cluster.raft;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * raft 节点之间的消息
+ * 请求与响应都是单向消息, 响应不依赖请求所在的连接, 便于在 http 与模拟网络之间切换
+ *
+ * @author Zjianru
+ */
+@Data
+@NoArgsConstructor
+public class RaftMessage {
+
+    /**
+     * 消息类型
+     */
+    public enum Type {
+        /**
+         * 请求投票
+         */
+        REQUEST_VOTE,
+        /**
+         * 投票结果
+         */
+        VOTE,
+        /**
+         * 追加日志, 同时作为领导者心跳
+         */
+        APPEND,
+        /**
+         * 追加日志结果, 同时作为安装快照的结果
+         */
+        APPEND_ACK,
+        /**
+         * 安装快照, 跟随者需要的日志已被领导者压缩时发送
+         */
+        INSTALL_SNAPSHOT
+    }
+
+    private Type type;
+
+    private String from;
+
+    private String to;
+
+    /**
+     * 发送方的任期
+     */
+    private long term;
+
+    /**
+     * 投票请求: 候选者最后一条日志的索引与任期
+     */
+    private long lastLogIndex;
+
+    private long lastLogTerm;
+
+    /**
+     * 追加日志: 新条目之前一条日志的索引与任期; 安装快照: 快照包含的最后一条日志的索引与任期
+     */
+    private long prevLogIndex;
+
+    private long prevLogTerm;
+
+    /**
+     * 追加日志: 新条目, 心跳时为空
+     */
+    private List<LogEntry> entries;
+
+    /**
+     * 安装快照: 状态机快照
+     */
+    private byte[] snapshot;
+
+    /**
+     * 追加日志: 领导者的提交索引
+     */
+    private long leaderCommit;
+
+    /**
+     * 投票结果: 是否同意; 追加日志结果: 是否成功
+     */
+    private boolean success;
+
+    /**
+     * 追加日志结果: 成功时为已匹配的最大索引, 失败时为跟随者最后一条日志的索引, 供领导者回退
+     */
+    private long matchIndex;
+
+    /**
+     * 追加日志: 领导者发送时的 tick; 追加日志结果: 原样带回对应请求的 tick, 供领导者计算租约
+     */
+    private long tick;
+
+    static RaftMessage of(Type type, String from, String to, long term) {
+        RaftMessage message = new RaftMessage();
+        message.type = type;
+        message.from = from;
+        message.to = to;
+        message.term = term;
+        return message;
+    }
+}
@@ -0,0 +1,697 @@
+package com.cz.registry.cluster.raft;
+
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.meta.InstanceChanges;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * raft 共识节点
+ * 包含任期、随机超时的领导者选举与日志复制; 日志条目在多数节点确认后提交, 提交后按顺序交给状态机应用。
+ * <p>
+ * 节点本身不持有线程也不读取时钟, 时间由 {@link #tick()} 推进, 消息由 {@link #handle(RaftMessage)} 投递,
+ * 因此可以用模拟网络在同一进程内确定性地测试多个节点。除状态查询外, 所有方法必须由同一个线程调用。
+ * <p>
+ * 领导者持有租约: 跟随者在收到领导者消息后的 electionTicks 内不给其他候选者投票,
+ * 领导者以多数节点确认过的最早一次发送时刻为起点, 在略短于 electionTicks 的时间内确信不会出现新的领导者,
+ * 期间可以直接以本地状态响应线性一致读。
+ * <p>
+ * 任期、投票与日志保存在 {@link RaftStorage} 中, 写入落盘之后才发出投票、追加日志确认或复制请求,
+ * 重启后不会在同一任期重复投票, 也不会丢失已确认的日志。已应用的日志超过 snapshotEntries 条时以状态机快照代替,
+ * 领导者已压缩掉某个跟随者需要的日志时改为发送快照。
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class RaftNode {
+
+    /**
+     * 单条追加日志消息最多携带的条目数
+     */
+    static final int MAX_BATCH = 256;
+
+    /**
+     * 本节点标识
+     */
+    private final String id;
+
+    /**
+     * 其他节点标识
+     */
+    private final List<String> peers;
+
+    private final RaftTransport transport;
+
+    private final RaftStateMachine stateMachine;
+
+    private final RaftStorage storage;
+
+    private final Random random;
+
+    /**
+     * 选举超时的最小 tick 数, 实际超时在 [electionTicks, 2 * electionTicks) 之间随机
+     */
+    private final int electionTicks;
+
+    /**
+     * 领导者心跳间隔 tick 数, 应明显小于 electionTicks
+     */
+    private final int heartbeatTicks;
+
+    /**
+     * 租约时长 tick 数, 比选举超时少一个心跳间隔, 作为各节点 tick 快慢不一致的余量
+     */
+    private final int leaseTicks;
+
+    /**
+     * 已应用的日志超过该条数时压缩为快照, 为 0 时不压缩
+     */
+    private final int snapshotEntries;
+
+    /**
+     * 快照之后的日志, 第 i 个元素的索引为 snapshotIndex + i + 1
+     */
+    private final List<LogEntry> logEntries = new ArrayList<>();
+
+    /**
+     * 快照包含的最后一条日志的索引与任期, 没有快照时为 0
+     */
+    private long snapshotIndex;
+
+    private long snapshotTerm;
+
+    /**
+     * 最近一次的状态机快照, 发送给落后于快照的跟随者
+     */
+    private byte[] snapshot;
+
+    private volatile RaftRole role = RaftRole.FOLLOWER;
+
+    private volatile long term;
+
+    private volatile String leader;
+
+    private String votedFor;
+
+    private long commitIndex;
+
+    private long lastApplied;
+
+    private int elapsed;
+
+    private int timeout;
+
+    /**
+     * 节点启动以来的 tick 数
+     */
+    private volatile long now;
+
+    /**
+     * 领导者租约到期的 tick, 不持有租约时不大于 now
+     */
+    private volatile long leaseUntil;
+
+    /**
+     * 本任期第一条日志的索引, 该条目应用后领导者的状态才包含之前任期提交的全部变更
+     */
+    private long termStartIndex;
+
+    private final Set<String> votes = new HashSet<>();
+
+    /**
+     * 领导者记录的每个节点下一条待发送日志的索引
+     */
+    private final Map<String, Long> nextIndex = new HashMap<>();
+
+    /**
+     * 领导者记录的每个节点已确认的最大日志索引
+     */
+    private final Map<String, Long> matchIndex = new HashMap<>();
+
+    /**
+     * 等待提交的请求
+     * key->日志索引
+     * value->提交并应用后完成
+     */
+    private final Map<Long, CompletableFuture<Object>> pending = new HashMap<>();
+
+    /**
+     * 领导者记录的每个节点最近一次确认的追加日志消息的发送 tick
+     */
+    private final Map<String, Long> ackedAt = new HashMap<>();
+
+    /**
+     * 领导者记录的每个节点最近一次发送快照的 tick, 一个选举超时内不重复发送
+     */
+    private final Map<String, Long> snapshotSentAt = new HashMap<>();
+
+    /**
+     * 领导者变化监听者, 参数为新的领导者标识, 未知时为 null
+     */
+    private Consumer<String> leaderListener = leader -> {
+    };
+
+    public RaftNode(String id, List<String> peers, RaftTransport transport, RaftStateMachine stateMachine,
+                    RaftStorage storage, Random random, int electionTicks, int heartbeatTicks, int snapshotEntries) {
+        this.id = id;
+        this.peers = List.copyOf(peers);
+        this.transport = transport;
+        this.stateMachine = stateMachine;
+        this.storage = storage;
+        this.random = random;
+        this.electionTicks = electionTicks;
+        this.heartbeatTicks = heartbeatTicks;
+        this.leaseTicks = Math.max(1, electionTicks - heartbeatTicks);
+        this.snapshotEntries = snapshotEntries;
+        RaftStorage.State state = storage.load();
+        this.term = state.term();
+        this.votedFor = state.votedFor();
+        this.snapshotIndex = state.snapshotIndex();
+        this.snapshotTerm = state.snapshotTerm();
+        this.logEntries.addAll(state.entries());
+        if (state.snapshot() != null) {
+            // 快照包含的日志都已提交, 之后的日志等待领导者告知提交索引后再应用
+            this.snapshot = state.snapshot();
+            stateMachine.restore(snapshot);
+            this.commitIndex = snapshotIndex;
+            this.lastApplied = snapshotIndex;
+        }
+        resetTimeout();
+    }
+
+    /**
+     * 推进一个 tick: 领导者按间隔发送心跳, 其他节点超时后发起选举
+     */
+    public void tick() {
+        now++;
+        elapsed++;
+        if (role == RaftRole.LEADER) {
+            refreshLease();
+            if (elapsed >= heartbeatTicks) {
+                elapsed = 0;
+                peers.forEach(this::sendAppend);
+            }
+        } else if (elapsed >= timeout) {
+            startElection();
+        }
+    }
+
+    /**
+     * 处理其他节点发来的消息
+     *
+     * @param message 消息
+     */
+    public void handle(RaftMessage message) {
+        if (message.getType() == RaftMessage.Type.REQUEST_VOTE && inLease()) {
+            // 当前领导者的租约内不响应投票请求, 也不因更高的任期退位
+            log.debug("czRegistry==> raft {} ignore vote request from {} within leader lease", id, message.getFrom());
+            return;
+        }
+        if (message.getTerm() > term) {
+            becomeFollower(message.getTerm(), null);
+        }
+        switch (message.getType()) {
+            case REQUEST_VOTE -> onRequestVote(message);
+            case VOTE -> onVote(message);
+            case APPEND -> onAppend(message);
+            case APPEND_ACK -> onAppendAck(message);
+            case INSTALL_SNAPSHOT -> onInstallSnapshot(message);
+        }
+    }
+
+    /**
+     * 提议一次实例变更, 只有领导者可以提议
+     *
+     * @param command 实例变更
+     * @return 变更提交并应用后以状态机的应用结果完成; 当前不是领导者或提交前失去领导地位时以异常完成
+     */
+    public CompletableFuture<Object> propose(InstanceChanges command) {
+        if (role != RaftRole.LEADER) {
+            return CompletableFuture.failedFuture(notLeader());
+        }
+        LogEntry entry = append(command);
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        pending.put(entry.getIndex(), future);
+        // 立即复制, 不等待下一次心跳
+        peers.forEach(this::sendAppend);
+        advanceCommit();
+        return future;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public RaftRole getRole() {
+        return role;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+
+    /**
+     * 当前已知的领导者
+     *
+     * @return 领导者标识, 未知时为 null
+     */
+    public String getLeader() {
+        return leader;
+    }
+
+    /**
+     * 是否为持有有效租约的领导者, 持有租约期间集群中不会出现其他领导者
+     *
+     * @return 持有租约时返回 true
+     */
+    public boolean hasLease() {
+        return role == RaftRole.LEADER && now < leaseUntil;
+    }
+
+    public long getCommitIndex() {
+        return commitIndex;
+    }
+
+    public long getLastIndex() {
+        return snapshotIndex + logEntries.size();
+    }
+
+    public long getSnapshotIndex() {
+        return snapshotIndex;
+    }
+
+    public void setLeaderListener(Consumer<String> leaderListener) {
+        this.leaderListener = leaderListener;
+    }
+
+    private void startElection() {
+        saveHardState(term + 1, id);
+        role = RaftRole.CANDIDATE;
+        votes.clear();
+        votes.add(id);
+        changeLeader(null);
+        resetTimeout();
+        log.debug("czRegistry==> raft {} start election for term {}", id, term);
+        if (votes.size() >= quorum()) {
+            becomeLeader();
+            return;
+        }
+        for (String peer : peers) {
+            RaftMessage request = RaftMessage.of(RaftMessage.Type.REQUEST_VOTE, id, peer, term);
+            request.setLastLogIndex(getLastIndex());
+            request.setLastLogTerm(termAt(getLastIndex()));
+            transport.send(request);
+        }
+    }
+
+    private void onRequestVote(RaftMessage request) {
+        boolean upToDate = request.getLastLogTerm() > termAt(getLastIndex())
+                || (request.getLastLogTerm() == termAt(getLastIndex()) && request.getLastLogIndex() >= getLastIndex());
+        boolean granted = request.getTerm() == term
+                && (votedFor == null || votedFor.equals(request.getFrom()))
+                && upToDate;
+        if (granted) {
+            saveHardState(term, request.getFrom());
+            elapsed = 0;
+        }
+        RaftMessage response = RaftMessage.of(RaftMessage.Type.VOTE, id, request.getFrom(), term);
+        response.setSuccess(granted);
+        transport.send(response);
+    }
+
+    private void onVote(RaftMessage response) {
+        if (role != RaftRole.CANDIDATE || response.getTerm() != term || !response.isSuccess()) {
+            return;
+        }
+        votes.add(response.getFrom());
+        if (votes.size() >= quorum()) {
+            becomeLeader();
+        }
+    }
+
+    private void onAppend(RaftMessage request) {
+        RaftMessage response = RaftMessage.of(RaftMessage.Type.APPEND_ACK, id, request.getFrom(), term);
+        response.setTick(request.getTick());
+        if (request.getTerm() < term) {
+            response.setMatchIndex(getLastIndex());
+            transport.send(response);
+            return;
+        }
+        // 同一任期内收到领导者的消息, 候选者退回跟随者
+        if (role != RaftRole.FOLLOWER) {
+            becomeFollower(term, request.getFrom());
+        }
+        changeLeader(request.getFrom());
+        elapsed = 0;
+        long prevIndex = request.getPrevLogIndex();
+        // 快照包含的日志都已提交, 与领导者一定一致, 只需校验快照之后的位置
+        if (prevIndex >= snapshotIndex
+                && (prevIndex > getLastIndex() || termAt(prevIndex) != request.getPrevLogTerm())) {
+            // 日志不匹配, 告知领导者从更早的位置重试
+            response.setMatchIndex(Math.min(getLastIndex(), prevIndex - 1));
+            transport.send(response);
+            return;
+        }
+        List<LogEntry> entries = request.getEntries() == null ? List.of() : request.getEntries();
+        List<LogEntry> fresh = new ArrayList<>();
+        for (LogEntry entry : entries) {
+            if (entry.getIndex() <= snapshotIndex) {
+                continue;
+            }
+            if (fresh.isEmpty() && entry.getIndex() <= getLastIndex()) {
+                if (termAt(entry.getIndex()) == entry.getTerm()) {
+                    continue;
+                }
+                // 与领导者冲突的条目及其之后的条目全部删除
+                truncateFrom(entry.getIndex());
+            }
+            fresh.add(entry);
+        }
+        // 落盘之后才确认
+        storage.append(fresh);
+        logEntries.addAll(fresh);
+        long lastNew = Math.max(prevIndex + entries.size(), snapshotIndex);
+        if (request.getLeaderCommit() > commitIndex) {
+            commitIndex = Math.min(request.getLeaderCommit(), lastNew);
+            applyCommitted();
+        }
+        response.setSuccess(true);
+        response.setMatchIndex(lastNew);
+        transport.send(response);
+    }
+
+    /**
+     * 跟随者安装领导者的快照, 快照之后与快照一致的日志保留, 其余日志丢弃
+     */
+    private void onInstallSnapshot(RaftMessage request) {
+        RaftMessage response = RaftMessage.of(RaftMessage.Type.APPEND_ACK, id, request.getFrom(), term);
+        response.setTick(request.getTick());
+        if (request.getTerm() < term) {
+            response.setMatchIndex(getLastIndex());
+            transport.send(response);
+            return;
+        }
+        if (role != RaftRole.FOLLOWER) {
+            becomeFollower(term, request.getFrom());
+        }
+        changeLeader(request.getFrom());
+        elapsed = 0;
+        long index = request.getPrevLogIndex();
+        if (index > commitIndex) {
+            List<LogEntry> retained = index < getLastIndex() && termAt(index) == request.getPrevLogTerm()
+                    ? new ArrayList<>(logEntries.subList((int) (index - snapshotIndex), logEntries.size()))
+                    : List.of();
+            storage.saveSnapshot(index, request.getPrevLogTerm(), request.getSnapshot(), retained);
+            stateMachine.restore(request.getSnapshot());
+            logEntries.clear();
+            logEntries.addAll(retained);
+            snapshotIndex = index;
+            snapshotTerm = request.getPrevLogTerm();
+            snapshot = request.getSnapshot();
+            commitIndex = index;
+            lastApplied = index;
+            log.info("czRegistry==> raft {} installed snapshot at index {} from {}", id, index, request.getFrom());
+        }
+        response.setSuccess(true);
+        response.setMatchIndex(index);
+        transport.send(response);
+    }
+
+    private void onAppendAck(RaftMessage response) {
+        if (role != RaftRole.LEADER || response.getTerm() != term) {
+            return;
+        }
+        String peer = response.getFrom();
+        // 无论日志是否匹配, 同一任期的响应都说明对端在该时刻之后认可本节点为领导者
+        ackedAt.merge(peer, response.getTick(), Math::max);
+        refreshLease();
+        if (response.isSuccess()) {
+            long match = Math.max(matchIndex.getOrDefault(peer, 0L), response.getMatchIndex());
+            matchIndex.put(peer, match);
+            nextIndex.put(peer, match + 1);
+            advanceCommit();
+            if (match < getLastIndex()) {
+                sendAppend(peer);
+            }
+        } else {
+            long previous = nextIndex.getOrDefault(peer, 1L);
+            long next = Math.max(1, Math.min(previous - 1, response.getMatchIndex() + 1));
+            nextIndex.put(peer, next);
+            // 对端已在等待快照时不立即重发, 由心跳按快照的发送间隔重试
+            if (previous > snapshotIndex) {
+                sendAppend(peer);
+            }
+        }
+    }
+
+    private void becomeLeader() {
+        role = RaftRole.LEADER;
+        changeLeader(id);
+        elapsed = 0;
+        for (String peer : peers) {
+            nextIndex.put(peer, getLastIndex() + 1);
+            matchIndex.put(peer, 0L);
+        }
+        ackedAt.clear();
+        leaseUntil = 0;
+        log.info("czRegistry==> raft {} became leader for term {}", id, term);
+        // 追加一个本任期的空条目, 使之前任期的条目尽快随之提交
+        termStartIndex = append(null).getIndex();
+        peers.forEach(this::sendAppend);
+        advanceCommit();
+    }
+
+    private void becomeFollower(long newTerm, String newLeader) {
+        if (newTerm > term) {
+            saveHardState(newTerm, null);
+        }
+        if (role != RaftRole.FOLLOWER) {
+            log.info("czRegistry==> raft {} step down to follower at term {}", id, term);
+        }
+        role = RaftRole.FOLLOWER;
+        changeLeader(newLeader);
+        resetTimeout();
+        failPending();
+    }
+
+    /**
+     * 先保存任期与投票, 落盘之后才在内存中生效
+     */
+    private void saveHardState(long newTerm, String newVotedFor) {
+        storage.saveHardState(newTerm, newVotedFor);
+        term = newTerm;
+        votedFor = newVotedFor;
+    }
+
+    private LogEntry append(InstanceChanges command) {
+        LogEntry entry = new LogEntry(term, getLastIndex() + 1, command);
+        storage.append(List.of(entry));
+        logEntries.add(entry);
+        return entry;
+    }
+
+    private void sendAppend(String peer) {
+        long next = Math.min(nextIndex.getOrDefault(peer, getLastIndex() + 1), getLastIndex() + 1);
+        if (next <= snapshotIndex) {
+            sendSnapshot(peer);
+            return;
+        }
+        long prevIndex = next - 1;
+        int from = (int) (prevIndex - snapshotIndex);
+        RaftMessage request = RaftMessage.of(RaftMessage.Type.APPEND, id, peer, term);
+        request.setPrevLogIndex(prevIndex);
+        request.setPrevLogTerm(termAt(prevIndex));
+        request.setEntries(new ArrayList<>(logEntries.subList(from, Math.min(logEntries.size(), from + MAX_BATCH))));
+        request.setLeaderCommit(commitIndex);
+        request.setTick(now);
+        transport.send(request);
+    }
+
+    /**
+     * 对端需要的日志已被压缩, 改为发送快照; 快照较大, 一个选举超时内只发送一次,
+     * 其余时间只发送以快照为起点的空追加请求作为心跳, 避免对端在等待快照期间发起选举
+     */
+    private void sendSnapshot(String peer) {
+        Long sentAt = snapshotSentAt.get(peer);
+        if (sentAt != null && now - sentAt < electionTicks) {
+            RaftMessage heartbeat = RaftMessage.of(RaftMessage.Type.APPEND, id, peer, term);
+            heartbeat.setPrevLogIndex(snapshotIndex);
+            heartbeat.setPrevLogTerm(snapshotTerm);
+            heartbeat.setEntries(List.of());
+            heartbeat.setLeaderCommit(commitIndex);
+            heartbeat.setTick(now);
+            transport.send(heartbeat);
+            return;
+        }
+        snapshotSentAt.put(peer, now);
+        RaftMessage request = RaftMessage.of(RaftMessage.Type.INSTALL_SNAPSHOT, id, peer, term);
+        request.setPrevLogIndex(snapshotIndex);
+        request.setPrevLogTerm(snapshotTerm);
+        request.setSnapshot(snapshot);
+        request.setLeaderCommit(commitIndex);
+        request.setTick(now);
+        transport.send(request);
+        log.info("czRegistry==> raft {} send snapshot at index {} to {}", id, snapshotIndex, peer);
+    }
+
+    /**
+     * 领导者推进提交索引: 只提交本任期的条目, 之前任期的条目随之提交
+     */
+    private void advanceCommit() {
+        for (long index = getLastIndex(); index > commitIndex; index--) {
+            if (termAt(index) != term) {
+                break;
+            }
+            int replicated = 1;
+            for (String peer : peers) {
+                if (matchIndex.getOrDefault(peer, 0L) >= index) {
+                    replicated++;
+                }
+            }
+            if (replicated >= quorum()) {
+                commitIndex = index;
+                applyCommitted();
+                refreshLease();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 领导者按多数节点的确认时刻续约
+     * 本任期的空条目应用之前不持有租约, 避免以缺少之前任期已提交变更的状态响应读取
+     */
+    private void refreshLease() {
+        if (role != RaftRole.LEADER || lastApplied < termStartIndex) {
+            return;
+        }
+        List<Long> acks = new ArrayList<>(peers.size() + 1);
+        acks.add(now);
+        for (String peer : peers) {
+            Long acked = ackedAt.get(peer);
+            if (acked != null) {
+                acks.add(acked);
+            }
+        }
+        if (acks.size() < quorum()) {
+            return;
+        }
+        acks.sort(Comparator.reverseOrder());
+        leaseUntil = Math.max(leaseUntil, acks.get(quorum() - 1) + leaseTicks);
+    }
+
+    /**
+     * 是否处于某个领导者的租约内: 领导者持有租约, 或跟随者最近一个选举超时内收到过领导者的消息
+     */
+    private boolean inLease() {
+        if (role == RaftRole.LEADER) {
+            return hasLease();
+        }
+        return leader != null && elapsed < electionTicks;
+    }
+
+    private void applyCommitted() {
+        while (lastApplied < commitIndex) {
+            lastApplied++;
+            LogEntry entry = logEntries.get((int) (lastApplied - snapshotIndex - 1));
+            CompletableFuture<Object> future = pending.remove(lastApplied);
+            try {
+                Object result = entry.getCommand() == null ? null : stateMachine.apply(entry);
+                if (future != null) {
+                    future.complete(result);
+                }
+            } catch (Exception e) {
+                log.warn("czRegistry==> raft {} failed to apply entry {}", id, entry.getIndex(), e);
+                if (future != null) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * 已应用的日志超过 snapshotEntries 条时, 以状态机快照代替已应用的日志
+     */
+    private void compact() {
+        if (snapshotEntries <= 0 || lastApplied - snapshotIndex < snapshotEntries) {
+            return;
+        }
+        long index = lastApplied;
+        long indexTerm = termAt(index);
+        byte[] data = stateMachine.snapshot();
+        List<LogEntry> retained = new ArrayList<>(logEntries.subList((int) (index - snapshotIndex), logEntries.size()));
+        storage.saveSnapshot(index, indexTerm, data, retained);
+        logEntries.clear();
+        logEntries.addAll(retained);
+        snapshotIndex = index;
+        snapshotTerm = indexTerm;
+        snapshot = data;
+        log.info("czRegistry==> raft {} compacted log up to index {}", id, index);
+    }
+
+    private void truncateFrom(long index) {
+        storage.truncateFrom(index);
+        while (getLastIndex() >= index) {
+            long removed = getLastIndex();
+            logEntries.remove(logEntries.size() - 1);
+            CompletableFuture<Object> future = pending.remove(removed);
+            if (future != null) {
+                future.completeExceptionally(notLeader());
+            }
+        }
+    }
+
+    /**
+     * 失去领导地位后, 未提交的请求无法确认结果, 全部以异常完成, 由客户端重试
+     */
+    private void failPending() {
+        Iterator<CompletableFuture<Object>> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().completeExceptionally(notLeader());
+            iterator.remove();
+        }
+    }
+
+    private long termAt(long index) {
+        if (index == snapshotIndex) {
+            return snapshotTerm;
+        }
+        return index < snapshotIndex || index > getLastIndex() ? 0L
+                : logEntries.get((int) (index - snapshotIndex - 1)).getTerm();
+    }
+
+    private int quorum() {
+        return (peers.size() + 1) / 2 + 1;
+    }
+
+    private void resetTimeout() {
+        elapsed = 0;
+        timeout = electionTicks + random.nextInt(Math.max(electionTicks, 1));
+    }
+
+    private void changeLeader(String newLeader) {
+        String previous = leader;
+        leader = newLeader;
+        if (previous == null ? newLeader != null : !previous.equals(newLeader)) {
+            leaderListener.accept(newLeader);
+        }
+    }
+
+    private RegistryException notLeader() {
+        return new RegistryException("raft node " + id + " is not leader ==> current leader is " + leader,
+                ExErrorCodes.REGISTER_CENTER_ERROR);
+    }
+}
@@ -0,0 +1,108 @@
+package com.cz.registry.cluster.raft;
+
+import com.cz.registry.meta.InstanceChanges;
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.InstanceRenewal;
+import com.cz.registry.meta.SelectStrategy;
+import com.cz.registry.service.RegistryService;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于 raft 的注册服务
+ * 注册与注销作为日志提交给 raft, 多数节点确认后由每个节点的状态机在本地应用, 之后才返回给调用方;
+ * 查询与心跳续约直接在本地执行
+ *
+ * @author Zjianru
+ */
+public class RaftRegistryService implements RegistryService {
+
+    /**
+     * 本地注册服务, 同时也是 raft 状态机的应用方
+     */
+    private final RegistryService local;
+
+    private final RaftServer raft;
+
+    public RaftRegistryService(RegistryService local, RaftServer raft) {
+        this.local = local;
+        this.raft = raft;
+    }
+
+    /**
+     * 注册服务实例
+     *
+     * @return 实例已存在、没有产生新版本时返回 null
+     */
+    @Override
+    public InstanceMeta register(String service, InstanceMeta instance) {
+        InstanceChanges changes = new InstanceChanges();
+        changes.getRegister().put(service, List.of(instance));
+        if (!propose(changes).changed().contains(service)) {
+            return null;
+        }
+        instance.setStatus(true);
+        return instance;
+    }
+
+    /**
+     * 注销服务实例
+     *
+     * @return 实例不存在、没有产生新版本时返回 null
+     */
+    @Override
+    public InstanceMeta unregister(String service, InstanceMeta instance) {
+        InstanceChanges changes = new InstanceChanges();
+        changes.getUnregister().put(service, List.of(instance));
+        if (!propose(changes).changed().contains(service)) {
+            return null;
+        }
+        instance.setStatus(false);
+        return instance;
+    }
+
+    @Override
+    public Map<String, Long> apply(InstanceChanges changes) {
+        return propose(changes).versions();
+    }
+
+    private RegistryStateMachine.Applied propose(InstanceChanges changes) {
+        return (RegistryStateMachine.Applied) raft.propose(changes);
+    }
+
+    @Override
+    public List<InstanceMeta> fetchAll(String service) {
+        return local.fetchAll(service);
+    }
+
+    @Override
+    public List<InstanceMeta> query(String service, Map<String, String> criteria) {
+        return local.query(service, criteria);
+    }
+
+    @Override
+    public List<InstanceMeta> select(String service, SelectStrategy strategy, int count, String key) {
+        return local.select(service, strategy, count, key);
+    }
+
+    @Override
+    public Map<String, Long> reNew(InstanceMeta instance, String... services) {
+        return local.reNew(instance, services);
+    }
+
+    @Override
+    public Map<String, Long> reNew(List<InstanceRenewal> renewals) {
+        return local.reNew(renewals);
+    }
+
+    @Override
+    public Long version(String service) {
+        return local.version(service);
+    }
+
+    @Override
+    public Map<String, Long> versions(String... service) {
+        return local.versions(service);
+    }
+}
@@ -0,0 +1,21 @@
+package com.cz.registry.cluster.raft;
+
+/**
+ * raft 节点角色
+ *
+ * @author Zjianru
+ */
+public enum RaftRole {
+    /**
+     * 跟随者, 接收领导者的日志复制
+     */
+    FOLLOWER,
+    /**
+     * 候选者, 正在发起选举
+     */
+    CANDIDATE,
+    /**
+     * 领导者, 唯一可以追加日志的节点
+     */
+    LEADER
+}
@@ -0,0 +1,175 @@
+package com.cz.registry.cluster.raft;
+
+import com.cz.registry.cluster.connect.Channel;
+import com.cz.registry.config.ConfigProperties;
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.meta.InstanceChanges;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 在注册中心进程中运行 {@link RaftNode}
+ * 节点的所有操作都在同一个线程中执行; 节点之间的消息通过 {@link Channel} 发往对方的 /raft 接口,
+ * 消息异步发送, 不为每个对端占用线程; 对端积压的在途消息过多时丢弃新消息, 由 raft 协议重传
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class RaftServer {
+
+    /**
+     * 每个对端在途消息的上限
+     */
+    static final int MAX_IN_FLIGHT = 256;
+
+    private final RaftNode node;
+
+    private final Channel channel;
+
+    private final ConfigProperties configProperties;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 在途消息数
+     * key->对端 url
+     * value->已发出尚未完成的消息数
+     */
+    private final Map<String, AtomicInteger> inFlight = new HashMap<>();
+
+    /**
+     * 最近一次推进节点时间的时刻, 用于发现 raft 线程停顿
+     */
+    private volatile long tickedAt;
+
+    public RaftServer(String self, List<String> peers, Channel channel, RaftStateMachine stateMachine,
+                      RaftStorage storage, ConfigProperties configProperties) {
+        this.channel = channel;
+        this.configProperties = configProperties;
+        peers.forEach(peer -> inFlight.put(peer, new AtomicInteger()));
+        this.node = new RaftNode(self, peers, this::send, stateMachine, storage, new Random(),
+                configProperties.getRaftElectionTicks(), configProperties.getRaftHeartbeatTicks(),
+                configProperties.getRaftSnapshotEntries());
+    }
+
+    /**
+     * 开始推进节点时间
+     */
+    public void start() {
+        long tick = configProperties.getRaftTick();
+        executor.scheduleWithFixedDelay(() -> run(() -> {
+            node.tick();
+            tickedAt = System.currentTimeMillis();
+        }), tick, tick, TimeUnit.MILLISECONDS);
+        log.info("czRegistry==> raft node {} started", node.getId());
+    }
+
+    /**
+     * 接收其他节点发来的消息
+     *
+     * @param message 消息
+     */
+    public void receive(RaftMessage message) {
+        executor.execute(() -> run(() -> node.handle(message)));
+    }
+
+    /**
+     * 提议一次实例变更并等待多数节点确认后应用
+     *
+     * @param changes 实例变更
+     * @return 本节点状态机的应用结果
+     * @throws RegistryException 当前不是领导者, 或等待超时, 或应用失败
+     */
+    public Object propose(InstanceChanges changes) {
+        CompletableFuture<Object> result = CompletableFuture
+                .supplyAsync(() -> node.propose(changes), executor)
+                .thenCompose(future -> future);
+        try {
+            return result.get(configProperties.getRaftProposeTimeout(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RegistryException registryException) {
+                throw registryException;
+            }
+            throw new RegistryException(e.getCause(), ExErrorCodes.REGISTER_CENTER_ERROR);
+        } catch (TimeoutException e) {
+            throw new RegistryException("raft propose not committed in " + configProperties.getRaftProposeTimeout() + "ms",
+                    ExErrorCodes.SOCKET_TIME_OUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+    }
+
+    public boolean isLeader() {
+        return node.getRole() == RaftRole.LEADER;
+    }
+
+    /**
+     * 是否为持有有效租约的领导者。
+     * 租约以 tick 计量, raft 线程停顿时节点时间不再前进, 租约会显得比实际更长,
+     * 因此超过两个 tick 没有推进时同样视为不持有租约。
+     *
+     * @return 持有租约时返回 true
+     */
+    public boolean hasLease() {
+        return node.hasLease() && System.currentTimeMillis() - tickedAt < 2 * configProperties.getRaftTick();
+    }
+
+    /**
+     * 当前已知的领导者
+     *
+     * @return 领导者 url, 未知时为 null
+     */
+    public String getLeader() {
+        return node.getLeader();
+    }
+
+    /**
+     * 设置领导者变化监听者, 在 raft 线程中回调
+     *
+     * @param listener 监听者, 参数为新的领导者 url, 未知时为 null
+     */
+    public void setLeaderListener(Consumer<String> listener) {
+        node.setLeaderListener(listener);
+    }
+
+    private void send(RaftMessage message) {
+        AtomicInteger count = inFlight.get(message.getTo());
+        if (count == null) {
+            return;
+        }
+        if (count.incrementAndGet() > MAX_IN_FLIGHT) {
+            count.decrementAndGet();
+            log.debug("czRegistry==> raft drop {} to {}, too many messages in flight", message.getType(), message.getTo());
+            return;
+        }
+        channel.postAsync(message.getTo() + "/raft", message, String.class)
+                .whenComplete((response, e) -> {
+                    count.decrementAndGet();
+                    if (e != null) {
+                        log.debug("czRegistry==> raft send {} to {} failed", message.getType(), message.getTo());
+                    }
+                });
+    }
+
+    private void run(Runnable action) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            log.error("czRegistry==> raft node {} failed", node.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.cz.registry.cluster.raft;
+
+/**
+ * 已提交日志的应用方, 每个节点按日志索引顺序应用同样的条目
+ * 日志压缩时由状态机生成快照代替已应用的日志, 落后过多的节点与重启的节点从快照恢复
+ *
+ * @author Zjianru
+ */
+public interface RaftStateMachine {
+
+    /**
+     * 应用一条已提交的日志
+     *
+     * @param entry 日志条目, 不含领导者上任时的空条目
+     * @return 应用结果, 返回给提交该条目的请求方
+     */
+    Object apply(LogEntry entry);
+
+    /**
+     * 生成包含所有已应用日志的快照, 在应用日志的线程中调用
+     *
+     * @return 快照
+     */
+    byte[] snapshot();
+
+    /**
+     * 以快照替换当前状态, 在应用日志的线程中调用
+     *
+     * @param snapshot 由 {@link #snapshot()} 生成的快照
+     */
+    void restore(byte[] snapshot);
+}
@@ -0,0 +1,66 @@
+package com.cz.registry.cluster.raft;
+
+import java.util.List;
+
+/**
+ * raft 节点的持久化状态: 任期与投票、日志条目以及压缩日志的快照
+ * 所有写入方法返回时数据必须已经落盘, 节点在写入返回之后才响应对端或确认日志;
+ * 写入失败时抛出异常, 节点不再继续处理当前消息
+ *
+ * @author Zjianru
+ */
+public interface RaftStorage {
+
+    /**
+     * 启动时加载的持久化状态
+     *
+     * @param term          当前任期
+     * @param votedFor      当前任期投票给的节点, 未投票时为 null
+     * @param snapshotIndex 快照包含的最后一条日志的索引, 没有快照时为 0
+     * @param snapshotTerm  快照包含的最后一条日志的任期
+     * @param snapshot      状态机快照, 没有快照时为 null
+     * @param entries       快照之后的日志条目, 索引连续
+     */
+    record State(long term, String votedFor, long snapshotIndex, long snapshotTerm, byte[] snapshot,
+                 List<LogEntry> entries) {
+    }
+
+    /**
+     * 加载持久化状态, 节点启动时调用一次, 之后才能调用其他方法
+     *
+     * @return 持久化状态, 首次启动时任期为 0 且没有日志
+     */
+    State load();
+
+    /**
+     * 保存任期与投票
+     *
+     * @param term     任期
+     * @param votedFor 投票给的节点, 未投票时为 null
+     */
+    void saveHardState(long term, String votedFor);
+
+    /**
+     * 在日志末尾追加条目
+     *
+     * @param entries 索引紧接当前最后一条日志的条目
+     */
+    void append(List<LogEntry> entries);
+
+    /**
+     * 删除给定索引及其之后的日志
+     *
+     * @param index 第一条被删除的日志索引, 大于快照索引
+     */
+    void truncateFrom(long index);
+
+    /**
+     * 保存快照并用其替换此前的日志
+     *
+     * @param index    快照包含的最后一条日志的索引
+     * @param term     该日志的任期
+     * @param snapshot 状态机快照
+     * @param retained 快照之后保留的日志条目
+     */
+    void saveSnapshot(long index, long term, byte[] snapshot, List<LogEntry> retained);
+}
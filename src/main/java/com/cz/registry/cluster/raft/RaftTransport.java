@@ -0,0 +1,18 @@
+package com.cz.registry.cluster.raft;
+
+/**
+ * raft 消息发送
+ * 发送是尽力而为的, 消息可能丢失、重复或乱序, 由 raft 协议本身保证正确性
+ *
+ * @author Zjianru
+ */
+@FunctionalInterface
+public interface RaftTransport {
+
+    /**
+     * 发送消息给 {@link RaftMessage#getTo()} 指定的节点, 不等待对方处理
+     *
+     * @param message 消息
+     */
+    void send(RaftMessage message);
+}
@@ -0,0 +1,87 @@
+package com.cz.registry.cluster.raft;
+
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.meta.InstanceChanges;
+import com.cz.registry.service.DefaultRegistryService;
+import com.cz.registry.service.impl.CzRegistryService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * 以本节点的注册表作为 raft 状态机
+ * 已提交的实例变更直接应用到注册表; 快照即注册表的快照流, 格式见 {@link DefaultRegistryService#writeSnapshot}
+ *
+ * @author Zjianru
+ */
+public class RegistryStateMachine implements RaftStateMachine {
+
+    private final CzRegistryService local = new CzRegistryService();
+
+    /**
+     * 应用实例变更, 通过比较应用前后的版本号得到实例列表实际发生变化的服务;
+     * 注册表的所有变更都经由 raft 在当前线程中应用, 因此前后版本号之间没有其他变更
+     *
+     * @param entry 日志条目
+     * @return {@link Applied}
+     */
+    @Override
+    public Object apply(LogEntry entry) {
+        InstanceChanges changes = entry.getCommand();
+        Set<String> services = new LinkedHashSet<>();
+        if (changes.getRegister() != null) {
+            services.addAll(changes.getRegister().keySet());
+        }
+        if (changes.getUnregister() != null) {
+            services.addAll(changes.getUnregister().keySet());
+        }
+        Map<String, Long> before = local.versions(services.toArray(String[]::new));
+        Map<String, Long> versions = local.apply(changes);
+        Set<String> changed = new HashSet<>();
+        versions.forEach((service, version) -> {
+            if (!Objects.equals(before.get(service), version)) {
+                changed.add(service);
+            }
+        });
+        return new Applied(versions, changed);
+    }
+
+    @Override
+    public byte[] snapshot() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            DefaultRegistryService.writeSnapshot(out);
+        } catch (IOException e) {
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void restore(byte[] snapshot) {
+        try {
+            DefaultRegistryService.reset(new ByteArrayInputStream(snapshot));
+        } catch (IOException e) {
+            throw new RegistryException(e, ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+        // 快照中的心跳时间戳可能早已过期, 与预写日志恢复一样从当前时间重新计时
+        long now = System.currentTimeMillis();
+        DefaultRegistryService.heartbeats().forEach(heartbeat -> heartbeat.renew(now));
+    }
+
+    /**
+     * 实例变更的应用结果
+     *
+     * @param versions 涉及的所有服务变更后的版本号, 同 {@link DefaultRegistryService#apply}
+     * @param changed  实例列表实际发生变化的服务
+     */
+    public record Applied(Map<String, Long> versions, Set<String> changed) {
+    }
+}
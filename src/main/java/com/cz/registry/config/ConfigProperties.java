@@ -3,7 +3,10 @@ package com.cz.registry.config;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * code desc
@@ -14,4 +17,163 @@ import java.util.List;
 @ConfigurationProperties(prefix = "registry")
 public class ConfigProperties {
     private List<String> servers;
+
+    /**
+     * 实例心跳超时时间, 单位毫秒, 超过该时间未续约的实例将被注销
+     */
+    private long instanceTimeout = 20 * 1000L;
+
+    /**
+     * 按服务单独配置的心跳超时时间, 单位毫秒
+     * key->service name
+     * value->timeout
+     */
+    private Map<String, Long> serviceTimeouts = new HashMap<>();
+
+    /**
+     * 过期检测的时间精度, 单位毫秒
+     */
+    private long expiryTick = 1000L;
+
+    /**
+     * 从节点读取请求等待数据追上一致性要求的最长时间, 单位毫秒, 超时后请求失败
+     */
+    private long readWaitTimeout = 1000L;
+
+    /**
+     * 集群内部通信方式
+     * http->每个请求一次 http 调用, 以 json 编码
+     * binary->节点之间保持 tcp 长连接, 请求分帧复用同一连接, 以 JSONB 编码; 写请求转发与全量快照仍使用 http
+     */
+    private String transport = "http";
+
+    /**
+     * binary 通信端口相对 http 端口的偏移, 集群内各节点必须一致
+     */
+    private int binaryPortOffset = 1000;
+
+    /**
+     * 集群内部通信的默认连接、读、写超时时间, 单位毫秒
+     */
+    private long rpcTimeout = 5000L;
+
+    /**
+     * 探测其他注册中心服务器健康状态的截止时间, 单位毫秒
+     */
+    private long probeTimeout = 1000L;
+
+    /**
+     * 从主服务器下载全量快照的截止时间, 单位毫秒
+     */
+    private long snapshotTimeout = 60 * 1000L;
+
+    /**
+     * 幂等请求超过该时长未响应时发出一次对冲请求, 单位毫秒, 为 0 时不对冲
+     */
+    private long hedgeDelay = 200L;
+
+    /**
+     * 判定注册中心服务器下线的 phi 阈值, 探测失败且怀疑程度超过该值时才标记为下线
+     */
+    private double phiThreshold = 8.0;
+
+    /**
+     * phi 故障检测记录的最近探测间隔数
+     */
+    private int phiWindowSize = 100;
+
+    /**
+     * phi 故障检测的标准差下限, 单位毫秒
+     */
+    private long phiMinStdDeviation = 500L;
+
+    /**
+     * phi 故障检测可接受的停顿时长, 单位毫秒, 计入探测间隔的均值
+     * 默认为 0: 第一次失败的探测发生在均值附近, phi 仍低于阈值; 下一个周期再次失败时超过阈值, 即连续错过两次探测判定下线
+     */
+    private long phiAcceptablePause = 0L;
+
+    /**
+     * 数据目录, 注册表的预写日志与检查点写在该目录下; 为空时不持久化, 重启后从其他节点重新同步
+     * 共识方式为 raft 时必须配置, 只在其下的 raft 目录保存 raft 的任期、日志与快照, 不写注册表的预写日志
+     */
+    private String dataDir = "";
+
+    /**
+     * 预写日志是否开启组提交: 并发的写请求共用一次 fsync; 关闭时每条变更单独 fsync
+     */
+    private boolean walGroupCommit = true;
+
+    /**
+     * 预写日志段超过该字节数时立即写出检查点
+     */
+    private long walSegmentSize = 64 * 1024 * 1024L;
+
+    /**
+     * 写出检查点的周期, 单位毫秒
+     */
+    private long checkpointInterval = 60 * 1000L;
+
+    /**
+     * 注册表的内存映射镜像文件, 重启时直接从中恢复注册表; 为空时不开启。与预写日志同时开启时以预写日志为准;
+     * 共识方式为 raft 时不可配置
+     */
+    private String stateFile = "";
+
+    /**
+     * 心跳时间戳写入镜像文件并刷盘的周期, 单位毫秒
+     */
+    private long stateFileSyncInterval = 1000L;
+
+    /**
+     * 镜像文件新建时的槽位数量, 每个服务、每个服务实例注册各占一个 512 字节的槽位, 用尽时翻倍
+     */
+    private int stateFileSlots = 4096;
+
+    /**
+     * 同一实例注册到多个服务时是否共享同一个实例对象, 共享对象的字符串经过驻留, 参数表不可变
+     */
+    private boolean internInstances = true;
+
+    /**
+     * 建立倒排索引的实例参数名, 例如 zone、version、canary; 按这些参数查询时只校验参数值对应的实例
+     */
+    private List<String> indexedParams = new ArrayList<>();
+
+    /**
+     * 服务端加权选择实例时读取权重的实例参数名, 参数缺失或无法解析时权重为 1
+     */
+    private String weightParam = "weight";
+
+    /**
+     * 集群共识方式
+     * simple->各节点按探测结果选出 hashCode 最小的节点为主节点, 主节点异步同步给从节点
+     * raft->raft 选主, 实例变更在多数节点确认后才返回; 要求 servers 包含当前节点, 并配置 dataDir
+     */
+    private String consensus = "simple";
+
+    /**
+     * raft 的时间精度, 单位毫秒
+     */
+    private long raftTick = 50L;
+
+    /**
+     * raft 选举超时的最小 tick 数, 实际超时在其 1 到 2 倍之间随机
+     */
+    private int raftElectionTicks = 10;
+
+    /**
+     * raft 领导者心跳间隔 tick 数
+     */
+    private int raftHeartbeatTicks = 2;
+
+    /**
+     * raft 提议等待多数节点确认的最长时间, 单位毫秒
+     */
+    private long raftProposeTimeout = 5000L;
+
+    /**
+     * raft 已应用的日志超过该条数时压缩为快照, 为 0 时不压缩
+     */
+    private int raftSnapshotEntries = 10000;
 }
@@ -1,15 +1,29 @@
 package com.cz.registry.config;
 
 import com.cz.registry.cluster.Cluster;
+import com.cz.registry.cluster.ReadConsistency;
+import com.cz.registry.cluster.raft.RaftRegistryService;
 import com.cz.registry.cluster.connect.Channel;
+import com.cz.registry.cluster.connect.impl.BinaryCall;
 import com.cz.registry.cluster.connect.impl.HttpCall;
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
 import com.cz.registry.health.CzHealthChecker;
 import com.cz.registry.health.HealthChecker;
+import com.cz.registry.service.DefaultRegistryService;
 import com.cz.registry.service.RegistryService;
 import com.cz.registry.service.impl.CzRegistryService;
+import com.cz.registry.service.store.MappedStateFile;
+import com.cz.registry.service.store.WriteAheadLog;
+import com.cz.registry.trigger.binary.BinaryEndpoint;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
 
 /**
  * config all bean for registry when application start
@@ -21,38 +35,131 @@ public class InitConfig {
 
     /**
      * create registry service
+     * 共识方式为 raft 时, 实例变更先提交给 raft 再在本地应用
      *
+     * @param cluster          registry cluster
+     * @param configProperties config properties
      * @return RegistryService
      */
     @Bean
-    RegistryService registryService() {
-        return new CzRegistryService();
+    RegistryService registryService(@Autowired Cluster cluster, @Autowired ConfigProperties configProperties) {
+        DefaultRegistryService.setInterning(configProperties.isInternInstances());
+        DefaultRegistryService.setIndexedParams(configProperties.getIndexedParams());
+        DefaultRegistryService.setWeightParam(configProperties.getWeightParam());
+        RegistryService local = new CzRegistryService();
+        return cluster.getRaft() == null ? local : new RaftRegistryService(local, cluster.getRaft());
     }
 
     /**
      * autowire healthChecker
      *
-     * @param registryService registry service implementation
+     * @param registryService  registry service implementation
+     * @param configProperties config properties
+     * @param cluster          registry cluster
      * @return HealthChecker
      */
     @Bean(initMethod = "start", destroyMethod = "stop")
-    HealthChecker healthChecker(@Autowired RegistryService registryService) {
-        return new CzHealthChecker(registryService);
+    HealthChecker healthChecker(@Autowired RegistryService registryService, @Autowired ConfigProperties configProperties,
+                                @Autowired Cluster cluster) {
+        return new CzHealthChecker(registryService, configProperties, cluster);
     }
+
+    /**
+     * autowire channel
+     *
+     * @param configProperties config properties
+     * @return Channel
+     */
     @Bean
-    Channel channel() {
-        return new HttpCall(5000);
+    Channel channel(@Autowired ConfigProperties configProperties) {
+        HttpCall http = new HttpCall(configProperties.getRpcTimeout(), configProperties.getHedgeDelay());
+        if ("binary".equals(configProperties.getTransport())) {
+            return new BinaryCall(http, configProperties.getRpcTimeout(), configProperties.getBinaryPortOffset());
+        }
+        return http;
+    }
+
+    /**
+     * autowire binary endpoint, 集群通信方式为 binary 时监听
+     *
+     * @param cluster          registry cluster
+     * @param configProperties config properties
+     * @return BinaryEndpoint
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public BinaryEndpoint binaryEndpoint(@Autowired Cluster cluster, @Autowired ConfigProperties configProperties) {
+        return new BinaryEndpoint(cluster, configProperties);
+    }
+
+    /**
+     * autowire mapped state file, 配置了镜像文件时先从中恢复注册表, 再开启镜像
+     * 共识方式为 raft 时注册表由 raft 快照与日志恢复, 不能再从镜像恢复
+     *
+     * @param configProperties config properties
+     * @return MappedStateFile
+     * @throws IOException 映射失败
+     */
+    @Bean(destroyMethod = "close")
+    public MappedStateFile mappedStateFile(@Autowired ConfigProperties configProperties) throws IOException {
+        if (isRaft(configProperties) && StringUtils.hasText(configProperties.getStateFile())) {
+            throw new RegistryException("consensus raft restores registry from raft snapshot, remove registry.stateFile",
+                    ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+        MappedStateFile file = new MappedStateFile(Path.of(configProperties.getStateFile()),
+                configProperties.getStateFileSlots());
+        if (StringUtils.hasText(configProperties.getStateFile())) {
+            DefaultRegistryService.map(file, configProperties.getStateFileSyncInterval());
+        }
+        return file;
+    }
+
+    /**
+     * autowire write-ahead log, 配置了数据目录时先从中恢复注册表, 再开启持久化
+     * 在镜像文件之后恢复, 两者同时开启时以预写日志为准
+     * 共识方式为 raft 时数据目录只保存 raft 的任期、日志与快照, 注册表由 raft 恢复, 不开启预写日志,
+     * 否则 raft 日志会在预写日志恢复出的注册表上再重放一遍
+     *
+     * @param configProperties config properties
+     * @return WriteAheadLog
+     * @throws IOException 恢复失败
+     */
+    @DependsOn("mappedStateFile")
+    @Bean(destroyMethod = "close")
+    public WriteAheadLog writeAheadLog(@Autowired ConfigProperties configProperties) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(Path.of(configProperties.getDataDir()),
+                configProperties.isWalGroupCommit(), configProperties.getWalSegmentSize());
+        if (StringUtils.hasText(configProperties.getDataDir()) && !isRaft(configProperties)) {
+            DefaultRegistryService.recover(wal, configProperties.getCheckpointInterval());
+        }
+        return wal;
     }
 
     /**
-     * autowire cluster
+     * autowire cluster, 在恢复注册表之后开始同步
      *
      * @param configProperties config properties
      * @return Cluster
      */
+    @DependsOn("writeAheadLog")
     @Bean(initMethod = "init")
     public Cluster cluster(@Autowired ConfigProperties configProperties, @Autowired Channel channel) {
         return new Cluster(configProperties, channel);
     }
 
+    private static boolean isRaft(ConfigProperties configProperties) {
+        return "raft".equals(configProperties.getConsensus());
+    }
+
+    /**
+     * autowire read consistency
+     *
+     * @param cluster          registry cluster
+     * @param configProperties config properties
+     * @return ReadConsistency
+     */
+    @Bean
+    public ReadConsistency readConsistency(@Autowired Cluster cluster, @Autowired ConfigProperties configProperties) {
+        return new ReadConsistency(cluster, configProperties);
+    }
+
 }
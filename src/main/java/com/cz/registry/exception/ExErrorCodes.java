@@ -17,6 +17,7 @@ public enum ExErrorCodes {
     REGISTER_CENTER_ERROR("X", "005", "register center error"),
     INVOKER_ERROR("X", "005", "invoker error"),
     TPS_EXCEED_LIMIT("X", "006", "tps exceed limit"),
+    STALE_READ("X", "007", "read consistency not satisfied"),
 
     UNKNOWN_ERROR("Z", "001", "unknown error"),
 
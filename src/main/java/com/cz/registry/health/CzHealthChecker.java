@@ -1,5 +1,7 @@
 package com.cz.registry.health;
 
+import com.cz.registry.cluster.Cluster;
+import com.cz.registry.config.ConfigProperties;
 import com.cz.registry.service.RegistryService;
 
 /**
@@ -8,7 +10,7 @@ import com.cz.registry.service.RegistryService;
  * @author Zjianru
  */
 public class CzHealthChecker extends DefaultHealthChecker{
-    public CzHealthChecker(RegistryService registryService) {
-        super(registryService);
+    public CzHealthChecker(RegistryService registryService, ConfigProperties configProperties, Cluster cluster) {
+        super(registryService, configProperties, cluster);
     }
 }
@@ -1,53 +1,147 @@
 package com.cz.registry.health;
 
-import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.cluster.Cluster;
+import com.cz.registry.config.ConfigProperties;
+import com.cz.registry.meta.InstanceChanges;
 import com.cz.registry.service.DefaultRegistryService;
 import com.cz.registry.service.RegistryService;
+import com.cz.registry.service.store.Heartbeat;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
- * code desc
+ * 基于时间轮的实例过期检测
+ * 心跳记录首次出现时放入时间轮, 续约只更新时间戳; 每次推进只处理到期的条目
+ * 一次推进中过期的实例合并为一次实例变更注销, raft 共识下每次推进至多提交一条日志
  *
  * @author Zjianru
  */
 @Slf4j
 public abstract class DefaultHealthChecker implements HealthChecker {
 
+    /**
+     * 时间轮槽位数量
+     */
+    static final int WHEEL_SIZE = 512;
+
     final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
 
     RegistryService registryService;
 
-    public DefaultHealthChecker(RegistryService registryService) {
+    ConfigProperties configProperties;
+
+    Cluster cluster;
+
+    ExpiryWheel<Heartbeat> wheel;
+
+    /**
+     * 本次推进中判定过期、等待统一注销的心跳记录, 仅检测线程访问
+     */
+    final List<Heartbeat> expired = new ArrayList<>();
+
+    public DefaultHealthChecker(RegistryService registryService, ConfigProperties configProperties, Cluster cluster) {
         this.registryService = registryService;
+        this.configProperties = configProperties;
+        this.cluster = cluster;
     }
 
-    Long timeOut = 20 * 1000L;
     @Override
     public void start() {
+        long tick = configProperties.getExpiryTick();
+        wheel = new ExpiryWheel<>(tick, WHEEL_SIZE, System.currentTimeMillis());
+        // 心跳记录首次出现时放入时间轮, 启动前已恢复的心跳记录直接放入
+        DefaultRegistryService.addHeartbeatListener(heartbeat ->
+                wheel.schedule(heartbeat, heartbeat.getTimestamp() + timeOut(heartbeat.getService())));
+        DefaultRegistryService.heartbeats().forEach(heartbeat ->
+                wheel.schedule(heartbeat, heartbeat.getTimestamp() + timeOut(heartbeat.getService())));
         executor.scheduleWithFixedDelay(
                 () -> {
-                    log.info("czRegistry==> health checker running ");
-                    long now = System.currentTimeMillis();
-                    Map<String, Long> timestamps = DefaultRegistryService.getAllTimestamps();
-                    timestamps.keySet().forEach(serviceAndInstance -> {
-                        Long timestamp = timestamps.get(serviceAndInstance);
-                        if (now - timestamp > timeOut) {
-                            log.info("czRegistry==> serviceAndInstance {} is dead", serviceAndInstance);
-                            int index = serviceAndInstance.indexOf("@");
-                            String service = serviceAndInstance.substring(0, index);
-                            String instanceUtl = serviceAndInstance.substring(index + 1);
-                            InstanceMeta instance = InstanceMeta.fromUrl(instanceUtl);
-                            registryService.unregister(service, instance);
-                            DefaultRegistryService.removeTimestamp(serviceAndInstance);
-                        }
-                    });
+                    try {
+                        wheel.advance(System.currentTimeMillis(), this::expire);
+                        unregisterExpired();
+                        log.debug("czRegistry==> health checker running, tracking {} heartbeats", wheel.size());
+                    } catch (Exception e) {
+                        log.error("czRegistry==> health checker failed", e);
+                    }
                 },
-                10, 10, TimeUnit.SECONDS);
+                tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 处理到期的心跳记录
+     * 已过期的心跳记录先加入待注销列表, 并在一个 tick 后再次到期: 注销成功时届时心跳记录已失效,
+     * 注销失败时再次判定过期并重试
+     *
+     * @param heartbeat 到期的心跳记录
+     * @return 仍然存活或等待注销时返回新的到期时间, 已注销或心跳记录已失效时返回 {@link ExpiryWheel#DONE}
+     */
+    long expire(Heartbeat heartbeat) {
+        if (!DefaultRegistryService.isAlive(heartbeat)) {
+            return ExpiryWheel.DONE;
+        }
+        // 从节点的实例变更全部来自主节点的变更日志, 过期由主节点判定; 这里只顺延心跳, 切换为主节点后留出一个完整的续约周期
+        if (!cluster.self().isMaster()) {
+            long now = System.currentTimeMillis();
+            heartbeat.renew(now);
+            return now + timeOut(heartbeat.getService());
+        }
+        long now = System.currentTimeMillis();
+        long deadline = heartbeat.getTimestamp() + timeOut(heartbeat.getService());
+        if (deadline > now) {
+            return deadline;
+        }
+        expired.add(heartbeat);
+        return now + configProperties.getExpiryTick();
+    }
+
+    /**
+     * 以一次实例变更注销本次推进中过期的实例
+     * 注销失败时保留心跳记录, 这些实例在下一个 tick 再次到期时重试
+     */
+    void unregisterExpired() {
+        if (expired.isEmpty()) {
+            return;
+        }
+        InstanceChanges changes = new InstanceChanges();
+        long now = System.currentTimeMillis();
+        List<Heartbeat> batch = new ArrayList<>(expired.size());
+        for (Heartbeat heartbeat : expired) {
+            // 判定过期之后又续约的实例不再注销
+            if (heartbeat.getTimestamp() + timeOut(heartbeat.getService()) <= now) {
+                changes.getUnregister().computeIfAbsent(heartbeat.getService(), k -> new ArrayList<>())
+                        .add(heartbeat.getInstance());
+                batch.add(heartbeat);
+            }
+        }
+        expired.clear();
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            registryService.apply(changes);
+        } catch (Exception e) {
+            log.warn("czRegistry==> unregister {} expired instances failed, retry on next tick", batch.size(), e);
+            return;
+        }
+        batch.forEach(heartbeat -> {
+            log.info("czRegistry==> serviceAndInstance {} is dead", heartbeat.getKey());
+            DefaultRegistryService.removeHeartbeat(heartbeat);
+        });
+    }
+
+    /**
+     * 获取服务的心跳超时时间
+     *
+     * @param service 服务名称
+     * @return 超时时间, 单位毫秒
+     */
+    long timeOut(String service) {
+        return configProperties.getServiceTimeouts().getOrDefault(service, configProperties.getInstanceTimeout());
     }
 
     @Override
@@ -0,0 +1,159 @@
+package com.cz.registry.health;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * 哈希时间轮, 用于实例过期检测
+ * 每个条目按到期时间放入对应的槽位, 每次推进只处理到期槽位中的条目, 而不是扫描全部实例
+ * 心跳续约不会触碰时间轮, 条目到期时再根据最新时间戳决定过期还是重新放入时间轮
+ * <p>
+ * {@link #schedule} 可由任意线程调用, {@link #advance} 只能由单个线程调用
+ *
+ * @param <T> 条目类型
+ * @author Zjianru
+ */
+public class ExpiryWheel<T> {
+
+    /**
+     * 到期回调返回该值表示条目已结束, 不再放回时间轮
+     */
+    public static final long DONE = -1L;
+
+    /**
+     * 每个槽位代表的时长, 单位毫秒
+     */
+    private final long tickMillis;
+
+    private final Deque<Node<T>>[] buckets;
+
+    private final int mask;
+
+    /**
+     * 最近一次处理完成的绝对槽位序号
+     */
+    private long lastTick;
+
+    /**
+     * 时间轮中的条目数量, 仅推进线程访问
+     */
+    private int size;
+
+    /**
+     * 待放入时间轮的条目, 由推进线程统一放入
+     */
+    private final Queue<Node<T>> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 单个槽位中到期条目的暂存, 仅推进线程访问
+     */
+    private final List<Node<T>> due = new ArrayList<>();
+
+    /**
+     * 创建时间轮
+     *
+     * @param tickMillis 每个槽位代表的时长, 单位毫秒
+     * @param size       槽位数量, 会向上取整为 2 的幂
+     * @param now        当前时间戳
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(long tickMillis, int size, long now) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.buckets = new Deque[capacity];
+        for (int i = 0; i < capacity; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = capacity - 1;
+        this.lastTick = now / tickMillis;
+    }
+
+    /**
+     * 登记一个条目, 线程安全
+     *
+     * @param item     条目
+     * @param deadline 初始到期时间
+     */
+    public void schedule(T item, long deadline) {
+        pending.offer(new Node<>(item, deadline));
+    }
+
+    /**
+     * 推进时间轮到给定时间, 依次处理到期的条目
+     *
+     * @param now   当前时间戳
+     * @param onDue 到期回调, 返回条目的下一个到期时间, 返回 {@link #DONE} 表示条目已结束
+     */
+    public void advance(long now, ToLongFunction<T> onDue) {
+        // 1. 放入新登记的条目
+        Node<T> added;
+        while ((added = pending.poll()) != null) {
+            insert(added, added.targetTick, lastTick);
+            size++;
+        }
+        // 2. 依次处理到期的槽位, 停顿过久时每个槽位最多处理一次
+        long nowTick = now / tickMillis;
+        long from = Math.max(lastTick + 1, nowTick - mask);
+        for (long tick = from; tick <= nowTick; tick++) {
+            // 先取出槽位中到期的条目, 未到期的条目属于之后的轮次, 留在槽位中
+            Iterator<Node<T>> iterator = buckets[(int) (tick & mask)].iterator();
+            while (iterator.hasNext()) {
+                Node<T> node = iterator.next();
+                if (node.targetTick <= tick) {
+                    iterator.remove();
+                    due.add(node);
+                }
+            }
+            for (Node<T> node : due) {
+                long next = onDue.applyAsLong(node.item);
+                if (next == DONE) {
+                    size--;
+                } else {
+                    insert(node, next, tick);
+                }
+            }
+            due.clear();
+        }
+        lastTick = Math.max(lastTick, nowTick);
+    }
+
+    /**
+     * 时间轮中的条目数量, 不含尚未放入的条目
+     *
+     * @return 条目数量
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 按到期时间放入槽位, 向上取整保证不会提前到期, 且至少放到当前槽位之后
+     */
+    private void insert(Node<T> node, long deadline, long currentTick) {
+        long target = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+        node.targetTick = target;
+        buckets[(int) (target & mask)].addLast(node);
+    }
+
+    /**
+     * 时间轮中的节点, 重新放入时间轮时复用
+     */
+    private static final class Node<T> {
+        private final T item;
+        /**
+         * 登记时为初始到期时间, 放入槽位后为目标槽位序号
+         */
+        private long targetTick;
+
+        Node(T item, long deadline) {
+            this.item = item;
+            this.targetTick = deadline;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.cz.registry.meta;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 单次版本变化对应的实例变更
+ * 注册中心全局版本号每递增一次, 对应一条变更记录, 注册中心集群主从同步时按版本号增量传递
+ *
+ * @author Zjianru
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChangeRecord {
+
+    /**
+     * 变更后的全局版本号, 同时也是该服务的新版本号
+     */
+    private long version;
+
+    /**
+     * 服务名称
+     */
+    private String service;
+
+    /**
+     * 变更时间戳
+     */
+    private long timestamp;
+
+    /**
+     * 新增的实例
+     */
+    private List<InstanceMeta> added;
+
+    /**
+     * 移除的实例
+     */
+    private List<InstanceMeta> removed;
+}
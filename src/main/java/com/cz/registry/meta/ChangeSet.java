@@ -0,0 +1,34 @@
+package com.cz.registry.meta;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 某个版本之后的增量变更
+ * 注册中心集群主从同步时传递, 请求的版本已超出变更日志范围时需要改为全量快照同步
+ *
+ * @author Zjianru
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChangeSet {
+
+    /**
+     * 请求的版本已超出变更日志范围, 需要全量同步
+     */
+    private boolean full;
+
+    /**
+     * 返回的变更中最大的版本号, 没有变更时为请求的版本号
+     */
+    private long version;
+
+    /**
+     * 按版本号升序排列的变更记录
+     */
+    private List<ChangeRecord> changes;
+}
@@ -0,0 +1,35 @@
+package com.cz.registry.meta;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量注册 / 注销的实例变更
+ * 同一服务下的所有变更一次性生效, 且最多产生一次版本变化
+ *
+ * @author Zjianru
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class InstanceChanges {
+
+    /**
+     * 需要注册的实例
+     * key->service name
+     * value->instance list
+     */
+    private Map<String, List<InstanceMeta>> register = new HashMap<>();
+
+    /**
+     * 需要注销的实例
+     * key->service name
+     * value->instance list
+     */
+    private Map<String, List<InstanceMeta>> unregister = new HashMap<>();
+}
@@ -0,0 +1,29 @@
+package com.cz.registry.meta;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 批量心跳中的单个条目
+ * 一个实例及其需要续约的服务列表
+ *
+ * @author Zjianru
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class InstanceRenewal {
+
+    /**
+     * 服务实例
+     */
+    private InstanceMeta instance;
+
+    /**
+     * 需要续约的服务名称
+     */
+    private List<String> services;
+}
@@ -0,0 +1,43 @@
+package com.cz.registry.meta;
+
+import com.cz.registry.exception.RegistryException;
+
+import java.util.Locale;
+
+/**
+ * 服务端选择实例的策略
+ *
+ * @author Zjianru
+ */
+public enum SelectStrategy {
+    /**
+     * 轮询, 依次返回后续的实例
+     */
+    ROUND_ROBIN,
+    /**
+     * 加权随机, 权重取自实例的附加参数
+     */
+    WEIGHTED,
+    /**
+     * 按客户端标识一致性哈希, 同一标识在实例不变时总是得到相同的实例
+     */
+    HASH,
+    /**
+     * 最久未分配, 优先返回最长时间没有被任何策略返回过的实例
+     */
+    LEAST_RECENT;
+
+    /**
+     * 按名称解析策略, 不区分大小写, 可以使用 '-' 代替 '_'
+     *
+     * @param name 策略名称
+     * @return 选择策略
+     */
+    public static SelectStrategy of(String name) {
+        try {
+            return valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new RegistryException("unknown select strategy " + name);
+        }
+    }
+}
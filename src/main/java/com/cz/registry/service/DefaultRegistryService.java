@@ -1,19 +1,45 @@
 package com.cz.registry.service;
 
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.meta.ChangeRecord;
+import com.cz.registry.meta.ChangeSet;
+import com.cz.registry.meta.InstanceChanges;
 import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.InstanceRenewal;
+import com.cz.registry.meta.SelectStrategy;
 import com.cz.registry.meta.Snapshot;
 import com.cz.registry.meta.VersionInfo;
+import com.cz.registry.service.store.ChangeLog;
+import com.cz.registry.service.store.Heartbeat;
+import com.cz.registry.service.store.HeartbeatKey;
+import com.cz.registry.service.store.InstanceList;
+import com.cz.registry.service.store.InstancePool;
+import com.cz.registry.service.store.MappedStateFile;
+import com.cz.registry.service.store.RegistryState;
+import com.cz.registry.service.store.ServiceInstances;
+import com.cz.registry.service.store.SnapshotReader;
+import com.cz.registry.service.store.SnapshotWriter;
+import com.cz.registry.service.store.WriteAheadLog;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
 
 /**
  * registry service template
@@ -24,107 +50,319 @@ import java.util.stream.Collectors;
 public abstract class DefaultRegistryService implements RegistryService {
 
     /**
-     * 记录已注册的实例信息
-     * key->service name
-     * value->instance list
+     * 注册中心当前状态, 包含实例注册表与心跳记录
+     * 从节点全量同步时整体替换, 读取方每次操作只读取一次该引用
      */
-    final static MultiValueMap<String, InstanceMeta> REGISTRY = new LinkedMultiValueMap<>();
+    static volatile RegistryState STATE = new RegistryState();
 
     /**
-     * 记录版本信息,服务粒度
-     * key->service name
-     * value->version info
+     * 注册中心全局版本号
      */
-    final static Map<String, VersionInfo> VERSIONS = new ConcurrentHashMap<>();
+    final static AtomicLong VERSION = new AtomicLong(0);
 
     /**
-     * 注册中心全局版本号
+     * 变更日志容量, 从节点落后超过该数量的版本时改为全量快照同步
      */
-    final static AtomicLong VERSION = new AtomicLong(0);
+    final static int CHANGE_LOG_SIZE = 16384;
+
+    /**
+     * 单次增量同步最多返回的变更记录数
+     */
+    final static int CHANGE_BATCH_SIZE = 1024;
+
+    /**
+     * 变更日志, 记录每次全局版本号递增对应的实例变更, 供从节点增量同步
+     */
+    final static ChangeLog CHANGE_LOG = new ChangeLog(CHANGE_LOG_SIZE);
+
+    /**
+     * 预写日志, 未开启持久化时为 null
+     */
+    static volatile WriteAheadLog WAL;
+
+    /**
+     * 注册表的内存映射镜像, 未开启时为 null
+     */
+    static volatile MappedStateFile MAPPED;
+
+    /**
+     * 共享的实例对象池, 同一实例注册到多个服务时只保存一份
+     */
+    final static InstancePool INSTANCES = new InstancePool();
+
+    /**
+     * 是否共享实例对象, 关闭时各服务直接保存请求中的实例对象
+     */
+    static volatile boolean INTERNING = true;
+
+    /**
+     * 建立倒排索引的实例参数名, 按这些参数查询时不必遍历服务的所有实例
+     */
+    static volatile Set<String> INDEXED_PARAMS = Set.of();
+
+    /**
+     * 服务端加权选择实例时读取权重的参数名
+     */
+    static volatile String WEIGHT_PARAM = "weight";
+
+    /**
+     * 未开启持久化时的写入结果
+     */
+    private static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
 
     /**
-     * 记录能力信息,接口粒度
-     * key->service and instance url
-     * value->timestamp
+     * 服务版本变化监听者
      */
-    final static Map<String, Long> TIMESTAMPS = new ConcurrentHashMap<>();
+    final static List<VersionListener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    /**
+     * 心跳监听者
+     */
+    final static List<HeartbeatListener> HEARTBEAT_LISTENERS = new CopyOnWriteArrayList<>();
 
     /**
      * 注册服务实例。
+     * 只锁定当前服务的实例集合, 不影响其他服务的读写
      *
      * @param service  服务名称
      * @param instance 待注册的服务实例元数据
      * @return 返回注册的实例元数据
      */
     @Override
-    public synchronized InstanceMeta register(String service, InstanceMeta instance) {
-        // 检查服务实例是否已经存在，若存在则更新状态，不存在则添加到注册表
-        List<InstanceMeta> instances = REGISTRY.get(service);
-        if (instances != null && !instances.isEmpty()) {
+    public InstanceMeta register(String service, InstanceMeta instance) {
+        ServiceInstances instances = STATE.getRegistry().computeIfAbsent(service, ServiceInstances::new);
+        long version;
+        long now;
+        InstanceMeta stored;
+        CompletableFuture<Void> durable;
+        synchronized (instances) {
+            // 检查服务实例是否已经存在，若存在则更新状态，不存在则添加到注册表并发布新版本
+            instance.setStatus(true);
             if (instances.contains(instance)) {
                 log.info("czRegistry===>instance {} already exists", instance.transferToUrl());
-                instance.setStatus(true);
                 return instance;
             }
+            log.info("czRegistry===>register instance {}", instance.transferToUrl());
+            version = VERSION.incrementAndGet();
+            now = System.currentTimeMillis();
+            stored = intern(instance);
+            instances.add(stored, version, now);
+            durable = record(new ChangeRecord(version, service, now, List.of(stored), List.of()));
         }
-        log.info("czRegistry===>register instance {}", instance.transferToUrl());
-        instance.setStatus(true);
-        REGISTRY.add(service, instance);
-        // 更新版本信息并触发重置操作
-        VERSIONS.put(service, new VersionInfo(VERSION.incrementAndGet(), System.currentTimeMillis()));
-        reNew(instance, service);
+        awaitDurable(durable);
+        notifyListeners(service, version);
+        renew(service, stored, now);
         return instance;
     }
 
     /**
      * 注销服务实例。
+     * 只锁定当前服务的实例集合, 不影响其他服务的读写
      *
      * @param service  服务名称
      * @param instance 待注销的服务实例元数据
      * @return 若成功注销返回实例元数据，否则返回null
      */
     @Override
-    public synchronized InstanceMeta unregister(String service, InstanceMeta instance) {
-        List<InstanceMeta> instances = REGISTRY.get(service);
+    public InstanceMeta unregister(String service, InstanceMeta instance) {
+        ServiceInstances instances = STATE.getRegistry().get(service);
         if (instances == null || instances.isEmpty()) {
             return null;
         }
-        boolean removeIf = instances.removeIf(instance::equals);
-        log.info("czRegistry===>unregister instance {}", instance.transferToUrl());
-        instance.setStatus(false);
-        // 更新版本信息并触发重置操作
-        VERSIONS.put(service, new VersionInfo(VERSION.incrementAndGet(), System.currentTimeMillis()));
-        reNew(instance, service);
-        return removeIf ? instance : null;
+        boolean removed;
+        long version;
+        CompletableFuture<Void> durable;
+        synchronized (instances) {
+            // 移除实例并发布新版本
+            version = VERSION.incrementAndGet();
+            long now = System.currentTimeMillis();
+            removed = instances.remove(instance, version, now);
+            durable = record(new ChangeRecord(version, service, now, List.of(), List.of(instance)));
+            log.info("czRegistry===>unregister instance {}", instance.transferToUrl());
+            markOffline(instance);
+        }
+        awaitDurable(durable);
+        notifyListeners(service, version);
+        // 实例已注销, 不再需要心跳记录
+        STATE.getTimestamps().remove(new HeartbeatKey(service, instance));
+        return removed ? instance : null;
+    }
+
+    /**
+     * 批量注册与注销服务实例。
+     * 每个服务的所有变更在该服务的锁内一次性生效, 且最多发布一个新版本;
+     * 不同服务之间分别生效, 互不阻塞。
+     * 同一实例同时出现在注册与注销中时按先注销后注册处理, 结果仍为注册, 因此只保留注册, 已注册的实例不产生新版本。
+     *
+     * @param changes 需要注册与注销的实例, 按服务分组
+     * @return 返回涉及的所有服务变更后的版本号
+     */
+    @Override
+    public Map<String, Long> apply(InstanceChanges changes) {
+        Map<String, List<InstanceMeta>> register = changes.getRegister() == null ? Map.of() : changes.getRegister();
+        Map<String, List<InstanceMeta>> unregister = changes.getUnregister() == null ? Map.of() : changes.getUnregister();
+        Set<String> services = new LinkedHashSet<>(register.keySet());
+        services.addAll(unregister.keySet());
+        long now = System.currentTimeMillis();
+        Map<String, Long> versions = new HashMap<>(services.size());
+        for (String service : services) {
+            List<InstanceMeta> requested = listed(register, service);
+            List<InstanceMeta> removed = listed(unregister, service);
+            if (!requested.isEmpty() && !removed.isEmpty()) {
+                Set<InstanceMeta> registering = new HashSet<>(requested);
+                removed = removed.stream().filter(instance -> !registering.contains(instance)).toList();
+            }
+            requested.forEach(instance -> instance.setStatus(true));
+            List<InstanceMeta> added = intern(requested);
+            ServiceInstances instances = added.isEmpty()
+                    ? STATE.getRegistry().get(service)
+                    : STATE.getRegistry().computeIfAbsent(service, ServiceInstances::new);
+            if (instances == null) {
+                continue;
+            }
+            boolean changed;
+            CompletableFuture<Void> durable = DURABLE;
+            synchronized (instances) {
+                // 只有实例列表发生变化时才分配新版本号
+                changed = instances.apply(added, removed, VERSION::incrementAndGet, now);
+                if (changed) {
+                    durable = record(new ChangeRecord(instances.version(), service, now,
+                            List.copyOf(added), List.copyOf(removed)));
+                }
+            }
+            awaitDurable(durable);
+            Long version = instances.version();
+            if (changed) {
+                log.info("czRegistry===>apply changes of service {}, register {} unregister {}, version {}",
+                        service, added.size(), removed.size(), version);
+                notifyListeners(service, version);
+            }
+            // 注销的实例不再需要心跳记录, 注册的实例开始心跳
+            removed.forEach(instance -> {
+                markOffline(instance);
+                STATE.getTimestamps().remove(new HeartbeatKey(service, instance));
+            });
+            added.forEach(instance -> renew(service, instance, now));
+            versions.put(service, version);
+        }
+        return versions;
     }
 
     /**
      * 获取指定服务的所有实例列表。
+     * 直接返回当前发布的只读列表, 不加锁也不复制
      *
      * @param service 服务名称
      * @return 返回服务实例的列表，如果不存在则返回null
      */
     @Override
     public List<InstanceMeta> fetchAll(String service) {
-        log.info("czRegistry===>fetch all instances of service {}", service);
-        return REGISTRY.get(service);
+        InstanceList instances = current(service);
+        return instances == null ? null : instances.getInstances();
+    }
+
+    /**
+     * 按附加参数查询指定服务的实例。
+     * 条件包含索引参数时只校验该参数值对应的实例, 结果按注册顺序排列
+     *
+     * @param service  服务名称
+     * @param criteria 参数条件
+     * @return 满足条件的实例列表，服务不存在时返回null
+     */
+    @Override
+    public List<InstanceMeta> query(String service, Map<String, String> criteria) {
+        ServiceInstances instances = STATE.getRegistry().get(service);
+        if (instances == null) {
+            return null;
+        }
+        return criteria.isEmpty() ? instances.current().getInstances() : instances.query(criteria, INDEXED_PARAMS);
+    }
+
+    /**
+     * 按服务端策略选择指定服务的若干实例。
+     * 选择结构按服务版本预先计算并缓存, 每次选择的代价只与返回的实例数有关
+     *
+     * @param service  服务名称
+     * @param strategy 选择策略
+     * @param count    需要的实例数
+     * @param key      客户端标识
+     * @return 选中的实例列表，服务不存在时返回null
+     */
+    @Override
+    public List<InstanceMeta> select(String service, SelectStrategy strategy, int count, String key) {
+        ServiceInstances instances = STATE.getRegistry().get(service);
+        if (instances == null) {
+            return null;
+        }
+        return instances.selector(WEIGHT_PARAM).select(strategy, count, key);
     }
 
     /**
      * 更新或刷新服务实例的最新时间戳。
+     * 已有心跳记录时只写入一个 long 时间戳; 只有心跳记录首次出现时才通知心跳监听者
      *
      * @param instance 服务实例元数据
      * @param services 关联的服务名称集合
      */
     @Override
-    public synchronized Map<String, Long> reNew(InstanceMeta instance, String... services) {
+    public Map<String, Long> reNew(InstanceMeta instance, String... services) {
         // 更新每个服务的时间戳信息
+        long now = System.currentTimeMillis();
         for (String service : services) {
-            TIMESTAMPS.put(service + "@" + instance.transferToUrl(), System.currentTimeMillis());
+            renew(service, instance, now);
         }
         return versions(services);
     }
 
+    /**
+     * 批量更新多个实例在多个服务下的时间戳。
+     * 所有条目使用同一个时间戳, 一次遍历完成续约, 并一次性返回涉及的服务版本号
+     *
+     * @param renewals 实例及其需要续约的服务列表
+     * @return 返回涉及的所有服务的版本信息
+     */
+    @Override
+    public Map<String, Long> reNew(List<InstanceRenewal> renewals) {
+        long now = System.currentTimeMillis();
+        Map<String, Long> versions = new HashMap<>();
+        for (InstanceRenewal renewal : renewals) {
+            if (renewal.getInstance() == null || renewal.getServices() == null) {
+                continue;
+            }
+            for (String service : renewal.getServices()) {
+                renew(service, renewal.getInstance(), now);
+                // 与单个续约一致, 不存在的服务也返回, 版本号为 null
+                if (!versions.containsKey(service)) {
+                    versions.put(service, version(service));
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * 续约单个服务实例的心跳, 心跳记录首次出现时通知心跳监听者
+     *
+     * @param service  服务名称
+     * @param instance 服务实例
+     * @param now      心跳时间戳
+     */
+    private static void renew(String service, InstanceMeta instance, long now) {
+        HeartbeatKey key = new HeartbeatKey(service, instance);
+        Heartbeat heartbeat = STATE.getTimestamps().get(key);
+        if (heartbeat != null) {
+            heartbeat.renew(now);
+            return;
+        }
+        Heartbeat created = new Heartbeat(key, instance, now);
+        heartbeat = STATE.getTimestamps().putIfAbsent(key, created);
+        if (heartbeat == null) {
+            notifyHeartbeatListeners(created);
+        } else {
+            heartbeat.renew(now);
+        }
+    }
+
     /**
      * 获取指定服务的当前版本号。
      *
@@ -133,7 +371,8 @@ public abstract class DefaultRegistryService implements RegistryService {
      */
     @Override
     public Long version(String service) {
-        return VERSIONS.get(service).getInstanceVersion();
+        ServiceInstances instances = STATE.getRegistry().get(service);
+        return instances == null ? null : instances.version();
     }
 
     /**
@@ -145,51 +384,118 @@ public abstract class DefaultRegistryService implements RegistryService {
     @Override
     public Map<String, Long> versions(String... service) {
         // 批量获取服务版本号
-        return Arrays.stream(service)
-                .collect(
-                        Collectors.toMap(k -> k, k -> VERSIONS.get(k).getInstanceVersion())
-                );
+        Map<String, Long> versions = new HashMap<>(service.length);
+        for (String name : service) {
+            versions.put(name, version(name));
+        }
+        return versions;
+    }
+
+    /**
+     * 获取指定服务当前发布的实例列表
+     *
+     * @param service 服务名称
+     * @return 当前发布的实例列表，服务不存在时返回null
+     */
+    public static InstanceList current(String service) {
+        ServiceInstances instances = STATE.getRegistry().get(service);
+        return instances == null ? null : instances.current();
+    }
+
+    /**
+     * 判断心跳记录是否仍然有效，即未被注销、过期或被快照替换。
+     *
+     * @param heartbeat 心跳记录
+     * @return 仍然有效返回true
+     */
+    public static boolean isAlive(Heartbeat heartbeat) {
+        return STATE.getTimestamps().get(heartbeat.getKey()) == heartbeat;
     }
 
     /**
-     * 获取所有的时间戳信息。
+     * 移除指定的心跳记录，若该标识已对应新的心跳记录则不移除。
      *
-     * @return 返回一个包含所有服务及其实例时间戳的Map，键为服务和实例的标识符，值为时间戳。
+     * @param heartbeat 心跳记录
      */
-    public static Map<String, Long> getAllTimestamps() {
-        return TIMESTAMPS;
+    public static void removeHeartbeat(Heartbeat heartbeat) {
+        STATE.getTimestamps().remove(heartbeat.getKey(), heartbeat);
     }
 
     /**
-     * 移除指定服务和实例的时间戳。
+     * 获取给定版本之后的增量变更。
      *
-     * @param serviceAndInstance 服务和实例的标识符，格式为"服务名#实例名"。
+     * @param since 起始版本号，不包含。
+     * @return 增量变更，起始版本已超出变更日志范围时标记为需要全量同步。
      */
-    public static synchronized void removeTimestamp(String serviceAndInstance) {
-        TIMESTAMPS.remove(serviceAndInstance);
+    public static ChangeSet changes(long since) {
+        List<ChangeRecord> changes = CHANGE_LOG.since(since, CHANGE_BATCH_SIZE);
+        if (changes == null) {
+            return new ChangeSet(true, VERSION.get(), List.of());
+        }
+        long version = changes.isEmpty() ? since : changes.get(changes.size() - 1).getVersion();
+        return new ChangeSet(false, version, changes);
+    }
+
+    /**
+     * 按顺序应用主节点的增量变更，用于从节点同步。
+     * 应用的变更同样写入本节点的变更日志，以便本节点成为主节点后继续提供增量同步。
+     *
+     * @param changeSet 增量变更
+     * @return 返回应用后的版本号
+     */
+    public static synchronized Long applyChanges(ChangeSet changeSet) {
+        for (ChangeRecord record : changeSet.getChanges()) {
+            String service = record.getService();
+            record.setAdded(intern(record.getAdded()));
+            List<InstanceMeta> added = record.getAdded() == null ? List.of() : record.getAdded();
+            List<InstanceMeta> removed = record.getRemoved() == null ? List.of() : record.getRemoved();
+            ServiceInstances instances = STATE.getRegistry().computeIfAbsent(service, ServiceInstances::new);
+            synchronized (instances) {
+                instances.replay(added, removed, record.getVersion(), record.getTimestamp());
+                // 从节点可以随时从主节点重新同步, 不等待落盘
+                record(record);
+            }
+            VERSION.set(record.getVersion());
+            notifyListeners(service, record.getVersion());
+            // 与主节点保持一致: 注销的实例移除心跳记录, 注册的实例开始心跳
+            long now = System.currentTimeMillis();
+            removed.forEach(instance -> STATE.getTimestamps().remove(new HeartbeatKey(service, instance)));
+            added.forEach(instance -> renew(service, instance, now));
+        }
+        return VERSION.get();
     }
 
     /**
      * 获取当前所有注册服务的快照。
-     * todo 可考虑进行深拷贝优化
+     * 快照版本号取变更日志中已连续发布的版本号, 不大于该版本的变更都已包含在快照中;
+     * 快照中可能还包含更新的变更, 从节点之后增量同步时重复应用这些变更不影响结果
      *
      * @return 返回一个包含当前所有注册服务的快照对象，包括服务实例信息、版本信息和时间戳信息。
      */
     public static synchronized Snapshot snapshot() {
-        // 创建一个新的MultiValueMap来存放服务实例信息，并从REGISTRY中添加所有数据
+        long version = CHANGE_LOG.committed();
+        RegistryState state = STATE;
+        // 复制所有服务当前发布的实例信息与版本信息
         LinkedMultiValueMap<String, InstanceMeta> registry = new LinkedMultiValueMap<>();
-        registry.addAll(REGISTRY);
-        // 创建一个新的HashMap来存放版本信息，并从VERSIONS中复制所有数据
-        Map<String, VersionInfo> versions = new HashMap<>(VERSIONS);
-        // 创建一个新的HashMap来存放时间戳信息，并从TIMESTAMPS中复制所有数据
-        Map<String, Long> timeStamps = new HashMap<>(TIMESTAMPS);
+        Map<String, VersionInfo> versions = new HashMap<>();
+        state.getRegistry().forEach((service, instances) -> {
+            InstanceList current = instances.current();
+            registry.put(service, new ArrayList<>(current.getInstances()));
+            VersionInfo versionInfo = current.toVersionInfo();
+            if (versionInfo != null) {
+                versions.put(service, versionInfo);
+            }
+        });
+        // 创建一个新的HashMap来存放时间戳信息，并按"服务名@实例url"格式复制所有心跳记录
+        Map<String, Long> timeStamps = new HashMap<>(state.getTimestamps().size());
+        state.getTimestamps().forEach((key, heartbeat) -> timeStamps.put(key.toString(), heartbeat.getTimestamp()));
         // 返回一个包含当前所有注册服务信息的SnapShot对象
-        return new Snapshot(registry, versions, VERSION.get(), timeStamps);
+        return new Snapshot(registry, versions, version, timeStamps);
     }
 
     /**
      * 重置内部状态到给定的快照。
-     * 清除当前状态，并从提供的快照中恢复。
+     * 在一个新的状态中恢复快照, 恢复完成后整体替换当前状态, 期间读取方始终读取完整的旧状态。
      *
      * @param snapshot 包含要恢复的状态信息的快照对象。
      * @return 返回快照中的版本号。
@@ -197,38 +503,402 @@ public abstract class DefaultRegistryService implements RegistryService {
     public static synchronized Long reset(Snapshot snapshot) {
         // 日志记录开始重置过程
         log.debug("reset REGISTRY...");
-        // 清除当前注册表并从快照恢复
-        REGISTRY.clear();
-        REGISTRY.addAll(snapshot.getRegistry());
-
-        log.debug("reset VERSIONS...");
-        // 清除当前版本信息并从快照恢复
-        VERSIONS.clear();
-        VERSIONS.putAll(snapshot.getVersions());
+        RegistryState next = new RegistryState();
+        // 从快照恢复实例与版本信息
+        Set<String> services = new HashSet<>(snapshot.getRegistry().keySet());
+        services.addAll(snapshot.getVersions().keySet());
+        services.forEach(service -> {
+            VersionInfo versionInfo = snapshot.getVersions().get(service);
+            InstanceList instances = versionInfo == null
+                    ? InstanceList.of(null, null, intern(snapshot.getRegistry().get(service)))
+                    : InstanceList.of(versionInfo.getInstanceVersion(), versionInfo.getTimeStamp(),
+                    intern(snapshot.getRegistry().get(service)));
+            next.getRegistry().computeIfAbsent(service, ServiceInstances::new).reset(instances);
+        });
 
         log.debug("reset TIMESTAMPS...");
-        // 清除当前时间戳并从快照恢复
-        TIMESTAMPS.clear();
-        TIMESTAMPS.putAll(snapshot.getTimeStamps());
+        // 快照中的心跳标识格式为"服务名@实例url", 仅在此处解析一次
+        snapshot.getTimeStamps().forEach((serviceAndInstance, timestamp) -> {
+            int index = serviceAndInstance.indexOf("@");
+            String service = serviceAndInstance.substring(0, index);
+            InstanceMeta instance = InstanceMeta.fromUrl(serviceAndInstance.substring(index + 1));
+            restoreHeartbeat(next, service, instance, timestamp);
+        });
 
         log.debug("reset VERSION...");
-        // 设置当前版本到快照的版本
-        Long version = snapshot.getVersion();
-        VERSION.set(version);
-
+        Long version = install(next, snapshot.getVersion());
         // 日志记录重置完成
         log.debug("finish RESET...");
         // 返回恢复的版本号
         return version;
     }
 
+    /**
+     * 以流的方式写出当前所有注册服务的快照, 格式见 {@link SnapshotWriter}。
+     * 按服务逐条写出各服务当前发布的实例列表, 不复制整个注册表; 快照版本号的含义与 {@link #snapshot()} 相同。
+     *
+     * @param out 输出流，写出后不关闭
+     * @throws IOException 写出失败
+     */
+    public static void writeSnapshot(OutputStream out) throws IOException {
+        SnapshotWriter writer = new SnapshotWriter(out, CHANGE_LOG.committed());
+        RegistryState state = STATE;
+        for (Map.Entry<String, ServiceInstances> entry : state.getRegistry().entrySet()) {
+            String service = entry.getKey();
+            writer.write(service, entry.getValue().current(), instance -> {
+                Heartbeat heartbeat = state.getTimestamps().get(new HeartbeatKey(service, instance));
+                return heartbeat == null ? SnapshotWriter.NONE : heartbeat.getTimestamp();
+            });
+        }
+        writer.finish();
+    }
+
+    /**
+     * 从快照流重置内部状态, 格式见 {@link SnapshotWriter}。
+     * 边读取边在一个新的状态中恢复各服务, 读取完毕后整体替换当前状态, 期间读取方始终读取完整的旧状态。
+     *
+     * @param in 快照输入流
+     * @return 返回快照中的版本号。
+     * @throws IOException 读取失败或流被截断, 此时当前状态不变, 下次同步会重新全量同步
+     */
+    public static synchronized Long reset(InputStream in) throws IOException {
+        log.debug("reset from snapshot stream...");
+        SnapshotReader reader = new SnapshotReader(in);
+        RegistryState next = new RegistryState();
+        SnapshotReader.ServiceRecord record;
+        while ((record = reader.next()) != null) {
+            String service = record.service();
+            InstanceList read = record.instances();
+            InstanceList instances = INTERNING
+                    ? InstanceList.of(read.getVersion(), read.getTimestamp(), intern(read.getInstances()))
+                    : read;
+            next.getRegistry().computeIfAbsent(service, ServiceInstances::new).reset(instances);
+            List<InstanceMeta> list = instances.getInstances();
+            long[] timestamps = record.heartbeats();
+            for (int i = 0; i < list.size(); i++) {
+                if (timestamps[i] != SnapshotWriter.NONE) {
+                    restoreHeartbeat(next, service, list.get(i), timestamps[i]);
+                }
+            }
+        }
+        Long version = install(next, reader.getVersion());
+        log.debug("finish RESET from snapshot stream, {} services", next.getRegistry().size());
+        return version;
+    }
+
+    /**
+     * 从内存映射镜像恢复注册表并开启镜像, 需在节点开始同步与提供服务之前调用。
+     * 镜像可用时只需顺序扫描一遍槽位; 心跳时间戳已按停机时长顺延, 此前已超时的实例由过期检测照常注销。
+     *
+     * @param file         镜像文件
+     * @param syncInterval 心跳时间戳写入镜像的周期, 单位毫秒
+     * @throws IOException 映射失败
+     */
+    public static synchronized void map(MappedStateFile file, long syncInterval) throws IOException {
+        long start = System.currentTimeMillis();
+        Snapshot snapshot = file.load(start);
+        if (snapshot != null) {
+            reset(snapshot);
+        }
+        MAPPED = file;
+        if (snapshot == null) {
+            file.rewrite(STATE, VERSION.get());
+        }
+        file.start(DefaultRegistryService::heartbeats, syncInterval);
+        log.info("czRegistry===>mapped state file, {} services at version {} in {}ms",
+                STATE.getRegistry().size(), VERSION.get(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 从预写日志恢复注册表并开启持久化, 需在节点开始同步与提供服务之前调用。
+     * 加载最新的检查点, 再重放其后的日志; 宕机期间实例无法续约, 恢复的心跳记录从当前时间重新计时。
+     * 恢复完成后立即写出一个检查点, 使下次启动只需加载检查点。
+     *
+     * @param wal                预写日志
+     * @param checkpointInterval 检查点周期, 单位毫秒
+     * @throws IOException 读取或写出失败
+     */
+    public static synchronized void recover(WriteAheadLog wal, long checkpointInterval) throws IOException {
+        long start = System.currentTimeMillis();
+        long replayed = wal.recover(DefaultRegistryService::reset, DefaultRegistryService::replay);
+        // 检查点版本号只到连续发布的部分, 取各服务版本号中的最大值
+        long version = VERSION.get();
+        for (ServiceInstances instances : STATE.getRegistry().values()) {
+            Long current = instances.version();
+            if (current != null) {
+                version = Math.max(version, current);
+            }
+        }
+        VERSION.set(version);
+        CHANGE_LOG.reset(version);
+        long now = System.currentTimeMillis();
+        STATE.getTimestamps().values().forEach(heartbeat -> heartbeat.renew(now));
+        wal.start(DefaultRegistryService::writeSnapshot, checkpointInterval);
+        WAL = wal;
+        wal.checkpoint();
+        log.info("czRegistry===>recovered {} services at version {}, replayed {} changes in {}ms",
+                STATE.getRegistry().size(), version, replayed, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 重放预写日志中的一条变更记录。
+     * 同一服务的记录按版本顺序写入日志, 版本号不大于服务当前版本的记录已包含在检查点中, 直接跳过。
+     *
+     * @param record 变更记录
+     */
+    private static void replay(ChangeRecord record) {
+        String service = record.getService();
+        ServiceInstances instances = STATE.getRegistry().computeIfAbsent(service, ServiceInstances::new);
+        Long current = instances.version();
+        if (current != null && current >= record.getVersion()) {
+            return;
+        }
+        record.setAdded(intern(record.getAdded()));
+        List<InstanceMeta> added = record.getAdded() == null ? List.of() : record.getAdded();
+        List<InstanceMeta> removed = record.getRemoved() == null ? List.of() : record.getRemoved();
+        instances.replay(added, removed, record.getVersion(), record.getTimestamp());
+        mirror(record);
+        VERSION.accumulateAndGet(record.getVersion(), Math::max);
+        long now = System.currentTimeMillis();
+        removed.forEach(instance -> STATE.getTimestamps().remove(new HeartbeatKey(service, instance)));
+        added.forEach(instance -> renew(service, instance, now));
+    }
+
+    /**
+     * 写入一条变更记录到变更日志, 开启持久化时同时追加到预写日志, 调用方需持有服务的锁。
+     *
+     * @param record 变更记录
+     * @return 记录落盘后完成
+     */
+    private static CompletableFuture<Void> record(ChangeRecord record) {
+        CHANGE_LOG.append(record);
+        mirror(record);
+        WriteAheadLog wal = WAL;
+        return wal == null ? DURABLE : wal.append(record);
+    }
+
+    /**
+     * 获取与给定实例相同的共享对象, 未开启共享时返回实例本身。
+     *
+     * @param instance 服务实例
+     * @return 共享对象
+     */
+    private static InstanceMeta intern(InstanceMeta instance) {
+        return INTERNING ? INSTANCES.intern(instance) : instance;
+    }
+
+    /**
+     * 获取批量变更中某个服务的实例, 服务对应的值为 null 时视为没有实例, 列表中的 null 忽略
+     */
+    private static List<InstanceMeta> listed(Map<String, List<InstanceMeta>> changes, String service) {
+        List<InstanceMeta> instances = changes.get(service);
+        if (instances == null) {
+            return List.of();
+        }
+        // List.of 等不可变列表的 contains(null) 会抛出异常, 因此逐个判断
+        for (InstanceMeta instance : instances) {
+            if (instance == null) {
+                return instances.stream().filter(Objects::nonNull).toList();
+            }
+        }
+        return instances;
+    }
+
+    private static List<InstanceMeta> intern(List<InstanceMeta> instances) {
+        return INTERNING ? INSTANCES.intern(instances) : instances;
+    }
+
+    /**
+     * 注销的实例标记为下线; 共享对象仍被其他服务引用, 不修改。
+     *
+     * @param instance 服务实例
+     */
+    private static void markOffline(InstanceMeta instance) {
+        if (!INTERNING || !INSTANCES.isShared(instance)) {
+            instance.setStatus(false);
+        }
+    }
+
+    /**
+     * 设置是否共享实例对象, 只影响之后写入的实例。
+     *
+     * @param interning 是否共享
+     */
+    public static void setInterning(boolean interning) {
+        INTERNING = interning;
+    }
+
+    /**
+     * 设置建立倒排索引的实例参数名。
+     *
+     * @param params 参数名
+     */
+    public static void setIndexedParams(Collection<String> params) {
+        INDEXED_PARAMS = Set.copyOf(params);
+    }
+
+    /**
+     * 设置加权选择实例时读取权重的参数名, 各服务的选择器在下次选择时按新参数重新生成。
+     *
+     * @param param 参数名
+     */
+    public static void setWeightParam(String param) {
+        WEIGHT_PARAM = param;
+    }
+
+    /**
+     * 把变更记录写入内存映射镜像, 调用方需持有服务的锁。
+     *
+     * @param record 变更记录
+     */
+    private static void mirror(ChangeRecord record) {
+        MappedStateFile mapped = MAPPED;
+        if (mapped != null) {
+            mapped.apply(record);
+        }
+    }
+
+    /**
+     * 在服务的锁之外等待变更记录落盘, fsync 由预写日志的刷盘线程完成, 不阻塞同一服务的其他写请求;
+     * 开启组提交时同一时刻的写请求共用一次 fsync。
+     *
+     * @param durable 记录落盘后完成
+     */
+    private static void awaitDurable(CompletableFuture<Void> durable) {
+        try {
+            durable.join();
+        } catch (CompletionException e) {
+            throw new RegistryException(e.getCause(), ExErrorCodes.REGISTER_CENTER_ERROR);
+        }
+    }
+
+    /**
+     * 获取当前所有心跳记录。
+     *
+     * @return 心跳记录
+     */
+    public static Collection<Heartbeat> heartbeats() {
+        return STATE.getTimestamps().values();
+    }
+
+    /**
+     * 在新的状态中恢复一条心跳记录。
+     * 当前状态中已有的心跳记录直接沿用并更新时间戳, 保留其在时间轮中的位置。
+     *
+     * @param next      正在构建的新状态
+     * @param service   服务名称
+     * @param instance  服务实例
+     * @param timestamp 心跳时间戳
+     */
+    private static void restoreHeartbeat(RegistryState next, String service, InstanceMeta instance, long timestamp) {
+        HeartbeatKey key = new HeartbeatKey(service, instance);
+        Heartbeat heartbeat = STATE.getTimestamps().get(key);
+        if (heartbeat != null) {
+            heartbeat.renew(timestamp);
+        } else {
+            heartbeat = new Heartbeat(key, instance, timestamp);
+        }
+        next.getTimestamps().put(key, heartbeat);
+    }
+
+    /**
+     * 以新的状态整体替换当前状态, 并通知心跳监听者与版本监听者。
+     *
+     * @param next    构建完成的新状态
+     * @param version 新状态对应的版本号
+     * @return 返回新状态的版本号
+     */
+    private static Long install(RegistryState next, Long version) {
+        RegistryState previous = STATE;
+        STATE = next;
+        // 设置当前版本到快照的版本, 变更日志从快照版本重新开始
+        VERSION.set(version);
+        CHANGE_LOG.reset(version);
+        MappedStateFile mapped = MAPPED;
+        if (mapped != null) {
+            mapped.rewrite(next, version);
+        }
+        // 预写日志中的记录不再能描述新状态, 立即以新状态写出检查点
+        WriteAheadLog wal = WAL;
+        if (wal != null) {
+            try {
+                wal.checkpoint();
+            } catch (IOException e) {
+                log.error("czRegistry===>write checkpoint after reset failed", e);
+            }
+        }
+        // 新出现的心跳记录通知心跳监听者, 旧状态中不再存在的心跳记录会在到期时被时间轮丢弃
+        next.getTimestamps().values().forEach(heartbeat -> {
+            if (previous.getTimestamps().get(heartbeat.getKey()) != heartbeat) {
+                notifyHeartbeatListeners(heartbeat);
+            }
+        });
+        // 通知版本发生变化的服务
+        next.getRegistry().forEach((service, instances) -> {
+            Long current = instances.version();
+            ServiceInstances old = previous.getRegistry().get(service);
+            if (current != null && (old == null || !current.equals(old.version()))) {
+                notifyListeners(service, current);
+            }
+        });
+        return version;
+    }
+
+    /**
+     * 添加服务版本变化监听者。
+     *
+     * @param listener 监听者
+     */
+    public static void addListener(VersionListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * 通知所有监听者服务版本发生变化, 单个监听者异常不影响其他监听者及写操作本身。
+     *
+     * @param service 服务名称
+     * @param version 变化后的版本号
+     */
+    static void notifyListeners(String service, Long version) {
+        for (VersionListener listener : LISTENERS) {
+            try {
+                listener.onChange(service, version);
+            } catch (Exception e) {
+                log.warn("czRegistry===>version listener failed for service {}", service, e);
+            }
+        }
+    }
+
+    /**
+     * 添加心跳监听者。
+     *
+     * @param listener 监听者
+     */
+    public static void addHeartbeatListener(HeartbeatListener listener) {
+        HEARTBEAT_LISTENERS.add(listener);
+    }
+
+    /**
+     * 通知所有心跳监听者心跳记录首次出现。
+     *
+     * @param heartbeat 心跳记录
+     */
+    static void notifyHeartbeatListeners(Heartbeat heartbeat) {
+        for (HeartbeatListener listener : HEARTBEAT_LISTENERS) {
+            try {
+                listener.onStart(heartbeat);
+            } catch (Exception e) {
+                log.warn("czRegistry===>heartbeat listener failed for {}", heartbeat.getKey(), e);
+            }
+        }
+    }
 
     /**
      * 获取当前版本的版本号。
      *
      * @return 返回当前版本的版本号。返回值为Long类型，表示版本号的值。
      */
-    public static synchronized Long getVersion() {
+    public static Long getVersion() {
         return VERSION.get();
     }
 }
@@ -0,0 +1,20 @@
+package com.cz.registry.service;
+
+import com.cz.registry.service.store.Heartbeat;
+
+/**
+ * 心跳监听
+ * 某个服务实例的心跳记录首次出现时回调, 后续续约不会回调; 回调在写线程上执行, 实现方不应阻塞
+ *
+ * @author Zjianru
+ */
+@FunctionalInterface
+public interface HeartbeatListener {
+
+    /**
+     * 心跳记录首次出现
+     *
+     * @param heartbeat 心跳记录, 续约时原地更新时间戳
+     */
+    void onStart(Heartbeat heartbeat);
+}
@@ -1,6 +1,9 @@
 package com.cz.registry.service;
 
+import com.cz.registry.meta.InstanceChanges;
 import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.InstanceRenewal;
+import com.cz.registry.meta.SelectStrategy;
 
 import java.util.List;
 import java.util.Map;
@@ -30,6 +33,14 @@ public interface RegistryService {
      */
     InstanceMeta unregister(String service, InstanceMeta instance);
 
+    /**
+     * 批量注册与注销服务实例，每个受影响的服务最多产生一次版本变化。
+     *
+     * @param changes 需要注册与注销的实例，按服务分组。
+     * @return 返回涉及的所有服务变更后的版本号。
+     */
+    Map<String, Long> apply(InstanceChanges changes);
+
     /**
      * 查询指定服务的所有实例。
      *
@@ -38,6 +49,26 @@ public interface RegistryService {
      */
     List<InstanceMeta> fetchAll(String service);
 
+    /**
+     * 按附加参数查询指定服务的实例。
+     *
+     * @param service  要查询的服务名称。
+     * @param criteria 参数条件，参数值按字符串比较，全部满足的实例才返回。
+     * @return 满足条件的实例元数据列表，服务不存在时返回null。
+     */
+    List<InstanceMeta> query(String service, Map<String, String> criteria);
+
+    /**
+     * 按服务端策略为客户端选择指定服务的若干实例，只在上线状态的实例中选择。
+     *
+     * @param service  服务名称。
+     * @param strategy 选择策略。
+     * @param count    需要的实例数，超过可选实例数时返回全部可选实例。
+     * @param key      客户端标识，一致性哈希按该标识选择，其余策略忽略。
+     * @return 选中的实例元数据列表，服务不存在时返回null。
+     */
+    List<InstanceMeta> select(String service, SelectStrategy strategy, int count, String key);
+
     /**
      * 更新实例元数据，并关联指定的服务。
      * 同时会更新实例信息 完成心跳
@@ -48,6 +79,14 @@ public interface RegistryService {
      */
     Map<String, Long> reNew(InstanceMeta instance, String... services);
 
+    /**
+     * 批量更新多个实例在多个服务下的心跳。
+     *
+     * @param renewals 实例及其需要续约的服务列表
+     * @return 返回涉及的所有服务的版本信息
+     */
+    Map<String, Long> reNew(List<InstanceRenewal> renewals);
+
     /**
      * 获取指定服务的当前版本号。
      *
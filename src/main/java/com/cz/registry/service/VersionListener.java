@@ -0,0 +1,19 @@
+package com.cz.registry.service;
+
+/**
+ * 服务版本变化监听
+ * 在服务发布新版本后回调, 回调在写线程上执行, 实现方不应阻塞
+ *
+ * @author Zjianru
+ */
+@FunctionalInterface
+public interface VersionListener {
+
+    /**
+     * 服务版本发生变化
+     *
+     * @param service 服务名称
+     * @param version 变化后的版本号
+     */
+    void onChange(String service, Long version);
+}
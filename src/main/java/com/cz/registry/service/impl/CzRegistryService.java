@@ -1,6 +1,9 @@
 package com.cz.registry.service.impl;
 
+import com.cz.registry.meta.InstanceChanges;
 import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.InstanceRenewal;
+import com.cz.registry.meta.SelectStrategy;
 import com.cz.registry.service.DefaultRegistryService;
 import lombok.extern.slf4j.Slf4j;
 
@@ -22,7 +25,7 @@ public class CzRegistryService extends DefaultRegistryService {
      * @return 返回注册的实例元数据
      */
     @Override
-    public synchronized InstanceMeta register(String service, InstanceMeta instance) {
+    public InstanceMeta register(String service, InstanceMeta instance) {
         return super.register(service, instance);
     }
 
@@ -34,10 +37,21 @@ public class CzRegistryService extends DefaultRegistryService {
      * @return 若成功注销返回实例元数据，否则返回null
      */
     @Override
-    public synchronized InstanceMeta unregister(String service, InstanceMeta instance) {
+    public InstanceMeta unregister(String service, InstanceMeta instance) {
         return super.unregister(service, instance);
     }
 
+    /**
+     * 批量注册与注销服务实例。
+     *
+     * @param changes 需要注册与注销的实例, 按服务分组
+     * @return 返回涉及的所有服务变更后的版本号
+     */
+    @Override
+    public Map<String, Long> apply(InstanceChanges changes) {
+        return super.apply(changes);
+    }
+
     /**
      * 获取指定服务的所有实例列表。
      *
@@ -49,6 +63,32 @@ public class CzRegistryService extends DefaultRegistryService {
         return super.fetchAll(service);
     }
 
+    /**
+     * 按附加参数查询指定服务的实例。
+     *
+     * @param service  服务名称
+     * @param criteria 参数条件
+     * @return 满足条件的实例列表，服务不存在时返回null
+     */
+    @Override
+    public List<InstanceMeta> query(String service, Map<String, String> criteria) {
+        return super.query(service, criteria);
+    }
+
+    /**
+     * 按服务端策略选择指定服务的若干实例。
+     *
+     * @param service  服务名称
+     * @param strategy 选择策略
+     * @param count    需要的实例数
+     * @param key      客户端标识
+     * @return 选中的实例列表，服务不存在时返回null
+     */
+    @Override
+    public List<InstanceMeta> select(String service, SelectStrategy strategy, int count, String key) {
+        return super.select(service, strategy, count, key);
+    }
+
     /**
      * 更新或刷新服务实例的最新时间戳。
      * @param instance 服务实例元数据
@@ -56,10 +96,21 @@ public class CzRegistryService extends DefaultRegistryService {
      * @return 返回服务实例的版本号
      */
     @Override
-    public synchronized Map<String, Long> reNew(InstanceMeta instance, String... services) {
+    public Map<String, Long> reNew(InstanceMeta instance, String... services) {
         return super.reNew(instance, services);
     }
 
+    /**
+     * 批量更新多个实例在多个服务下的心跳。
+     *
+     * @param renewals 实例及其需要续约的服务列表
+     * @return 返回涉及的所有服务的版本信息
+     */
+    @Override
+    public Map<String, Long> reNew(List<InstanceRenewal> renewals) {
+        return super.reNew(renewals);
+    }
+
     /**
      * 获取指定服务的当前版本号。
      *
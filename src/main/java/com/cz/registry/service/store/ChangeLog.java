@@ -0,0 +1,123 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.ChangeRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界变更日志
+ * 以全局版本号为下标的环形数组, 保留最近的若干条变更记录, 供从节点按版本号增量同步
+ * 版本号在各服务的锁内分配, 记录可能乱序写入, 因此只对外提供连续的部分
+ * 某个版本的槽位已被更新一圈的记录覆盖时, 该版本视为已移出日志, 连续部分越过它继续推进
+ *
+ * @author Zjianru
+ */
+public class ChangeLog {
+
+    private final AtomicReferenceArray<ChangeRecord> ring;
+
+    private final int capacity;
+
+    /**
+     * 日志起点, 不大于该版本的变更已不在日志中
+     */
+    private volatile long base;
+
+    /**
+     * 已连续写入的最大版本号
+     */
+    private volatile long committed;
+
+    public ChangeLog(int capacity) {
+        this.capacity = capacity;
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * 写入一条变更记录
+     *
+     * @param record 变更记录
+     */
+    public void append(ChangeRecord record) {
+        int index = index(record.getVersion());
+        while (true) {
+            ChangeRecord existing = ring.get(index);
+            // 写入迟到的旧记录时不覆盖已在槽位中的新记录
+            if (existing != null && existing.getVersion() > record.getVersion()) {
+                break;
+            }
+            if (ring.compareAndSet(index, existing, record)) {
+                break;
+            }
+        }
+        // 读取方长时间不推进时由写入方推进, 避免未推进的部分被覆盖
+        if (record.getVersion() - committed > capacity / 2) {
+            committed();
+        }
+    }
+
+    /**
+     * 获取已连续写入的最大版本号, 不大于该版本的变更都已发布
+     *
+     * @return 版本号
+     */
+    public synchronized long committed() {
+        long current = committed;
+        while (true) {
+            ChangeRecord next = ring.get(index(current + 1));
+            if (next == null || next.getVersion() < current + 1) {
+                break;
+            }
+            if (next.getVersion() > current + 1) {
+                // 槽位已被之后一圈的记录覆盖, 该版本移出日志
+                base = current + 1;
+            }
+            current++;
+        }
+        committed = current;
+        return current;
+    }
+
+    /**
+     * 获取给定版本之后的连续变更
+     *
+     * @param since 起始版本号, 不包含
+     * @param limit 最多返回的记录数
+     * @return 变更记录, 起始版本已超出日志范围时返回 null
+     */
+    public List<ChangeRecord> since(long since, int limit) {
+        long end = committed();
+        if (since < base || end - since > capacity) {
+            return null;
+        }
+        List<ChangeRecord> changes = new ArrayList<>((int) Math.min(Math.max(end - since, 0), limit));
+        for (long version = since + 1; version <= end && changes.size() < limit; version++) {
+            ChangeRecord record = ring.get(index(version));
+            if (record == null || record.getVersion() != version) {
+                // 读取期间被新的记录覆盖, 说明起始版本已超出日志范围
+                return null;
+            }
+            changes.add(record);
+        }
+        return changes;
+    }
+
+    /**
+     * 清空日志并从给定版本重新开始, 用于全量快照重置之后
+     *
+     * @param version 新的起点版本号
+     */
+    public synchronized void reset(long version) {
+        for (int i = 0; i < capacity; i++) {
+            ring.set(i, null);
+        }
+        base = version;
+        committed = version;
+    }
+
+    private int index(long version) {
+        return (int) Math.floorMod(version, (long) capacity);
+    }
+}
@@ -0,0 +1,47 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import lombok.Getter;
+
+/**
+ * 某个服务实例的心跳状态
+ * 续约只是一次 long 写入; 过期检测直接持有实例信息, 无需重新解析 url
+ *
+ * @author Zjianru
+ */
+public final class Heartbeat {
+
+    @Getter
+    private final HeartbeatKey key;
+
+    @Getter
+    private final InstanceMeta instance;
+
+    /**
+     * 最近一次心跳时间戳
+     */
+    private volatile long timestamp;
+
+    public Heartbeat(HeartbeatKey key, InstanceMeta instance, long timestamp) {
+        this.key = key;
+        this.instance = instance;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * 续约
+     *
+     * @param timestamp 心跳时间戳
+     */
+    public void renew(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getService() {
+        return key.getService();
+    }
+}
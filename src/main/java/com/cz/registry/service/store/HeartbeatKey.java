@@ -0,0 +1,69 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import lombok.Getter;
+
+import java.util.Objects;
+
+/**
+ * 心跳标识, 由服务名称与实例身份 (scheme/host/port/context) 组成
+ * 哈希值在创建时计算, 避免每次心跳拼接并格式化 "service@url" 字符串
+ *
+ * @author Zjianru
+ */
+@Getter
+public final class HeartbeatKey {
+
+    private final String service;
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String context;
+    private final int hash;
+
+    public HeartbeatKey(String service, InstanceMeta instance) {
+        this.service = service;
+        this.scheme = instance.getScheme();
+        this.host = instance.getHost();
+        this.port = instance.getPort() == null ? -1 : instance.getPort();
+        this.context = instance.getContext();
+        // 逐项累加, 不使用 Objects.hash, 避免每次心跳分配可变参数数组与装箱 port
+        int h = Objects.hashCode(service);
+        h = 31 * h + Objects.hashCode(scheme);
+        h = 31 * h + Objects.hashCode(host);
+        h = 31 * h + port;
+        h = 31 * h + Objects.hashCode(context);
+        this.hash = h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HeartbeatKey other)) {
+            return false;
+        }
+        return hash == other.hash
+                && port == other.port
+                && Objects.equals(service, other.service)
+                && Objects.equals(host, other.host)
+                && Objects.equals(context, other.context)
+                && Objects.equals(scheme, other.scheme);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * 兼容快照中使用的 "服务名@实例url" 格式, 仅在快照同步时使用
+     *
+     * @return 服务名@实例url
+     */
+    @Override
+    public String toString() {
+        return service + "@" + scheme + "://" + host + ":" + port + "/" + context;
+    }
+}
@@ -0,0 +1,71 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.VersionInfo;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 某个服务在某个版本下的实例列表
+ * 创建后不可变, 由 {@link ServiceInstances} 在变更后第一次读取时生成, 读取方直接持有引用即可, 无需复制或加锁
+ *
+ * @author Zjianru
+ */
+@Getter
+public final class InstanceList {
+
+    /**
+     * 尚未发布任何版本时的空列表
+     */
+    public static final InstanceList EMPTY = new InstanceList(null, null, new InstanceMeta[0]);
+
+    /**
+     * 服务版本号, 取自注册中心全局版本号
+     */
+    private final Long version;
+
+    /**
+     * 发布时间戳
+     */
+    private final Long timestamp;
+
+    /**
+     * 只读的实例列表视图
+     */
+    private final List<InstanceMeta> instances;
+
+    private final InstanceMeta[] array;
+
+    private InstanceList(Long version, Long timestamp, InstanceMeta[] array) {
+        this.version = version;
+        this.timestamp = timestamp;
+        this.array = array;
+        this.instances = Collections.unmodifiableList(Arrays.asList(array));
+    }
+
+    /**
+     * 使用给定的实例创建一个新版本的列表
+     *
+     * @param version   版本号
+     * @param timestamp 时间戳
+     * @param instances 实例列表, 会被复制
+     * @return 实例列表
+     */
+    public static InstanceList of(Long version, Long timestamp, Collection<InstanceMeta> instances) {
+        InstanceMeta[] array = instances == null ? new InstanceMeta[0] : instances.toArray(new InstanceMeta[0]);
+        return new InstanceList(version, timestamp, array);
+    }
+
+    /**
+     * 转换为版本信息
+     *
+     * @return 版本信息, 尚未发布版本时返回 null
+     */
+    public VersionInfo toVersionInfo() {
+        return version == null ? null : new VersionInfo(version, timestamp);
+    }
+}
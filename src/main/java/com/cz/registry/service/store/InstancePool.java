@@ -0,0 +1,191 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 共享的实例对象池
+ * 同一个实例注册到多个服务时, 各服务的实例列表、心跳记录与变更日志引用同一个对象, 而不是各自持有一份反序列化的副本。
+ * 共享对象的 scheme、host、context 以及参数中的字符串都经过驻留, 参数表为不可变的共享对象。
+ * <p>
+ * 共享对象按实例身份、上线状态与参数整体比较, 池只持有弱引用, 不再被任何服务引用的对象随 GC 回收。
+ * 共享对象被多个服务引用, 取出后不应再修改
+ *
+ * @author Zjianru
+ */
+public class InstancePool {
+
+    private final Interner<InstanceMeta> instances = new Interner<>();
+
+    private final Interner<Map<String, Object>> params = new Interner<>();
+
+    /**
+     * 获取与给定实例相同的共享对象, 不存在时以给定实例的内容创建
+     *
+     * @param instance 服务实例, 不会被修改
+     * @return 共享对象
+     */
+    public InstanceMeta intern(InstanceMeta instance) {
+        InstanceMeta shared = instances.get(instance);
+        if (shared != null) {
+            return shared;
+        }
+        InstanceMeta created = new InstanceMeta(intern(instance.getHost()), instance.getPort(),
+                intern(instance.getContext()), intern(instance.getScheme()), instance.isStatus(),
+                instance.getParams() == null ? null : internParams(instance.getParams()));
+        return instances.intern(created);
+    }
+
+    /**
+     * 批量获取共享对象
+     *
+     * @param list 服务实例
+     * @return 共享对象, 顺序不变
+     */
+    public List<InstanceMeta> intern(List<InstanceMeta> list) {
+        if (list == null || list.isEmpty()) {
+            return list;
+        }
+        List<InstanceMeta> shared = new ArrayList<>(list.size());
+        for (InstanceMeta instance : list) {
+            shared.add(intern(instance));
+        }
+        return shared;
+    }
+
+    /**
+     * 判断给定对象是否为池中的共享对象
+     *
+     * @param instance 服务实例
+     * @return 是共享对象返回 true
+     */
+    public boolean isShared(InstanceMeta instance) {
+        return instances.get(instance) == instance;
+    }
+
+    /**
+     * 池中仍然存活的共享实例数
+     *
+     * @return 共享实例数
+     */
+    public int size() {
+        return instances.size();
+    }
+
+    private Map<String, Object> internParams(Map<String, Object> source) {
+        Map<String, Object> copy = new HashMap<>(source.size() * 2);
+        boolean nullable = false;
+        for (Map.Entry<String, Object> entry : source.entrySet()) {
+            Object value = entry.getValue() instanceof String text ? intern(text) : entry.getValue();
+            nullable |= entry.getKey() == null || value == null;
+            copy.put(intern(entry.getKey()), value);
+        }
+        return params.intern(nullable ? Collections.unmodifiableMap(copy) : Map.copyOf(copy));
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
+    }
+
+    /**
+     * 基于弱引用的驻留表, 按 {@link #same} 比较
+     */
+    private static final class Interner<T> {
+
+        private final Map<Ref<T>, Ref<T>> table = new ConcurrentHashMap<>();
+
+        private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+
+        T get(T value) {
+            Ref<T> ref = table.get(new Ref<>(value, null));
+            return ref == null ? null : ref.get();
+        }
+
+        T intern(T value) {
+            purge();
+            Ref<T> created = new Ref<>(value, queue);
+            while (true) {
+                Ref<T> existing = table.putIfAbsent(created, created);
+                if (existing == null) {
+                    return value;
+                }
+                T shared = existing.get();
+                if (shared != null) {
+                    return shared;
+                }
+                // 已被回收但尚未清理的条目
+                table.remove(existing, existing);
+            }
+        }
+
+        int size() {
+            purge();
+            return table.size();
+        }
+
+        private void purge() {
+            Reference<? extends T> cleared;
+            while ((cleared = queue.poll()) != null) {
+                table.remove(cleared, cleared);
+            }
+        }
+    }
+
+    /**
+     * 驻留表的键, 哈希值在创建时计算, 引用被回收后只与自身相等
+     */
+    private static final class Ref<T> extends WeakReference<T> {
+
+        private final int hash;
+
+        Ref(T referent, ReferenceQueue<T> queue) {
+            super(referent, queue);
+            this.hash = hash(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Ref<?> other) || hash != other.hash) {
+                return false;
+            }
+            Object mine = get();
+            return mine != null && same(mine, other.get());
+        }
+    }
+
+    /**
+     * 实例身份之外还比较上线状态与参数, 参数不同的同一实例是不同的共享对象
+     */
+    private static int hash(Object value) {
+        if (value instanceof InstanceMeta instance) {
+            return Objects.hash(instance.getScheme(), instance.getHost(), instance.getPort(), instance.getContext(),
+                    instance.isStatus(), instance.getParams());
+        }
+        return value.hashCode();
+    }
+
+    private static boolean same(Object a, Object b) {
+        if (a instanceof InstanceMeta x && b instanceof InstanceMeta y) {
+            return x.equals(y) && x.isStatus() == y.isStatus() && Objects.equals(x.getParams(), y.getParams());
+        }
+        return a.equals(b);
+    }
+}
@@ -0,0 +1,509 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.SelectStrategy;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 某个服务在某个版本下的实例选择器
+ * 由 {@link ServiceInstances} 按发布的 {@link InstanceList} 生成并缓存, 同一版本的所有选择共用一份预先计算的结构,
+ * 每次选择的代价只与返回的实例数有关, 与服务的实例总数无关:
+ * <ul>
+ *     <li>轮询: 一个全局游标, 每次选择原子自增</li>
+ *     <li>加权随机: 按实例参数中的权重建立的别名表 (Vose alias method), 一个随机数即可完成一次抽样</li>
+ *     <li>一致性哈希: Maglev 查找表, 客户端标识的哈希值直接定位到实例, 实例增减时大部分标识仍落在原来的实例上;
+ *     需要多个实例时其余实例沿按实例哈希排列的环依次选取; 查找表与环在第一次按哈希选择时建立</li>
+ *     <li>最久未分配: 按最近一次被返回的先后排列的双向链表; 第一次按最久未分配选择之后,
+ *     任何策略返回的实例都会移到表尾, 在此之前其他策略的选择不加锁维护链表</li>
+ * </ul>
+ * 只有上线状态的实例参与选择。版本变化后生成的选择器沿用上一版本的轮询游标与分配顺序, 新加入的实例排在最前
+ *
+ * @author Zjianru
+ */
+public final class InstanceSelector {
+
+    /**
+     * 未设置权重参数时实例的权重
+     */
+    private static final double DEFAULT_WEIGHT = 1D;
+
+    /**
+     * Maglev 查找表大小与实例数之比的下限, 越大各实例分到的位置越均匀
+     */
+    private static final int LOOKUP_FACTOR = 32;
+
+    /**
+     * Maglev 查找表的可选大小, 均为质数且逐级约翻倍。
+     * 表大小变化时所有标识都会重新分布, 因此只在实例数跨过一级时才换用下一级, 同一级内实例增减只影响少量标识
+     */
+    private static final int[] LOOKUP_SIZES = {257, 521, 1031, 2053, 4099, 8209, 16411, 32771, 65537, 131101,
+            262147, 524309, 1048583, 2097169, 4194319};
+
+    private static final int NONE = -1;
+
+    /**
+     * 选择器对应的实例列表
+     */
+    @Getter
+    private final InstanceList list;
+
+    /**
+     * 权重参数名
+     */
+    @Getter
+    private final String weightParam;
+
+    /**
+     * 参与选择的上线实例
+     */
+    private final InstanceMeta[] instances;
+
+    private final AtomicLong cursor;
+
+    /**
+     * 别名表, 第 i 格以 probability[i] 的概率选中实例 i, 否则选中 alias[i]
+     */
+    private final double[] probability;
+
+    private final int[] alias;
+
+    /**
+     * 权重大于 0 的实例数
+     */
+    private final int weighted;
+
+    private volatile Lookup lookup;
+
+    /**
+     * 是否已按最久未分配选择过, 之后其他策略返回的实例才计入分配顺序; 随版本沿用
+     */
+    private volatile boolean tracking;
+
+    /**
+     * 分配顺序链表, 表头为最久未分配的实例, 由当前对象的锁保护
+     */
+    private final int[] prev;
+
+    private final int[] next;
+
+    private int head;
+
+    private int tail;
+
+    private InstanceSelector(InstanceList list, String weightParam, InstanceSelector previous) {
+        this.list = list;
+        this.weightParam = weightParam;
+        this.instances = list.getInstances().stream().filter(InstanceMeta::isStatus).toArray(InstanceMeta[]::new);
+        this.cursor = new AtomicLong(previous == null ? 0 : previous.cursor.get());
+        int n = instances.length;
+        double[] weights = new double[n];
+        int positive = 0;
+        for (int i = 0; i < n; i++) {
+            weights[i] = weight(instances[i], weightParam);
+            if (weights[i] > 0) {
+                positive++;
+            }
+        }
+        this.weighted = positive;
+        this.probability = new double[n];
+        this.alias = new int[n];
+        buildAlias(weights);
+        this.prev = new int[n];
+        this.next = new int[n];
+        this.head = NONE;
+        this.tail = NONE;
+        this.tracking = previous != null && previous.tracking;
+        link(previous == null ? new int[0] : previous.inherit(instances));
+    }
+
+    /**
+     * 为实例列表生成选择器
+     *
+     * @param list        实例列表
+     * @param weightParam 权重参数名
+     * @param previous    上一版本的选择器, 可为 null
+     * @return 选择器
+     */
+    public static InstanceSelector of(InstanceList list, String weightParam, InstanceSelector previous) {
+        return new InstanceSelector(list, weightParam, previous);
+    }
+
+    /**
+     * 按策略选择实例
+     *
+     * @param strategy 选择策略
+     * @param count    需要的实例数, 超过可选实例数时返回全部可选实例
+     * @param key      客户端标识, 仅一致性哈希使用, 为 null 时按空字符串计算
+     * @return 选中的实例, 互不相同
+     */
+    public List<InstanceMeta> select(SelectStrategy strategy, int count, String key) {
+        int k = Math.min(count, strategy == SelectStrategy.WEIGHTED ? weighted : instances.length);
+        if (k <= 0) {
+            return List.of();
+        }
+        int[] picked = switch (strategy) {
+            case ROUND_ROBIN -> roundRobin(k);
+            case WEIGHTED -> weighted(k);
+            case HASH -> consistentHash(k, key == null ? "" : key);
+            case LEAST_RECENT -> leastRecent(k);
+        };
+        if (strategy != SelectStrategy.LEAST_RECENT && tracking) {
+            handOut(picked);
+        }
+        List<InstanceMeta> result = new ArrayList<>(k);
+        for (int index : picked) {
+            result.add(instances[index]);
+        }
+        return result;
+    }
+
+    /**
+     * 可参与选择的实例数
+     *
+     * @return 上线实例数
+     */
+    public int size() {
+        return instances.length;
+    }
+
+    private int[] roundRobin(int k) {
+        int n = instances.length;
+        int start = (int) Math.floorMod(cursor.getAndAdd(k), (long) n);
+        int[] picked = new int[k];
+        for (int i = 0; i < k; i++) {
+            picked[i] = (start + i) % n;
+        }
+        return picked;
+    }
+
+    /**
+     * 按别名表抽样 k 个不同的实例, 重复抽中时重新抽样;
+     * 多次抽样仍不足 k 个时 (k 接近权重为正的实例数), 从随机位置开始顺序补足
+     */
+    private int[] weighted(int k) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int n = instances.length;
+        int[] picked = new int[k];
+        int size = 0;
+        for (int attempt = 0; attempt < k * 4 && size < k; attempt++) {
+            int i = random.nextInt(n);
+            int index = random.nextDouble() < probability[i] ? i : alias[i];
+            if (!contains(picked, size, index)) {
+                picked[size++] = index;
+            }
+        }
+        int start = random.nextInt(n);
+        for (int i = 0; i < n && size < k; i++) {
+            int index = (start + i) % n;
+            if (probability[index] > 0 && !contains(picked, size, index)) {
+                picked[size++] = index;
+            }
+        }
+        return picked;
+    }
+
+    /**
+     * 标识在查找表中定位第一个实例, 其余实例从该实例开始沿环依次选取, 代价只与 k 有关
+     */
+    private int[] consistentHash(int k, String key) {
+        Lookup table = lookup();
+        int first = table.slots[(int) Long.remainderUnsigned(fingerprint(key, 0), table.slots.length)];
+        int start = table.rank[first];
+        int[] picked = new int[k];
+        for (int i = 0; i < k; i++) {
+            picked[i] = table.ring[(start + i) % table.ring.length];
+        }
+        return picked;
+    }
+
+    private synchronized int[] leastRecent(int k) {
+        tracking = true;
+        int[] picked = new int[k];
+        for (int i = 0; i < k; i++) {
+            picked[i] = head;
+            moveToTail(head);
+        }
+        return picked;
+    }
+
+    private synchronized void handOut(int[] picked) {
+        for (int index : picked) {
+            moveToTail(index);
+        }
+    }
+
+    /**
+     * 按分配顺序返回仍在给定实例中的下标
+     *
+     * @param successors 新版本的实例
+     * @return 新版本中的下标, 按最久未分配在前排列
+     */
+    private synchronized int[] inherit(InstanceMeta[] successors) {
+        Map<InstanceMeta, Integer> positions = new HashMap<>(successors.length * 2);
+        for (int i = 0; i < successors.length; i++) {
+            positions.put(successors[i], i);
+        }
+        int[] order = new int[successors.length];
+        int size = 0;
+        for (int index = head; index != NONE; index = next[index]) {
+            Integer position = positions.get(instances[index]);
+            if (position != null) {
+                order[size++] = position;
+            }
+        }
+        return Arrays.copyOf(order, size);
+    }
+
+    /**
+     * 建立分配顺序链表, 未出现在上一版本中的实例排在最前
+     */
+    private void link(int[] inherited) {
+        boolean[] placed = new boolean[instances.length];
+        for (int index : inherited) {
+            placed[index] = true;
+        }
+        for (int i = 0; i < instances.length; i++) {
+            if (!placed[i]) {
+                append(i);
+            }
+        }
+        for (int index : inherited) {
+            append(index);
+        }
+    }
+
+    private void append(int index) {
+        prev[index] = tail;
+        next[index] = NONE;
+        if (tail == NONE) {
+            head = index;
+        } else {
+            next[tail] = index;
+        }
+        tail = index;
+    }
+
+    private void moveToTail(int index) {
+        if (index == tail) {
+            return;
+        }
+        if (prev[index] == NONE) {
+            head = next[index];
+        } else {
+            next[prev[index]] = next[index];
+        }
+        prev[next[index]] = prev[index];
+        append(index);
+    }
+
+    /**
+     * Vose 别名表: 把每格的概率补齐到平均值, 不足的部分由一个超过平均值的实例填充
+     */
+    private void buildAlias(double[] weights) {
+        int n = weights.length;
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        if (total <= 0) {
+            return;
+        }
+        int positive = 0;
+        while (weights[positive] <= 0) {
+            positive++;
+        }
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smalls = 0;
+        int larges = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+            if (scaled[i] < 1) {
+                small[smalls++] = i;
+            } else {
+                large[larges++] = i;
+            }
+        }
+        while (smalls > 0 && larges > 0) {
+            int less = small[--smalls];
+            int more = large[--larges];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1) {
+                small[smalls++] = more;
+            } else {
+                large[larges++] = more;
+            }
+        }
+        // 剩余的格因浮点误差接近 1, 直接选中自身
+        while (larges > 0) {
+            probability[large[--larges]] = 1;
+        }
+        while (smalls > 0) {
+            int index = small[--smalls];
+            probability[index] = weights[index] > 0 ? 1 : 0;
+            alias[index] = weights[index] > 0 ? index : positive;
+        }
+    }
+
+    /**
+     * 获取 Maglev 查找表与实例环, 第一次按哈希选择时建立, 同一版本只建立一次
+     */
+    private Lookup lookup() {
+        Lookup table = lookup;
+        if (table != null) {
+            return table;
+        }
+        synchronized (this) {
+            if (lookup == null) {
+                lookup = new Lookup(buildLookup(), buildRing());
+            }
+            return lookup;
+        }
+    }
+
+    /**
+     * 按实例 url 的哈希值排列实例, 实例增减时其余实例的先后不变
+     */
+    private int[] buildRing() {
+        long[] hashes = new long[instances.length];
+        Integer[] order = new Integer[instances.length];
+        for (int i = 0; i < instances.length; i++) {
+            hashes[i] = fingerprint(instances[i].transferToUrl(), 3);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(hashes[a], hashes[b]));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * 每个实例按自己的起点与步长依次认领查找表中的空位, 各实例轮流认领直到填满,
+     * 实例增减只影响少量位置的归属
+     */
+    private int[] buildLookup() {
+        int n = instances.length;
+        int size = lookupSize(n);
+        long[] offset = new long[n];
+        long[] skip = new long[n];
+        for (int i = 0; i < n; i++) {
+            String url = instances[i].transferToUrl();
+            offset[i] = Long.remainderUnsigned(fingerprint(url, 1), size);
+            skip[i] = Long.remainderUnsigned(fingerprint(url, 2), size - 1) + 1;
+        }
+        int[] table = new int[size];
+        Arrays.fill(table, NONE);
+        long[] claimed = new long[n];
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < n; i++) {
+                int slot = (int) ((offset[i] + claimed[i] * skip[i]) % size);
+                while (table[slot] != NONE) {
+                    claimed[i]++;
+                    slot = (int) ((offset[i] + claimed[i] * skip[i]) % size);
+                }
+                table[slot] = i;
+                claimed[i]++;
+                if (++filled == size) {
+                    return table;
+                }
+            }
+        }
+    }
+
+    /**
+     * 一致性哈希的查找结构
+     */
+    private static final class Lookup {
+
+        /**
+         * Maglev 查找表, 每格为实例下标
+         */
+        private final int[] slots;
+
+        /**
+         * 按实例哈希排列的实例下标
+         */
+        private final int[] ring;
+
+        /**
+         * 实例在环中的位置
+         */
+        private final int[] rank;
+
+        Lookup(int[] slots, int[] ring) {
+            this.slots = slots;
+            this.ring = ring;
+            this.rank = new int[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                rank[ring[i]] = i;
+            }
+        }
+    }
+
+    private static boolean contains(int[] picked, int size, int index) {
+        for (int i = 0; i < size; i++) {
+            if (picked[i] == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读取实例的权重, 参数缺失或无法解析时使用默认权重, 负数按 0 处理
+     */
+    private static double weight(InstanceMeta instance, String weightParam) {
+        Object value = instance.getParams() == null ? null : instance.getParams().get(weightParam);
+        double weight;
+        if (value instanceof Number number) {
+            weight = number.doubleValue();
+        } else if (value != null) {
+            try {
+                weight = Double.parseDouble(String.valueOf(value).trim());
+            } catch (NumberFormatException e) {
+                weight = DEFAULT_WEIGHT;
+            }
+        } else {
+            weight = DEFAULT_WEIGHT;
+        }
+        return Double.isFinite(weight) && weight > 0 ? weight : 0;
+    }
+
+    /**
+     * 带种子的 64 位 FNV-1a 哈希, 再经过 murmur3 的混合函数打散
+     */
+    private static long fingerprint(String value, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed * 0x9e3779b97f4a7c15L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static int lookupSize(int instances) {
+        long required = (long) instances * LOOKUP_FACTOR;
+        for (int size : LOOKUP_SIZES) {
+            if (size >= required) {
+                return size;
+            }
+        }
+        return LOOKUP_SIZES[LOOKUP_SIZES.length - 1];
+    }
+}
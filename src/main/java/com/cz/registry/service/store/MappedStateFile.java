@@ -0,0 +1,465 @@
+package com.cz.registry.service.store;
+
+import com.alibaba.fastjson2.JSON;
+import com.cz.registry.meta.ChangeRecord;
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.Snapshot;
+import com.cz.registry.meta.VersionInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.LinkedMultiValueMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 注册表的内存映射镜像文件
+ * 文件由定长的槽位组成, 每个服务、每个 "服务-实例" 注册各占一个槽位; 实例变更直接写入映射内存中对应的槽位,
+ * 心跳时间戳按周期批量写入。进程崩溃后已写入映射内存的内容仍在页缓存中, 重启时顺序扫描一遍槽位即可恢复注册表,
+ * 无需等待从主节点重新同步。
+ * <p>
+ * 格式:
+ * <pre>
+ * 头部 64 字节: int MAGIC, byte FORMAT, byte 是否完整, long 全局版本号(8), long 心跳写入时间(16), int 槽位数量(24)
+ * 槽位 {@link #SLOT_SIZE} 字节:
+ *   byte   类型(0), 0 空闲 / 1 服务 / 2 实例
+ *   int    实例所属服务的槽位(4)
+ *   long   服务版本号 / 实例注册时的版本号(8)
+ *   long   服务发布时间戳 / 实例心跳时间戳(16)
+ *   byte   实例状态(24)
+ *   short  服务名称 / 实例 url 的字节数 + UTF-8 字节, 至多 {@link #MAX_NAME} 字节(26)
+ *   short  实例附加参数 json 的字节数 + UTF-8 字节, 至多 {@link #MAX_PARAMS} 字节(272)
+ * </pre>
+ * 写入实例时先写内容再写类型, 移除时先清类型, 崩溃时不会留下写了一半的有效槽位。
+ * 名称或参数超出槽位的注册不写入镜像, 并把文件标记为不完整, 此时重启不使用镜像。
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class MappedStateFile implements Closeable {
+
+    static final int MAGIC = 0x435A4D53;
+
+    static final byte FORMAT = 1;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int SLOT_SIZE = 512;
+
+    static final int MAX_NAME = 240;
+
+    static final int MAX_PARAMS = SLOT_SIZE - 274;
+
+    static final byte FREE = 0;
+
+    static final byte SERVICE = 1;
+
+    static final byte INSTANCE = 2;
+
+    private static final int COMPLETE = 5;
+
+    private static final int VERSION = 8;
+
+    private static final int SAVED_AT = 16;
+
+    private static final int CAPACITY = 24;
+
+    private final Path path;
+
+    private final int initialCapacity;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private int capacity;
+
+    /**
+     * 服务名称到槽位
+     */
+    private final Map<String, Integer> services = new HashMap<>();
+
+    /**
+     * 服务实例注册到槽位
+     */
+    private final Map<HeartbeatKey, Integer> instances = new HashMap<>();
+
+    private final Deque<Integer> free = new ArrayDeque<>();
+
+    /**
+     * 镜像是否完整, 与头部的完整标记一致; 整体重写期间头部标记保持为 0, 重写完成后按该值设置
+     */
+    private boolean complete;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param path            镜像文件
+     * @param initialCapacity 新建文件时的槽位数量, 槽位用尽时翻倍
+     */
+    public MappedStateFile(Path path, int initialCapacity) {
+        this.path = path;
+        this.initialCapacity = Math.max(initialCapacity, 16);
+    }
+
+    /**
+     * 映射镜像文件并读取其中的注册表。
+     * 心跳时间戳按停机时长顺延: 崩溃前已超时的实例仍然超时, 其余实例保留崩溃时剩余的续约时间
+     *
+     * @param now 当前时间
+     * @return 注册表快照, 文件不存在、格式不符或不完整时返回 null, 此时文件被重新初始化
+     * @throws IOException 映射失败
+     */
+    public synchronized Snapshot load(long now) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            initialize(initialCapacity);
+            return null;
+        }
+        map(HEADER_SIZE);
+        if (buffer.getInt(0) != MAGIC || buffer.get(4) != FORMAT || buffer.get(COMPLETE) != 1
+                || channel.size() < offset(buffer.getInt(CAPACITY))) {
+            log.warn("czRegistry==> state file {} is not usable, reinitialize", path);
+            initialize(initialCapacity);
+            return null;
+        }
+        capacity = buffer.getInt(CAPACITY);
+        complete = true;
+        map(offset(capacity));
+        long shift = Math.max(now - buffer.getLong(SAVED_AT), 0);
+        Map<Integer, String> names = new HashMap<>();
+        Map<String, VersionInfo> versions = new HashMap<>();
+        for (int slot = 0; slot < capacity; slot++) {
+            int at = offset(slot);
+            if (buffer.get(at) == SERVICE) {
+                String service = string(at + 26);
+                names.put(slot, service);
+                services.put(service, slot);
+                versions.put(service, new VersionInfo(nullable(buffer.getLong(at + 8)), nullable(buffer.getLong(at + 16))));
+            }
+        }
+        // 实例按注册时的版本号排序, 与内存中的实例顺序一致
+        Map<String, List<Integer>> registered = new HashMap<>();
+        for (int slot = 0; slot < capacity; slot++) {
+            int at = offset(slot);
+            byte type = buffer.get(at);
+            if (type == FREE) {
+                free.add(slot);
+            } else if (type == INSTANCE) {
+                String service = names.get(buffer.getInt(at + 4));
+                if (service == null) {
+                    buffer.put(at, FREE);
+                    free.add(slot);
+                    continue;
+                }
+                registered.computeIfAbsent(service, k -> new ArrayList<>()).add(slot);
+            }
+        }
+        LinkedMultiValueMap<String, InstanceMeta> registry = new LinkedMultiValueMap<>();
+        Map<String, Long> timestamps = new HashMap<>();
+        names.values().forEach(service -> registry.put(service, new ArrayList<>()));
+        registered.forEach((service, slots) -> {
+            slots.sort(Comparator.comparingLong(slot -> buffer.getLong(offset(slot) + 8)));
+            for (Integer slot : slots) {
+                int at = offset(slot);
+                InstanceMeta instance = InstanceMeta.fromUrl(string(at + 26));
+                instance.setStatus(buffer.get(at + 24) == 1);
+                String params = string(at + 272);
+                if (params != null) {
+                    instance.setParams(JSON.parseObject(params));
+                }
+                registry.add(service, instance);
+                HeartbeatKey key = new HeartbeatKey(service, instance);
+                instances.put(key, slot);
+                long timestamp = buffer.getLong(at + 16);
+                if (timestamp != SnapshotWriter.NONE) {
+                    timestamps.put(key.toString(), timestamp + shift);
+                }
+            }
+        });
+        return new Snapshot(registry, versions, buffer.getLong(VERSION), timestamps);
+    }
+
+    /**
+     * 开始按周期把心跳时间戳写入镜像并刷盘
+     *
+     * @param heartbeats 当前的心跳记录
+     * @param interval   周期, 单位毫秒
+     */
+    public void start(Supplier<Collection<Heartbeat>> heartbeats, long interval) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "czRegistry-state-file");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sync(heartbeats.get(), System.currentTimeMillis());
+            } catch (Exception e) {
+                log.error("czRegistry==> sync state file failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 写入一条实例变更, 调用方需持有服务的锁, 以保证同一服务的变更按顺序写入
+     *
+     * @param record 变更记录
+     */
+    public synchronized void apply(ChangeRecord record) {
+        if (buffer == null) {
+            return;
+        }
+        int service = service(record.getService());
+        if (service < 0) {
+            return;
+        }
+        if (record.getRemoved() != null) {
+            for (InstanceMeta instance : record.getRemoved()) {
+                Integer slot = instances.remove(new HeartbeatKey(record.getService(), instance));
+                if (slot != null) {
+                    buffer.put(offset(slot), FREE);
+                    free.push(slot);
+                }
+            }
+        }
+        if (record.getAdded() != null) {
+            for (InstanceMeta instance : record.getAdded()) {
+                add(service, record.getService(), instance, record.getVersion(), record.getTimestamp());
+            }
+        }
+        int at = offset(service);
+        buffer.putLong(at + 8, record.getVersion());
+        buffer.putLong(at + 16, record.getTimestamp());
+        buffer.putLong(VERSION, Math.max(buffer.getLong(VERSION), record.getVersion()));
+    }
+
+    /**
+     * 以给定的注册表整体重写镜像, 用于全量快照重置之后
+     * 先清除完整标记并刷盘再改写槽位, 全部内容刷盘之后才重新标记为完整, 重写中途崩溃时重启不使用镜像
+     *
+     * @param state   注册表
+     * @param version 全局版本号
+     */
+    public synchronized void rewrite(RegistryState state, long version) {
+        if (buffer == null) {
+            return;
+        }
+        buffer.put(COMPLETE, (byte) 0);
+        buffer.force();
+        complete = true;
+        for (int slot = 0; slot < capacity; slot++) {
+            buffer.put(offset(slot), FREE);
+        }
+        services.clear();
+        instances.clear();
+        free.clear();
+        for (int slot = capacity - 1; slot >= 0; slot--) {
+            free.push(slot);
+        }
+        state.getRegistry().forEach((name, serviceInstances) -> {
+            InstanceList current = serviceInstances.current();
+            int service = service(name);
+            if (service < 0) {
+                return;
+            }
+            for (InstanceMeta instance : current.getInstances()) {
+                add(service, name, instance, current.getVersion() == null ? 0 : current.getVersion(), SnapshotWriter.NONE);
+            }
+            int at = offset(service);
+            buffer.putLong(at + 8, current.getVersion() == null ? SnapshotWriter.NONE : current.getVersion());
+            buffer.putLong(at + 16, current.getTimestamp() == null ? SnapshotWriter.NONE : current.getTimestamp());
+        });
+        buffer.putLong(VERSION, version);
+        sync(state.getTimestamps().values(), System.currentTimeMillis());
+        if (complete) {
+            buffer.put(COMPLETE, (byte) 1);
+            buffer.force();
+        }
+    }
+
+    /**
+     * 写入心跳时间戳并刷盘
+     * 只在写入时间戳时持有锁, 刷盘期间实例变更照常写入映射内存, 不必等待磁盘
+     *
+     * @param heartbeats 当前的心跳记录
+     * @param now        当前时间, 作为心跳写入时间
+     */
+    void sync(Collection<Heartbeat> heartbeats, long now) {
+        MappedByteBuffer mapped;
+        synchronized (this) {
+            if (buffer == null) {
+                return;
+            }
+            for (Heartbeat heartbeat : heartbeats) {
+                Integer slot = instances.get(heartbeat.getKey());
+                if (slot != null) {
+                    buffer.putLong(offset(slot) + 16, heartbeat.getTimestamp());
+                }
+            }
+            buffer.putLong(SAVED_AT, now);
+            mapped = buffer;
+        }
+        mapped.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * 获取服务的槽位, 不存在时分配
+     *
+     * @return 槽位, 名称超出槽位时返回 -1
+     */
+    private int service(String name) {
+        Integer slot = services.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME) {
+            incomplete(name);
+            return -1;
+        }
+        slot = allocate();
+        int at = offset(slot);
+        buffer.putLong(at + 8, SnapshotWriter.NONE);
+        buffer.putLong(at + 16, SnapshotWriter.NONE);
+        putString(at + 26, bytes);
+        buffer.put(at, SERVICE);
+        services.put(name, slot);
+        return slot;
+    }
+
+    private void add(int service, String name, InstanceMeta instance, long version, long timestamp) {
+        HeartbeatKey key = new HeartbeatKey(name, instance);
+        if (instances.containsKey(key)) {
+            return;
+        }
+        byte[] url = instance.transferToUrl().getBytes(StandardCharsets.UTF_8);
+        byte[] params = instance.getParams() == null ? null : JSON.toJSONBytes(instance.getParams());
+        if (url.length > MAX_NAME || (params != null && params.length > MAX_PARAMS)) {
+            incomplete(key.toString());
+            return;
+        }
+        int slot = allocate();
+        int at = offset(slot);
+        buffer.putInt(at + 4, service);
+        buffer.putLong(at + 8, version);
+        buffer.putLong(at + 16, timestamp);
+        buffer.put(at + 24, (byte) (instance.isStatus() ? 1 : 0));
+        putString(at + 26, url);
+        putString(at + 272, params);
+        buffer.put(at, INSTANCE);
+        instances.put(key, slot);
+    }
+
+    private int allocate() {
+        if (free.isEmpty()) {
+            try {
+                grow(capacity * 2);
+            } catch (IOException e) {
+                throw new IllegalStateException("grow state file " + path + " failed", e);
+            }
+        }
+        return free.pop();
+    }
+
+    private void incomplete(String name) {
+        if (complete) {
+            log.warn("czRegistry==> {} does not fit in a state file slot, state file disabled for restart", name);
+        }
+        complete = false;
+        buffer.put(COMPLETE, (byte) 0);
+    }
+
+    private void initialize(int slots) throws IOException {
+        channel.truncate(0);
+        map(offset(slots));
+        buffer.putInt(0, MAGIC);
+        buffer.put(4, FORMAT);
+        buffer.put(COMPLETE, (byte) 1);
+        complete = true;
+        buffer.putLong(VERSION, 0);
+        buffer.putLong(SAVED_AT, System.currentTimeMillis());
+        buffer.putInt(CAPACITY, slots);
+        capacity = slots;
+        for (int slot = slots - 1; slot >= 0; slot--) {
+            free.push(slot);
+        }
+        buffer.force();
+    }
+
+    private void grow(int slots) throws IOException {
+        map(offset(slots));
+        for (int slot = slots - 1; slot >= capacity; slot--) {
+            free.push(slot);
+        }
+        capacity = slots;
+        buffer.putInt(CAPACITY, slots);
+        log.info("czRegistry==> state file {} grown to {} slots", path, slots);
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private String string(int at) {
+        int length = buffer.getShort(at);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(at + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void putString(int at, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putShort(at, (short) -1);
+            return;
+        }
+        buffer.putShort(at, (short) bytes.length);
+        buffer.put(at + 2, bytes);
+    }
+
+    private static Long nullable(long value) {
+        return value == SnapshotWriter.NONE ? null : value;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
@@ -0,0 +1,30 @@
+package com.cz.registry.service.store;
+
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 注册中心的完整状态: 实例注册表与心跳记录
+ * 从节点全量同步时在一个新的对象中构建完整状态, 构建完成后整体替换, 读取方只会看到完整的旧状态或完整的新状态
+ *
+ * @author Zjianru
+ */
+@Getter
+public final class RegistryState {
+
+    /**
+     * 记录已注册的实例信息及版本信息,服务粒度
+     * key->service name
+     * value->instance list of the service, 每个服务独立加锁, 每次变更发布一个新的不可变版本
+     */
+    private final Map<String, ServiceInstances> registry = new ConcurrentHashMap<>();
+
+    /**
+     * 记录能力信息,接口粒度
+     * key->service and instance identity
+     * value->heartbeat, 持有最近一次心跳时间戳
+     */
+    private final Map<HeartbeatKey, Heartbeat> timestamps = new ConcurrentHashMap<>();
+}
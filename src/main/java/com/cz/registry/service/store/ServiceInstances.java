@@ -0,0 +1,442 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * 单个服务的实例集合
+ * 每个服务独立持有自己的写锁, 不同服务之间的写操作互不阻塞
+ * 实例按身份 (scheme/host/port/context) 建立哈希索引, 注册、注销与判断是否存在都不再遍历实例列表;
+ * 索引保持注册顺序。每次变更只记录新的版本号, 对外发布的不可变 {@link InstanceList} 在变更后第一次读取时才生成,
+ * 同一版本的后续读取直接返回该对象。
+ * <p>
+ * 按参数查询时, 为参与查询的索引参数建立 "参数值 -> 实例" 的倒排索引, 之后随注册、注销增量维护;
+ * 与实例列表一样, 查询读取的是按版本发布的不可变倒排快照, 变更后第一次查询时只复制变化过的倒排项, 查询本身不加锁。
+ * 服务端选择实例时使用的 {@link InstanceSelector} 同样按版本在第一次选择时生成
+ *
+ * @author Zjianru
+ */
+public class ServiceInstances {
+
+    /**
+     * 服务名称
+     */
+    @Getter
+    private final String service;
+
+    /**
+     * 按身份索引的实例, 按注册顺序排列, 由当前对象的锁保护
+     */
+    private final Map<InstanceMeta, InstanceMeta> index = new LinkedHashMap<>();
+
+    /**
+     * 参数倒排索引, 只为查询过的索引参数建立, 由当前对象的锁保护
+     * key->参数名
+     * value->参数值到实例的映射, 实例按注册顺序排列
+     */
+    private final Map<String, Map<String, Set<InstanceMeta>>> params = new HashMap<>();
+
+    /**
+     * 上次发布倒排快照之后变化过的倒排项, 由当前对象的锁保护
+     * key->参数名
+     * value->参数值
+     */
+    private final Map<String, Set<String>> dirty = new HashMap<>();
+
+    /**
+     * 当前版本的倒排快照, 版本变化或需要新的参数时在下次查询时重新发布
+     */
+    private volatile Postings postings;
+
+    private volatile Long version;
+
+    private volatile Long timestamp;
+
+    private volatile int size;
+
+    /**
+     * 当前发布的实例列表, 变更后置为 null, 下次读取时生成
+     */
+    private volatile InstanceList current = InstanceList.EMPTY;
+
+    /**
+     * 当前版本的实例选择器, 版本变化后下次选择时重新生成
+     */
+    private volatile InstanceSelector selector;
+
+    public ServiceInstances(String service) {
+        this.service = service;
+    }
+
+    /**
+     * 获取当前发布的实例列表
+     * 已生成时不加锁, 不复制; 变更后第一次读取时在锁内按索引生成
+     *
+     * @return 实例列表
+     */
+    public InstanceList current() {
+        InstanceList list = current;
+        if (list != null) {
+            return list;
+        }
+        synchronized (this) {
+            if (current == null) {
+                current = InstanceList.of(version, timestamp, index.values());
+            }
+            return current;
+        }
+    }
+
+    /**
+     * 获取当前版本的实例选择器
+     * 与当前发布的实例列表对应时不加锁; 版本变化后第一次选择时在锁内生成, 并沿用上一版本的分配状态
+     *
+     * @param weightParam 权重参数名
+     * @return 实例选择器
+     */
+    public InstanceSelector selector(String weightParam) {
+        InstanceSelector cached = selector;
+        if (cached != null && cached.getList() == current && cached.getWeightParam().equals(weightParam)) {
+            return cached;
+        }
+        synchronized (this) {
+            InstanceList list = current();
+            cached = selector;
+            if (cached == null || cached.getList() != list || !cached.getWeightParam().equals(weightParam)) {
+                cached = InstanceSelector.of(list, weightParam, cached);
+                selector = cached;
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * 获取当前版本号, 不生成实例列表
+     *
+     * @return 版本号, 尚未发布版本时返回 null
+     */
+    public Long version() {
+        return version;
+    }
+
+    /**
+     * 添加实例并发布新版本, 调用方需持有当前对象的锁
+     *
+     * @param instance  服务实例
+     * @param version   新版本号
+     * @param timestamp 时间戳
+     * @return 实例此前不存在返回 true
+     */
+    public boolean add(InstanceMeta instance, long version, long timestamp) {
+        if (index.putIfAbsent(instance, instance) != null) {
+            return false;
+        }
+        indexParams(instance);
+        publish(version, timestamp);
+        return true;
+    }
+
+    /**
+     * 移除实例并发布新版本, 实例不存在时仅更新版本号, 调用方需持有当前对象的锁
+     *
+     * @param instance  服务实例
+     * @param version   新版本号
+     * @param timestamp 时间戳
+     * @return 实例存在并被移除返回 true
+     */
+    public boolean remove(InstanceMeta instance, long version, long timestamp) {
+        boolean exists = unindex(instance);
+        publish(version, timestamp);
+        return exists;
+    }
+
+    /**
+     * 一次性移除与追加一批实例, 有变化时发布一个新版本, 调用方需持有当前对象的锁
+     * 先移除后追加, 已存在的实例不会重复追加
+     *
+     * @param added     需要追加的实例
+     * @param removed   需要移除的实例
+     * @param version   新版本号提供者, 仅在实例列表发生变化时调用, 避免无变化时消耗版本号
+     * @param timestamp 时间戳
+     * @return 实例列表发生变化返回 true
+     */
+    public boolean apply(Collection<InstanceMeta> added, Collection<InstanceMeta> removed,
+                         LongSupplier version, long timestamp) {
+        if (!change(added, removed)) {
+            return false;
+        }
+        publish(version.getAsLong(), timestamp);
+        return true;
+    }
+
+    /**
+     * 按主节点的变更记录重放一批实例变更, 无论实例列表是否变化都发布为给定版本, 调用方需持有当前对象的锁
+     *
+     * @param added     新增的实例
+     * @param removed   移除的实例
+     * @param version   变更记录的版本号
+     * @param timestamp 变更记录的时间戳
+     */
+    public void replay(Collection<InstanceMeta> added, Collection<InstanceMeta> removed, long version, long timestamp) {
+        change(added, removed);
+        publish(version, timestamp);
+    }
+
+    /**
+     * 判断实例是否存在, 调用方需持有当前对象的锁
+     *
+     * @param instance 服务实例
+     * @return 存在返回 true
+     */
+    public boolean contains(InstanceMeta instance) {
+        return index.containsKey(instance);
+    }
+
+    /**
+     * 是否没有任何实例
+     *
+     * @return 没有实例返回 true
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 整体替换为给定的实例列表
+     *
+     * @param replacement 新的实例列表
+     */
+    public synchronized void reset(InstanceList replacement) {
+        index.clear();
+        params.clear();
+        dirty.clear();
+        postings = null;
+        for (InstanceMeta instance : replacement.getInstances()) {
+            index.putIfAbsent(instance, instance);
+        }
+        size = index.size();
+        version = replacement.getVersion();
+        timestamp = replacement.getTimestamp();
+        current = replacement;
+    }
+
+    /**
+     * 按参数查询实例
+     * 条件中有索引参数时, 从命中实例最少的倒排索引出发逐个校验其余条件, 否则遍历所有实例。
+     * 读取当前版本的实例列表与倒排快照, 二者已发布时不加锁
+     *
+     * @param criteria 参数条件, 参数值按字符串比较, 全部满足才返回
+     * @param indexed  建立索引的参数名
+     * @return 满足条件的实例, 按注册顺序排列
+     */
+    public List<InstanceMeta> query(Map<String, String> criteria, Set<String> indexed) {
+        InstanceList list = current();
+        Collection<InstanceMeta> candidates = list.getInstances();
+        Postings snapshot = null;
+        for (Map.Entry<String, String> criterion : criteria.entrySet()) {
+            if (!indexed.contains(criterion.getKey())) {
+                continue;
+            }
+            if (snapshot == null) {
+                snapshot = postings(list, criteria.keySet(), indexed);
+                // 发布快照时实例列表可能已有新版本, 以快照对应的版本为准
+                if (snapshot.list != list) {
+                    list = snapshot.list;
+                    candidates = list.getInstances();
+                }
+            }
+            List<InstanceMeta> posting = snapshot.byParam.get(criterion.getKey()).getOrDefault(criterion.getValue(), List.of());
+            if (posting.size() < candidates.size()) {
+                candidates = posting;
+            }
+        }
+        List<InstanceMeta> result = new ArrayList<>();
+        for (InstanceMeta instance : candidates) {
+            if (matches(instance, criteria)) {
+                result.add(instance);
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(InstanceMeta instance, Map<String, String> criteria) {
+        for (Map.Entry<String, String> criterion : criteria.entrySet()) {
+            if (!criterion.getValue().equals(param(instance, criterion.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String param(InstanceMeta instance, String key) {
+        Object value = instance.getParams() == null ? null : instance.getParams().get(key);
+        return value == null ? null : String.valueOf(value);
+    }
+
+    /**
+     * 获取与给定实例列表对应且包含所需参数的倒排快照, 已发布时不加锁;
+     * 否则在锁内按当前版本发布, 只复制上次发布之后变化过的倒排项, 其余倒排项沿用上次的快照
+     */
+    private Postings postings(InstanceList list, Set<String> keys, Set<String> indexed) {
+        Postings snapshot = postings;
+        if (snapshot != null && snapshot.list == list && snapshot.covers(keys, indexed)) {
+            return snapshot;
+        }
+        synchronized (this) {
+            InstanceList latest = current();
+            snapshot = postings;
+            if (snapshot != null && snapshot.list == latest && snapshot.covers(keys, indexed)) {
+                return snapshot;
+            }
+            for (String key : keys) {
+                if (indexed.contains(key)) {
+                    index(key);
+                }
+            }
+            Map<String, Map<String, List<InstanceMeta>>> byParam = new HashMap<>(params.size() * 2);
+            for (Map.Entry<String, Map<String, Set<InstanceMeta>>> entry : params.entrySet()) {
+                String key = entry.getKey();
+                Map<String, Set<InstanceMeta>> posting = entry.getValue();
+                Map<String, List<InstanceMeta>> previous = snapshot == null ? null : snapshot.byParam.get(key);
+                Set<String> changed = dirty.getOrDefault(key, Set.of());
+                Map<String, List<InstanceMeta>> copied;
+                if (previous == null) {
+                    copied = new HashMap<>(posting.size() * 2);
+                    posting.forEach((value, instances) -> copied.put(value, List.copyOf(instances)));
+                } else if (changed.isEmpty()) {
+                    copied = previous;
+                } else {
+                    copied = new HashMap<>(previous);
+                    for (String value : changed) {
+                        Set<InstanceMeta> instances = posting.get(value);
+                        if (instances == null) {
+                            copied.remove(value);
+                        } else {
+                            copied.put(value, List.copyOf(instances));
+                        }
+                    }
+                }
+                byParam.put(key, copied);
+            }
+            dirty.clear();
+            snapshot = new Postings(latest, byParam);
+            postings = snapshot;
+            return snapshot;
+        }
+    }
+
+    /**
+     * 获取参数的倒排索引, 第一次查询时按当前实例建立
+     */
+    private Map<String, Set<InstanceMeta>> index(String key) {
+        Map<String, Set<InstanceMeta>> posting = params.get(key);
+        if (posting == null) {
+            posting = new HashMap<>();
+            for (InstanceMeta instance : index.values()) {
+                String value = param(instance, key);
+                if (value != null) {
+                    posting.computeIfAbsent(value, v -> new LinkedHashSet<>()).add(instance);
+                }
+            }
+            params.put(key, posting);
+        }
+        return posting;
+    }
+
+    private void indexParams(InstanceMeta instance) {
+        params.forEach((key, posting) -> {
+            String value = param(instance, key);
+            if (value != null) {
+                posting.computeIfAbsent(value, v -> new LinkedHashSet<>()).add(instance);
+                dirty.computeIfAbsent(key, k -> new HashSet<>()).add(value);
+            }
+        });
+    }
+
+    /**
+     * 移除实例及其倒排索引, 索引按已保存实例的参数查找, 注销请求中的实例可以不带参数
+     *
+     * @return 实例存在并被移除返回 true
+     */
+    private boolean unindex(InstanceMeta instance) {
+        InstanceMeta stored = index.remove(instance);
+        if (stored == null) {
+            return false;
+        }
+        params.forEach((key, posting) -> {
+            String value = param(stored, key);
+            Set<InstanceMeta> instances = value == null ? null : posting.get(value);
+            if (instances != null) {
+                instances.remove(stored);
+                if (instances.isEmpty()) {
+                    posting.remove(value);
+                }
+                dirty.computeIfAbsent(key, k -> new HashSet<>()).add(value);
+            }
+        });
+        return true;
+    }
+
+    private boolean change(Collection<InstanceMeta> added, Collection<InstanceMeta> removed) {
+        boolean changed = false;
+        for (InstanceMeta instance : removed) {
+            changed |= unindex(instance);
+        }
+        for (InstanceMeta instance : added) {
+            if (index.putIfAbsent(instance, instance) == null) {
+                indexParams(instance);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 某个版本的不可变倒排快照
+     */
+    private static final class Postings {
+
+        /**
+         * 快照对应的实例列表
+         */
+        private final InstanceList list;
+
+        /**
+         * key->参数名
+         * value->参数值到实例的映射, 实例按注册顺序排列
+         */
+        private final Map<String, Map<String, List<InstanceMeta>>> byParam;
+
+        Postings(InstanceList list, Map<String, Map<String, List<InstanceMeta>>> byParam) {
+            this.list = list;
+            this.byParam = byParam;
+        }
+
+        boolean covers(Set<String> keys, Set<String> indexed) {
+            for (String key : keys) {
+                if (indexed.contains(key) && !byParam.containsKey(key)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void publish(long version, long timestamp) {
+        this.size = index.size();
+        this.version = version;
+        this.timestamp = timestamp;
+        this.current = null;
+    }
+}
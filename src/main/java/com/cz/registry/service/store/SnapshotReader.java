@@ -0,0 +1,105 @@
+package com.cz.registry.service.store;
+
+import com.alibaba.fastjson2.JSON;
+import com.cz.registry.meta.InstanceMeta;
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 快照流读取, 格式见 {@link SnapshotWriter}
+ * 按服务逐条读取, 内存中最多只缓存一个服务的记录
+ *
+ * @author Zjianru
+ */
+public class SnapshotReader {
+
+    private final DataInputStream in;
+
+    /**
+     * 快照版本号
+     */
+    @Getter
+    private final long version;
+
+    /**
+     * 读取并校验快照流头部
+     *
+     * @param in 输入流
+     * @throws IOException 读取失败或不是快照流
+     */
+    public SnapshotReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        int magic = this.in.readInt();
+        byte format = this.in.readByte();
+        if (magic != SnapshotWriter.MAGIC || format != SnapshotWriter.FORMAT) {
+            throw new IOException("unsupported snapshot stream, magic " + Integer.toHexString(magic) + " format " + format);
+        }
+        this.version = this.in.readLong();
+    }
+
+    /**
+     * 读取下一个服务记录
+     *
+     * @return 服务记录, 读到结束标记时返回 null
+     * @throws IOException 读取失败或流被截断
+     */
+    public ServiceRecord next() throws IOException {
+        int length = in.readInt();
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("illegal snapshot record length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        String service = readString(record);
+        long version = record.readLong();
+        long timestamp = record.readLong();
+        int count = record.readInt();
+        List<InstanceMeta> instances = new ArrayList<>(count);
+        long[] heartbeats = new long[count];
+        for (int i = 0; i < count; i++) {
+            String scheme = readString(record);
+            String host = readString(record);
+            int port = record.readInt();
+            String context = readString(record);
+            boolean status = record.readBoolean();
+            String params = readString(record);
+            instances.add(new InstanceMeta(host, port < 0 ? null : port, context, scheme, status,
+                    params == null ? null : JSON.parseObject(params)));
+            heartbeats[i] = record.readLong();
+        }
+        return new ServiceRecord(service, InstanceList.of(version == SnapshotWriter.NONE ? null : version,
+                timestamp == SnapshotWriter.NONE ? null : timestamp, instances), heartbeats);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 单个服务的快照记录
+     *
+     * @param service    服务名称
+     * @param instances  实例列表
+     * @param heartbeats 与实例一一对应的心跳时间戳, 没有心跳记录时为 {@link SnapshotWriter#NONE}
+     */
+    public record ServiceRecord(String service, InstanceList instances, long[] heartbeats) {
+    }
+}
@@ -0,0 +1,120 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * 快照流写入
+ * 快照按服务逐条写出, 每条记录带长度前缀, 内存中最多只缓存一个服务的记录
+ * <p>
+ * 格式:
+ * <pre>
+ * int    MAGIC
+ * byte   FORMAT
+ * long   快照版本号
+ * 重复: int 记录长度(大于 0) + 服务记录
+ *        string 服务名称, long 服务版本号, long 发布时间戳, int 实例数量
+ *        每个实例: string scheme, string host, int port, string context, boolean status, string params(json), long 心跳时间戳
+ * int    0, 表示结束
+ * </pre>
+ * string 为 int 长度(null 为 -1) + UTF-8 字节; 缺失的版本号、时间戳写为 {@link #NONE}
+ *
+ * @author Zjianru
+ */
+public class SnapshotWriter {
+
+    /**
+     * 快照流魔数, "CZSN"
+     */
+    static final int MAGIC = 0x435A534E;
+
+    /**
+     * 快照流格式版本
+     */
+    static final byte FORMAT = 1;
+
+    /**
+     * 缺失的版本号、时间戳
+     */
+    public static final long NONE = -1L;
+
+    private final DataOutputStream out;
+
+    /**
+     * 单个服务记录的缓冲, 用于计算长度前缀, 各服务之间复用
+     */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+    private final DataOutputStream record = new DataOutputStream(buffer);
+
+    /**
+     * 创建快照流并写出头部
+     *
+     * @param out     输出流
+     * @param version 快照版本号
+     * @throws IOException 写出失败
+     */
+    public SnapshotWriter(OutputStream out, long version) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(FORMAT);
+        this.out.writeLong(version);
+    }
+
+    /**
+     * 写出一个服务的实例列表
+     *
+     * @param service   服务名称
+     * @param instances 服务当前发布的实例列表
+     * @param heartbeat 实例的心跳时间戳, 没有心跳记录时返回 {@link #NONE}
+     * @throws IOException 写出失败
+     */
+    public void write(String service, InstanceList instances, ToLongFunction<InstanceMeta> heartbeat) throws IOException {
+        buffer.reset();
+        writeString(record, service);
+        record.writeLong(instances.getVersion() == null ? NONE : instances.getVersion());
+        record.writeLong(instances.getTimestamp() == null ? NONE : instances.getTimestamp());
+        List<InstanceMeta> list = instances.getInstances();
+        record.writeInt(list.size());
+        for (InstanceMeta instance : list) {
+            writeString(record, instance.getScheme());
+            writeString(record, instance.getHost());
+            record.writeInt(instance.getPort() == null ? -1 : instance.getPort());
+            writeString(record, instance.getContext());
+            record.writeBoolean(instance.isStatus());
+            writeString(record, instance.getParams() == null ? null : instance.metasTransfer());
+            record.writeLong(heartbeat.applyAsLong(instance));
+        }
+        record.flush();
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    /**
+     * 写出结束标记并刷新输出流, 不关闭底层输出流
+     *
+     * @throws IOException 写出失败
+     */
+    public void finish() throws IOException {
+        out.writeInt(0);
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
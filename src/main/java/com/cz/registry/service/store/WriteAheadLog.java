@@ -0,0 +1,460 @@
+package com.cz.registry.service.store;
+
+import com.alibaba.fastjson2.JSONB;
+import com.cz.registry.meta.ChangeRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 注册表的预写日志与检查点
+ * 每条变更记录在内存生效后追加到当前日志段, fsync 之后才视为持久化; 定期以快照流写出检查点,
+ * 检查点之前的日志段随即删除。启动时加载最新的检查点, 再按顺序重放其后的日志段。
+ * <p>
+ * 开启组提交时, 写入方只把记录放入队列, 由单独的刷盘线程把当前排队的所有记录一次写出并 fsync 一次,
+ * 并发写入越多, 每条记录分摊的 fsync 越少; 关闭时刷盘线程每次只取一条记录单独写出并 fsync。
+ * 无论是否开启, 写入方都不在调用线程上做 IO, 因此可以在持有服务锁时追加记录。
+ * <p>
+ * 目录结构:
+ * <pre>
+ * wal-{序号}.log         日志段, 重复: int 记录长度 + int crc32 + 记录(JSONB 编码的 {@link ChangeRecord})
+ * checkpoint-{序号}.snap 检查点, 格式见 {@link SnapshotWriter}, 包含序号小于该值的所有日志段
+ * </pre>
+ * 日志段末尾被截断或校验失败的记录视为崩溃时未写完, 恢复时丢弃并截断
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class WriteAheadLog implements Closeable {
+
+    static final String SEGMENT_PREFIX = "wal-";
+
+    static final String SEGMENT_SUFFIX = ".log";
+
+    static final String CHECKPOINT_PREFIX = "checkpoint-";
+
+    static final String CHECKPOINT_SUFFIX = ".snap";
+
+    /**
+     * 单条记录的长度上限
+     */
+    static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * 单次组提交最多写出的记录数
+     */
+    static final int MAX_BATCH = 4096;
+
+    /**
+     * 写出快照流
+     */
+    @FunctionalInterface
+    public interface SnapshotSource {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * 读取快照流
+     */
+    @FunctionalInterface
+    public interface SnapshotLoader {
+        void read(InputStream in) throws IOException;
+    }
+
+    private final Path dir;
+
+    /**
+     * 是否开启组提交
+     */
+    private final boolean groupCommit;
+
+    /**
+     * 当前日志段超过该字节数时立即写出检查点
+     */
+    private final long segmentSize;
+
+    /**
+     * 等待组提交的记录
+     */
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * 串行化检查点, 与日志写入互不阻塞
+     */
+    private final Object checkpointLock = new Object();
+
+    private final AtomicBoolean checkpointPending = new AtomicBoolean();
+
+    private ScheduledExecutorService scheduler;
+
+    private Thread flusher;
+
+    private SnapshotSource source;
+
+    /**
+     * 当前日志段, 以下三项由当前对象的锁保护
+     */
+    private FileChannel channel;
+
+    private long segment;
+
+    private long written;
+
+    private volatile boolean closed;
+
+    /**
+     * @param dir         数据目录
+     * @param groupCommit 是否开启组提交
+     * @param segmentSize 日志段超过该字节数时写出检查点
+     */
+    public WriteAheadLog(Path dir, boolean groupCommit, long segmentSize) {
+        this.dir = dir;
+        this.groupCommit = groupCommit;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 加载最新的检查点并按顺序重放其后的日志段, 需在 {@link #start} 之前调用
+     *
+     * @param loader 读取检查点
+     * @param replay 重放单条变更记录, 检查点可能已包含部分记录, 重放方需跳过
+     * @return 重放的记录数
+     * @throws IOException 读取失败
+     */
+    public long recover(SnapshotLoader loader, Consumer<ChangeRecord> replay) throws IOException {
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        TreeMap<Long, Path> checkpoints = list(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        long from = 0;
+        Map.Entry<Long, Path> checkpoint = checkpoints.lastEntry();
+        if (checkpoint != null) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(checkpoint.getValue()), 64 * 1024)) {
+                loader.read(in);
+            }
+            from = checkpoint.getKey();
+            log.info("czRegistry==> loaded checkpoint {}", checkpoint.getValue());
+        }
+        long replayed = 0;
+        for (Map.Entry<Long, Path> entry : segments.tailMap(from, true).entrySet()) {
+            replayed += replay(entry.getValue(), replay);
+        }
+        segment = Math.max(from, segments.isEmpty() ? 0 : segments.lastKey() + 1);
+        return replayed;
+    }
+
+    /**
+     * 打开新的日志段开始写入, 并按周期写出检查点
+     *
+     * @param source             写出检查点的快照流
+     * @param checkpointInterval 检查点周期, 单位毫秒, 为 0 时只在日志段超过大小时写出
+     * @throws IOException 日志段创建失败
+     */
+    public void start(SnapshotSource source, long checkpointInterval) throws IOException {
+        this.source = source;
+        Files.createDirectories(dir);
+        synchronized (this) {
+            open();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "czRegistry-wal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (checkpointInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkpointQuietly, checkpointInterval, checkpointInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+        flusher = new Thread(this::flush, "czRegistry-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 追加一条变更记录, 调用方应在内存状态生效之后、释放服务锁之前调用, 以保证同一服务的记录按版本顺序写入;
+     * 记录只放入刷盘队列, 调用方应在释放服务锁之后等待返回的结果
+     *
+     * @param record 变更记录
+     * @return 记录 fsync 之后完成, 写入失败时异常完成
+     */
+    public CompletableFuture<Void> append(ChangeRecord record) {
+        Entry entry = new Entry(encode(record), new CompletableFuture<>());
+        if (closed) {
+            entry.done.completeExceptionally(new IOException("write-ahead log closed"));
+        } else {
+            queue.add(entry);
+        }
+        return entry.done;
+    }
+
+    /**
+     * 写出检查点
+     * 先切换到新的日志段, 此前写入旧日志段的记录都已在内存中生效, 因此随后写出的快照包含它们;
+     * 检查点原子重命名生效后, 删除旧的日志段与检查点
+     *
+     * @throws IOException 写出失败, 此时旧的检查点与日志段保持不变
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            checkpointPending.set(false);
+            long covered;
+            synchronized (this) {
+                if (channel == null) {
+                    return;
+                }
+                channel.force(false);
+                channel.close();
+                segment++;
+                open();
+                covered = segment;
+            }
+            Path tmp = dir.resolve(CHECKPOINT_PREFIX + name(covered) + ".tmp");
+            try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file), 64 * 1024)) {
+                source.write(out);
+                out.flush();
+                file.force(true);
+            }
+            Path target = dir.resolve(CHECKPOINT_PREFIX + name(covered) + CHECKPOINT_SUFFIX);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            for (Path path : list(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(covered).values()) {
+                Files.deleteIfExists(path);
+            }
+            for (Path path : list(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX).headMap(covered).values()) {
+                Files.deleteIfExists(path);
+            }
+            log.debug("czRegistry==> checkpoint {} written", target);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * 刷盘线程, 开启组提交时每次取出当前排队的所有记录, 否则每次取出一条, 一次写出并 fsync
+     */
+    private void flush() {
+        int limit = groupCommit ? MAX_BATCH : 1;
+        List<Entry> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, limit - 1);
+                commit(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写出一批记录并 fsync, 完成后通知写入方
+     *
+     * @param batch 记录
+     */
+    private void commit(List<Entry> batch) {
+        try {
+            long size;
+            synchronized (this) {
+                if (channel == null) {
+                    throw new IOException("write-ahead log closed");
+                }
+                int length = 0;
+                for (Entry entry : batch) {
+                    length += entry.frame.length;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                for (Entry entry : batch) {
+                    buffer.put(entry.frame);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                written += length;
+                size = written;
+            }
+            batch.forEach(entry -> entry.done.complete(null));
+            if (size >= segmentSize && scheduler != null && checkpointPending.compareAndSet(false, true)) {
+                scheduler.execute(this::checkpointQuietly);
+            }
+        } catch (IOException e) {
+            log.error("czRegistry==> write-ahead log append failed", e);
+            batch.forEach(entry -> entry.done.completeExceptionally(e));
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            log.error("czRegistry==> write checkpoint failed", e);
+        }
+    }
+
+    /**
+     * 打开当前序号的日志段, 调用方需持有当前对象的锁
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(dir.resolve(SEGMENT_PREFIX + name(segment) + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        written = 0;
+        syncDirectory();
+    }
+
+    /**
+     * 按顺序重放一个日志段, 遇到截断或校验失败的记录时丢弃其后的内容
+     *
+     * @param path   日志段
+     * @param replay 重放单条变更记录
+     * @return 重放的记录数
+     */
+    private static long replay(Path path, Consumer<ChangeRecord> replay) throws IOException {
+        long count = 0;
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return count;
+                }
+                int crc = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    throw new EOFException("invalid record length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (crc != crc(payload)) {
+                    throw new EOFException("checksum mismatch");
+                }
+                replay.accept(JSONB.parseObject(payload, ChangeRecord.class));
+                position += 8 + length;
+                count++;
+            }
+        } catch (EOFException e) {
+            log.warn("czRegistry==> discard torn tail of {} at offset {}: {}", path, position, e.getMessage());
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(position);
+                file.force(true);
+            }
+            return count;
+        }
+    }
+
+    private static byte[] encode(ChangeRecord record) {
+        byte[] payload = JSONB.toBytes(record);
+        return ByteBuffer.allocate(8 + payload.length)
+                .putInt(payload.length)
+                .putInt(crc(payload))
+                .put(payload)
+                .array();
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 列出数据目录中给定前后缀的文件, 按序号排序
+     */
+    private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(dir)) {
+            paths.forEach(path -> {
+                String file = path.getFileName().toString();
+                if (file.startsWith(prefix) && file.endsWith(suffix)) {
+                    try {
+                        files.put(Long.parseLong(file.substring(prefix.length(), file.length() - suffix.length())), path);
+                    } catch (NumberFormatException ignored) {
+                        // 不是本日志写出的文件
+                    }
+                }
+            });
+        }
+        return files;
+    }
+
+    /**
+     * fsync 数据目录, 使新建、重命名的文件在崩溃后仍然可见
+     */
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // 部分平台不支持打开目录, 只影响崩溃时新文件的可见性
+            log.debug("czRegistry==> fsync directory {} failed", dir, e);
+        }
+    }
+
+    private static String name(long sequence) {
+        return String.format("%020d", sequence);
+    }
+
+    /**
+     * 等待写出的记录
+     *
+     * @param frame 长度、校验和与记录
+     * @param done  fsync 之后完成
+     */
+    private record Entry(byte[] frame, CompletableFuture<Void> done) {
+    }
+}
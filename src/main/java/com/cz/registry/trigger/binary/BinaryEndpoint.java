@@ -0,0 +1,144 @@
+package com.cz.registry.trigger.binary;
+
+import com.alibaba.fastjson2.JSONB;
+import com.cz.registry.cluster.Cluster;
+import com.cz.registry.cluster.connect.Frame;
+import com.cz.registry.cluster.connect.impl.BinaryCall;
+import com.cz.registry.cluster.raft.RaftMessage;
+import com.cz.registry.config.ConfigProperties;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.service.impl.CzRegistryService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 集群二进制通信的服务端, 与 {@link BinaryCall} 配合使用
+ * 只提供节点之间高频使用的接口: /info 探测、/changes 增量同步与 /raft 消息, 语义与 http 接口相同。
+ * 这些处理都不会阻塞, 因此在连接的读线程中按顺序处理, 读完当前已到达的请求后再统一 flush 响应
+ *
+ * @author Zjianru
+ */
+@Slf4j
+public class BinaryEndpoint {
+
+    private final Cluster cluster;
+
+    private final ConfigProperties configProperties;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "czRegistry-binary-endpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ServerSocket serverSocket;
+
+    public BinaryEndpoint(Cluster cluster, ConfigProperties configProperties) {
+        this.cluster = cluster;
+        this.configProperties = configProperties;
+    }
+
+    /**
+     * 集群通信方式为 binary 时开始监听, 端口为当前节点的 http 端口加上偏移
+     *
+     * @throws IOException 端口监听失败
+     */
+    public void start() throws IOException {
+        if (!"binary".equals(configProperties.getTransport())) {
+            return;
+        }
+        InetSocketAddress address = BinaryCall.address(cluster.self().getUrl(), configProperties.getBinaryPortOffset());
+        serverSocket = new ServerSocket(address.getPort());
+        executor.execute(this::accept);
+        log.info("czRegistry==> binary endpoint listening on {}", address.getPort());
+    }
+
+    public void stop() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.warn("czRegistry==> binary endpoint accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        log.debug("czRegistry==> binary connection from {}", socket.getRemoteSocketAddress());
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                handle(Frame.read(in)).write(out);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            log.debug("czRegistry==> binary connection from {} closed", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            log.debug("czRegistry==> binary connection from {} failed", socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    private Frame handle(Frame request) {
+        try {
+            Object result = route(request);
+            return Frame.ok(request.id(), result == null ? Frame.EMPTY : JSONB.toBytes(result));
+        } catch (Exception e) {
+            log.debug("czRegistry==> binary request {} failed", request.path(), e);
+            return Frame.error(request.id(), e.getMessage());
+        }
+    }
+
+    private Object route(Frame request) {
+        String path = request.path();
+        int query = path.indexOf('?');
+        String route = query < 0 ? path : path.substring(0, query);
+        return switch (route) {
+            case "/info" -> cluster.self();
+            case "/changes" -> CzRegistryService.changes(Long.parseLong(param(path, query, "since")));
+            case "/raft" -> {
+                if (cluster.getRaft() == null) {
+                    throw new RegistryException("raft consensus is not enabled on " + cluster.self().getUrl());
+                }
+                cluster.getRaft().receive(JSONB.parseObject(request.body(), RaftMessage.class));
+                yield null;
+            }
+            default -> throw new RegistryException("no binary route for " + route);
+        };
+    }
+
+    private static String param(String path, int query, String name) {
+        if (query >= 0) {
+            for (String pair : path.substring(query + 1).split("&")) {
+                if (pair.startsWith(name + "=")) {
+                    return pair.substring(name.length() + 1);
+                }
+            }
+        }
+        throw new RegistryException("missing parameter " + name + " in " + path);
+    }
+}
@@ -1,18 +1,35 @@
 package com.cz.registry.trigger.http;
 
+import com.alibaba.fastjson2.TypeReference;
 import com.cz.registry.cluster.Cluster;
+import com.cz.registry.cluster.ReadConsistency;
+import com.cz.registry.cluster.raft.RaftMessage;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.meta.ChangeSet;
+import com.cz.registry.meta.InstanceChanges;
 import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.InstanceRenewal;
+import com.cz.registry.meta.SelectStrategy;
 import com.cz.registry.meta.Server;
 import com.cz.registry.meta.Snapshot;
 import com.cz.registry.service.RegistryService;
 import com.cz.registry.service.impl.CzRegistryService;
 import com.cz.registry.util.RegistryUtils;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * rest controller for registry
@@ -23,6 +40,17 @@ import java.util.Map;
 @Slf4j
 public class RegistryController {
 
+    /**
+     * 服务版本号响应类型, 用于解析主节点返回的转发结果
+     */
+    private static final Type VERSIONS_TYPE = new TypeReference<Map<String, Long>>() {
+    }.getType();
+
+    /**
+     * 查询接口中不作为参数条件的请求参数
+     */
+    private static final Set<String> QUERY_RESERVED = Set.of("services", "minVersion", "maxStaleness", "linearizable");
+
     @Autowired
     RegistryService registryService;
 
@@ -32,6 +60,15 @@ public class RegistryController {
     @Autowired
     RegistryUtils utils;
 
+    @Autowired
+    ResponseCache responseCache;
+
+    @Autowired
+    VersionWatcher versionWatcher;
+
+    @Autowired
+    ReadConsistency readConsistency;
+
 
     /**
      * 通过POST请求注册服务实例。
@@ -44,9 +81,8 @@ public class RegistryController {
     public InstanceMeta registerByPost(@RequestParam String services, @RequestBody InstanceMeta instance) {
         // 记录注册服务的日志
         log.info("register service:{} instance:{}", services, instance);
-        utils.checkMaster();
-        // 调用注册服务，返回注册结果
-        return registryService.register(services, instance);
+        // 调用注册服务，返回注册结果，从节点转发给主节点
+        return utils.onMaster(instance, InstanceMeta.class, () -> registryService.register(services, instance));
     }
 
     /**
@@ -60,23 +96,103 @@ public class RegistryController {
     public InstanceMeta unregister(@RequestParam String services, @RequestBody InstanceMeta instance) {
         // 记录取消注册服务的请求信息
         log.info("unregister service:{} instance:{} ", services, instance);
-        utils.checkMaster();
-        // 调用注册中心服务，取消注册指定的服务实例
-        return registryService.unregister(services, instance);
+        // 调用注册中心服务，取消注册指定的服务实例，从节点转发给主节点
+        return utils.onMaster(instance, InstanceMeta.class, () -> registryService.unregister(services, instance));
+    }
+
+    /**
+     * 批量注册与注销服务实例。
+     * 同一服务下的所有变更一次性生效，且最多产生一次版本变化，避免滚动发布时下游反复拉取。
+     *
+     * @param changes 需要注册与注销的实例，按服务分组。
+     * @return 返回涉及的所有服务变更后的版本号，key为服务名，value为版本号。
+     */
+    @RequestMapping(value = "/batchChange", method = RequestMethod.POST)
+    public Map<String, Long> batchChange(@RequestBody InstanceChanges changes) {
+        // 记录请求信息
+        log.info("batchChange register services:{} unregister services:{}",
+                changes.getRegister() == null ? null : changes.getRegister().keySet(),
+                changes.getUnregister() == null ? null : changes.getUnregister().keySet());
+        // 调用注册服务，批量应用实例变更，从节点转发给主节点
+        return utils.onMaster(changes, VERSIONS_TYPE, () -> registryService.apply(changes));
     }
 
     /**
      * 请求处理函数，用于获取指定服务的所有实例信息。
+     * 响应体按服务版本号缓存, 客户端携带的 If-None-Match 与当前版本一致时返回 304。
      *
-     * @param services 需要查询的服务名称。
+     * @param services     需要查询的服务名称。
+     * @param minVersion   要求的注册中心全局版本号下限，可为空。
+     * @param maxStaleness 允许的最大陈旧时长，单位毫秒，可为空。
+     * @param linearizable 是否要求线性一致读，只有持有租约的主节点可以响应。
+     * @param ifNoneMatch  客户端上次获取到的 ETag，可为空。
      * @return 返回一个包含该服务所有实例信息的列表。
      */
     @RequestMapping(value = "/fetchAll", method = RequestMethod.GET)
-    public List<InstanceMeta> fetchAll(@RequestParam String services) {
-        // 记录请求日志
-        log.info("fetchAll service:{}", services);
-        // 调用服务注册中心，查询并返回指定服务的所有实例信息
-        return registryService.fetchAll(services);
+    public ResponseEntity<byte[]> fetchAll(@RequestParam String services,
+                                           @RequestParam(required = false) Long minVersion,
+                                           @RequestParam(required = false) Long maxStaleness,
+                                           @RequestParam(defaultValue = "false") boolean linearizable,
+                                           @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        // 记录请求日志, 查询为高频操作, 仅在 debug 级别输出
+        log.debug("fetchAll service:{}", services);
+        readConsistency.await(minVersion, maxStaleness, linearizable);
+        // 从响应缓存中获取指定服务的所有实例信息
+        return responseCache.fetchAll(services, ifNoneMatch);
+    }
+
+    /**
+     * 按附加参数查询指定服务的实例，只返回满足全部条件的实例。
+     * 除服务名称与一致性参数外，其余请求参数都作为参数条件，例如 /query?services=x&zone=a&canary=false。
+     *
+     * @param services     需要查询的服务名称。
+     * @param minVersion   要求的注册中心全局版本号下限，可为空。
+     * @param maxStaleness 允许的最大陈旧时长，单位毫秒，可为空。
+     * @param linearizable 是否要求线性一致读，只有持有租约的主节点可以响应。
+     * @param params       所有请求参数。
+     * @return 满足条件的实例列表。
+     */
+    @RequestMapping(value = "/query", method = RequestMethod.GET)
+    public List<InstanceMeta> query(@RequestParam String services,
+                                    @RequestParam(required = false) Long minVersion,
+                                    @RequestParam(required = false) Long maxStaleness,
+                                    @RequestParam(defaultValue = "false") boolean linearizable,
+                                    @RequestParam Map<String, String> params) {
+        log.debug("query service:{} params:{}", services, params);
+        readConsistency.await(minVersion, maxStaleness, linearizable);
+        Map<String, String> criteria = new HashMap<>(params);
+        criteria.keySet().removeAll(QUERY_RESERVED);
+        return registryService.query(services, criteria);
+    }
+
+    /**
+     * 由注册中心按策略为客户端选择指定服务的若干实例，客户端不必拉取全部实例后自行挑选。
+     * 可选策略为 round_robin、weighted、hash、least_recent，只在上线状态的实例中选择。
+     *
+     * @param services     需要选择实例的服务名称。
+     * @param strategy     选择策略，默认轮询。
+     * @param count        需要的实例数，默认 1。
+     * @param key          客户端标识，按 hash 策略选择时必填。
+     * @param minVersion   要求的注册中心全局版本号下限，可为空。
+     * @param maxStaleness 允许的最大陈旧时长，单位毫秒，可为空。
+     * @param linearizable 是否要求线性一致读，只有持有租约的主节点可以响应。
+     * @return 选中的实例列表。
+     */
+    @RequestMapping(value = "/select", method = RequestMethod.GET)
+    public List<InstanceMeta> select(@RequestParam String services,
+                                     @RequestParam(defaultValue = "round_robin") String strategy,
+                                     @RequestParam(defaultValue = "1") int count,
+                                     @RequestParam(required = false) String key,
+                                     @RequestParam(required = false) Long minVersion,
+                                     @RequestParam(required = false) Long maxStaleness,
+                                     @RequestParam(defaultValue = "false") boolean linearizable) {
+        log.debug("select service:{} strategy:{} count:{}", services, strategy, count);
+        SelectStrategy selectStrategy = SelectStrategy.of(strategy);
+        if (selectStrategy == SelectStrategy.HASH && key == null) {
+            throw new RegistryException("missing parameter key for hash select strategy");
+        }
+        readConsistency.await(minVersion, maxStaleness, linearizable);
+        return registryService.select(services, selectStrategy, count, key);
     }
 
     /**
@@ -90,10 +206,8 @@ public class RegistryController {
     public Long reNew(@RequestParam String services, @RequestBody InstanceMeta instance) {
         // 记录请求信息
         log.info("reNew service:{} instance:{}", services, instance);
-        utils.checkMaster(); // 检查是否为主节点
-        // 执行重新注册操作
-        Map<String, Long> versions = registryService.reNew(instance, services);
-        return versions.get(services);
+        // 执行重新注册操作，从节点转发给主节点
+        return utils.onMaster(instance, Long.class, () -> registryService.reNew(instance, services).get(services));
     }
 
     /**
@@ -107,39 +221,91 @@ public class RegistryController {
     public Long reNews(@RequestParam String services, @RequestBody InstanceMeta instance) {
         // 记录请求信息
         log.info("reNews service:{} instance:{}", services, instance);
-        utils.checkMaster(); // 检查是否为主节点
-        // 执行重新注册操作
-        registryService.reNew(instance, services.split(","));
-        return System.currentTimeMillis();
+        // 执行重新注册操作，从节点转发给主节点
+        return utils.onMaster(instance, Long.class, () -> {
+            registryService.reNew(instance, services.split(","));
+            return System.currentTimeMillis();
+        });
     }
 
 
+    /**
+     * 批量心跳接口，一次请求为多个实例在多个服务下续约。
+     * 适用于承载大量实例的 sidecar 或代理心跳的网关，整个批次只检查一次主节点。
+     *
+     * @param renewals 实例及其需要续约的服务列表。
+     * @return 返回涉及的所有服务的版本号，key为服务名，value为版本号。
+     */
+    @RequestMapping(value = "/batchReNew", method = RequestMethod.POST)
+    public Map<String, Long> batchReNew(@RequestBody List<InstanceRenewal> renewals) {
+        // 记录请求信息, 批量心跳频繁且条目较多, 仅记录条目数
+        log.debug("batchReNew size:{}", renewals.size());
+        // 执行批量续约，从节点转发给主节点
+        return utils.onMaster(renewals, VERSIONS_TYPE, () -> registryService.reNew(renewals));
+    }
+
     /**
      * 请求当前服务的版本信息。
      *
-     * @param services 需要查询版本的服务名称。
+     * @param services     需要查询版本的服务名称。
+     * @param minVersion   要求的注册中心全局版本号下限，可为空。
+     * @param maxStaleness 允许的最大陈旧时长，单位毫秒，可为空。
+     * @param linearizable 是否要求线性一致读，只有持有租约的主节点可以响应。
      * @return 返回对应服务的版本号，类型为Long。
      */
     @RequestMapping(value = "/version", method = RequestMethod.GET)
-    public Long version(@RequestParam String services) {
+    public Long version(@RequestParam String services,
+                        @RequestParam(required = false) Long minVersion,
+                        @RequestParam(required = false) Long maxStaleness,
+                        @RequestParam(defaultValue = "false") boolean linearizable) {
         // 记录请求版本信息的日志
         log.info("version service:{}", services);
+        readConsistency.await(minVersion, maxStaleness, linearizable);
         // 通过服务注册中心查询指定服务的版本号
         return registryService.version(services);
     }
 
     /**
      * 查询指定服务的版本信息。
+     * 响应体按注册中心全局版本号缓存, 版本信息未变化时返回 304。
      *
-     * @param services 需要查询版本信息的服务名，多个服务名以逗号分隔。
+     * @param services     需要查询版本信息的服务名，多个服务名以逗号分隔。
+     * @param minVersion   要求的注册中心全局版本号下限，可为空。
+     * @param maxStaleness 允许的最大陈旧时长，单位毫秒，可为空。
+     * @param linearizable 是否要求线性一致读，只有持有租约的主节点可以响应。
+     * @param ifNoneMatch  客户端上次获取到的 ETag，可为空。
      * @return 返回一个Map，其中key为服务名，value为该服务的版本号。
      */
     @RequestMapping(value = "/versions", method = RequestMethod.GET)
-    public Map<String, Long> versions(@RequestParam String services) {
+    public ResponseEntity<byte[]> versions(@RequestParam String services,
+                                           @RequestParam(required = false) Long minVersion,
+                                           @RequestParam(required = false) Long maxStaleness,
+                                           @RequestParam(defaultValue = "false") boolean linearizable,
+                                           @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        // 记录请求信息
+        log.debug("versions service:{}", services);
+        readConsistency.await(minVersion, maxStaleness, linearizable);
+        // 先读取全局版本号再查询, 保证缓存内容不旧于其对应的版本号
+        long globalVersion = CzRegistryService.getVersion();
+        return responseCache.versions(services, globalVersion,
+                () -> registryService.versions(services.split(",")), ifNoneMatch);
+    }
+
+    /**
+     * 监听服务版本变化。
+     * 客户端提交已知的服务版本号，请求被挂起直到其中任一服务的版本发生变化或超时，
+     * 挂起期间不占用 servlet 线程。
+     *
+     * @param timeout  最长挂起时间，单位毫秒。
+     * @param versions 客户端已知的服务版本号，key为服务名，value为版本号，未知版本可为null。
+     * @return 版本发生变化的服务及其最新版本号，超时返回空Map。
+     */
+    @RequestMapping(value = "/watch", method = RequestMethod.POST)
+    public DeferredResult<Map<String, Long>> watch(@RequestParam(defaultValue = "30000") long timeout,
+                                                   @RequestBody Map<String, Long> versions) {
         // 记录请求信息
-        log.info("versions service:{}", services);
-        // 调用服务注册中心，查询指定服务的版本信息
-        return registryService.versions(services.split(","));
+        log.debug("watch services:{} timeout:{}", versions, timeout);
+        return versionWatcher.watch(versions, timeout);
     }
 
     /**
@@ -223,4 +389,42 @@ public class RegistryController {
         return CzRegistryService.snapshot();
     }
 
+    /**
+     * 以二进制流的方式获取快照, 按服务逐条写出, 格式见 {@link com.cz.registry.service.store.SnapshotWriter}。
+     *
+     * @param response http 响应
+     * @throws IOException 写出失败
+     */
+    @RequestMapping(value = "/snapshot/stream", method = RequestMethod.GET)
+    public void snapshotStream(HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        CzRegistryService.writeSnapshot(response.getOutputStream());
+    }
+
+    /**
+     * 接收其他节点发来的 raft 消息, 消息异步处理, 响应以另一条消息发回。
+     *
+     * @param message raft 消息
+     */
+    @RequestMapping(value = "/raft", method = RequestMethod.POST)
+    public void raft(@RequestBody RaftMessage message) {
+        log.debug("raft message:{} from {}", message.getType(), message.getFrom());
+        if (cluster.getRaft() == null) {
+            throw new RegistryException("raft consensus is not enabled on " + cluster.self().getUrl());
+        }
+        cluster.getRaft().receive(message);
+    }
+
+    /**
+     * 获取给定版本之后的增量变更，供从节点增量同步。
+     *
+     * @param since 从节点当前的版本号。
+     * @return ChangeSet 增量变更，版本已超出变更日志范围时标记为需要全量同步。
+     */
+    @RequestMapping(value = "/changes", method = RequestMethod.GET)
+    public ChangeSet changes(@RequestParam long since) {
+        log.debug("changes since:{}", since);
+        return CzRegistryService.changes(since);
+    }
+
 }
@@ -0,0 +1,138 @@
+package com.cz.registry.trigger.http;
+
+import com.cz.registry.exception.ExErrorCodes;
+import com.cz.registry.exception.RegistryException;
+import com.cz.registry.service.impl.CzRegistryService;
+import com.cz.registry.service.store.InstanceList;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * 查询接口的响应缓存
+ * 缓存序列化后的响应字节, 以版本号为键; 服务版本号变化后旧的缓存自动失效
+ * 同时根据 ETag / If-None-Match 对未变化的客户端直接返回 304
+ *
+ * @author Zjianru
+ */
+@Component
+public class ResponseCache {
+
+    /**
+     * versions 缓存的最大条目数, 超出后整体清空, 防止客户端传入任意服务组合撑爆内存
+     */
+    private static final int MAX_VERSIONS_ENTRIES = 4096;
+
+    /**
+     * fetchAll 缓存
+     * key->service name
+     * value->该服务某个版本下序列化后的实例列表
+     */
+    private final Map<String, Entry> instances = new ConcurrentHashMap<>();
+
+    /**
+     * versions 缓存
+     * key->请求的服务列表
+     * value->注册中心某个全局版本下序列化后的版本信息
+     */
+    private final Map<String, Entry> versions = new ConcurrentHashMap<>();
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    /**
+     * 获取指定服务的实例列表响应
+     *
+     * @param service     服务名称
+     * @param ifNoneMatch 客户端持有的 ETag, 可为空
+     * @return 响应, 客户端已持有最新版本时返回 304
+     */
+    public ResponseEntity<byte[]> fetchAll(String service, String ifNoneMatch) {
+        InstanceList current = CzRegistryService.current(service);
+        if (current == null) {
+            return ResponseEntity.ok().build();
+        }
+        Long version = current.getVersion();
+        Entry entry = instances.get(service);
+        if (entry == null || !entry.matches(version)) {
+            byte[] body = encode(current.getInstances());
+            entry = new Entry(version, body, "\"" + version + "\"");
+            // 并发请求可能以旧版本覆盖新版本, 下次请求发现版本不一致时会重新生成
+            instances.put(service, entry);
+        }
+        return toResponse(entry, ifNoneMatch);
+    }
+
+    /**
+     * 获取多个服务的版本号响应
+     *
+     * @param services       请求的服务列表, 逗号分隔
+     * @param globalVersion  读取前的注册中心全局版本号
+     * @param versionsLoader 版本号查询
+     * @param ifNoneMatch    客户端持有的 ETag, 可为空
+     * @return 响应, 版本号未变化时返回 304
+     */
+    public ResponseEntity<byte[]> versions(String services, long globalVersion,
+                                           Supplier<Map<String, Long>> versionsLoader, String ifNoneMatch) {
+        Entry entry = versions.get(services);
+        if (entry == null || !entry.matches(globalVersion)) {
+            byte[] body = encode(versionsLoader.get());
+            entry = new Entry(globalVersion, body, etag(body));
+            if (versions.size() >= MAX_VERSIONS_ENTRIES) {
+                versions.clear();
+            }
+            versions.put(services, entry);
+        }
+        return toResponse(entry, ifNoneMatch);
+    }
+
+    private ResponseEntity<byte[]> toResponse(Entry entry, String ifNoneMatch) {
+        // If-None-Match 可能携带多个 ETag, ETag 自带引号, 直接按子串匹配
+        if (ifNoneMatch != null && ifNoneMatch.contains(entry.etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(entry.etag).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(entry.etag)
+                .body(entry.body);
+    }
+
+    private byte[] encode(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new RegistryException(e, ExErrorCodes.UNKNOWN_ERROR);
+        }
+    }
+
+    /**
+     * 根据响应内容生成 ETag, 内容不变则 ETag 不变
+     */
+    private static String etag(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + body.length + "\"";
+    }
+
+    /**
+     * 缓存条目
+     *
+     * @param version 对应的版本号
+     * @param body    序列化后的响应体
+     * @param etag    ETag
+     */
+    private record Entry(Long version, byte[] body, String etag) {
+        boolean matches(Long other) {
+            return version == null ? other == null : version.equals(other);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.cz.registry.trigger.http;
+
+import com.cz.registry.service.RegistryService;
+import com.cz.registry.service.impl.CzRegistryService;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 服务版本监听
+ * 客户端提交已知的服务版本号, 请求被挂起直到其中任一服务版本变化或超时
+ * 挂起的请求以 {@link DeferredResult} 形式保存, 不占用 servlet 线程
+ *
+ * @author Zjianru
+ */
+@Slf4j
+@Component
+public class VersionWatcher {
+
+    /**
+     * 挂起时间上限, 单位毫秒
+     */
+    static final long MAX_TIMEOUT = 120 * 1000L;
+
+    /**
+     * 挂起时间下限, 单位毫秒; DeferredResult 的超时为 0 时表示永不超时, 不能直接使用客户端传入的值
+     */
+    static final long MIN_TIMEOUT = 1000L;
+
+    /**
+     * 挂起中的监听
+     * key->service name
+     * value->关注该服务的监听集合
+     */
+    private final Map<String, Set<Watch>> watches = new ConcurrentHashMap<>();
+
+    @Autowired
+    RegistryService registryService;
+
+    @PostConstruct
+    void init() {
+        CzRegistryService.addListener(this::onChange);
+    }
+
+    /**
+     * 挂起一个监听
+     *
+     * @param known   客户端已知的服务版本号, 未知的版本号可为 null
+     * @param timeout 挂起时间, 单位毫秒, 限制在 [{@link #MIN_TIMEOUT}, {@link #MAX_TIMEOUT}] 之间
+     * @return 版本发生变化的服务及其最新版本号, 超时返回空 map
+     */
+    public DeferredResult<Map<String, Long>> watch(Map<String, Long> known, long timeout) {
+        DeferredResult<Map<String, Long>> result =
+                new DeferredResult<>(Math.min(Math.max(timeout, MIN_TIMEOUT), MAX_TIMEOUT), Collections.emptyMap());
+        if (known == null || known.isEmpty()) {
+            result.setResult(Collections.emptyMap());
+            return result;
+        }
+        Watch watch = new Watch(known, result);
+        // 先登记再检查, 避免登记期间发生的版本变化被遗漏
+        // 在 compute 内登记, 与 release 中移除空集合互斥, 不会登记到已被移除的集合中
+        known.keySet().forEach(service -> watches.compute(service, (k, interested) -> {
+            Set<Watch> set = interested == null ? ConcurrentHashMap.newKeySet() : interested;
+            set.add(watch);
+            return set;
+        }));
+        result.onCompletion(() -> release(watch));
+        watch.tryComplete();
+        return result;
+    }
+
+    /**
+     * 服务版本变化回调, 唤醒关注该服务的监听
+     *
+     * @param service 服务名称
+     * @param version 变化后的版本号
+     */
+    void onChange(String service, Long version) {
+        Set<Watch> interested = watches.get(service);
+        if (interested == null || interested.isEmpty()) {
+            return;
+        }
+        for (Watch watch : interested) {
+            Long known = watch.known.get(service);
+            if (version != null && !version.equals(known)) {
+                watch.tryComplete();
+            }
+        }
+    }
+
+    /**
+     * 移除已完成的监听, 服务不再有监听时一并移除其集合, 避免关注过的服务名一直留在 watches 中
+     */
+    private void release(Watch watch) {
+        watch.known.keySet().forEach(service -> watches.computeIfPresent(service, (k, interested) -> {
+            interested.remove(watch);
+            return interested.isEmpty() ? null : interested;
+        }));
+    }
+
+    /**
+     * 单个挂起的监听
+     */
+    private class Watch {
+        final Map<String, Long> known;
+        final DeferredResult<Map<String, Long>> result;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        Watch(Map<String, Long> known, DeferredResult<Map<String, Long>> result) {
+            this.known = known;
+            this.result = result;
+        }
+
+        /**
+         * 对比已知版本与当前版本, 有变化则返回变化的服务; 保证只返回一次
+         */
+        void tryComplete() {
+            if (done.get()) {
+                return;
+            }
+            Map<String, Long> changed = new HashMap<>();
+            known.forEach((service, version) -> {
+                Long current = registryService.version(service);
+                // 从节点按快照重置后版本号可能回退, 因此只要不一致即视为变化
+                if (current != null && !current.equals(version)) {
+                    changed.put(service, current);
+                }
+            });
+            if (!changed.isEmpty() && done.compareAndSet(false, true)) {
+                log.debug("czRegistry===>watch completed with changes {}", changed);
+                result.setResult(changed);
+            }
+        }
+    }
+}
@@ -1,20 +1,38 @@
 package com.cz.registry.util;
 
+import com.alibaba.fastjson2.JSON;
 import com.cz.registry.cluster.Cluster;
+import com.cz.registry.cluster.connect.Channel;
 import com.cz.registry.exception.RegistryException;
+import com.cz.registry.meta.Server;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.lang.reflect.Type;
+import java.util.function.Supplier;
+
 /**
  * registry utils
  *
  * @author Zjianru
  */
+@Slf4j
 @Component
 public class RegistryUtils {
     @Autowired
     Cluster cluster;
 
+    @Autowired
+    Channel channel;
+
+    /**
+     * 当前请求, 由 spring 注入为按线程取值的代理
+     */
+    @Autowired
+    HttpServletRequest request;
+
     /**
      * 检查当前节点是否为主节点。
      * 如果当前节点不是主节点，则抛出RegistryException异常。
@@ -22,16 +40,47 @@ public class RegistryUtils {
      * <p>
      * 参数: 无
      * 返回值: 无
-     * 抛出异常: RegistryException - 如果当前节点不是主节点。
+     * 抛出异常: RegistryException - 如果当前节点不是主节点，或主节点租约已过期。
      */
     public void checkMaster() {
         // 检查当前节点是否为主节点，如果不是，则抛出异常
         if (!cluster.self().isMaster()) {
             throw new RegistryException("update failed ! current node not master ==> current master is " + cluster.getMaster());
         }
+        // 租约过期的主节点可能已被取代, 立即拒绝
+        if (!cluster.hasLease()) {
+            throw new RegistryException("update failed ! master lease expired ==> current node " + cluster.self().getUrl());
+        }
     }
 
 
+    /**
+     * 在主节点上执行写操作。
+     * 当前节点为主节点时直接在本地执行; 否则把当前请求原样转发给主节点, 并返回主节点的响应,
+     * 客户端无需先查询主节点再重试。已被转发过的请求不再二次转发, 避免集群视图不一致时请求在节点间往返。
+     *
+     * @param body  请求体, 转发时重新序列化
+     * @param type  响应类型
+     * @param local 本地执行的写操作
+     * @return 写操作的结果
+     * @throws RegistryException 当前没有主节点, 或当前节点是租约已过期的主节点, 或转发过来的请求到达的不是主节点, 或转发失败
+     */
+    public <T> T onMaster(Object body, Type type, Supplier<T> local) {
+        if (cluster.self().isMaster()) {
+            checkMaster();
+            return local.get();
+        }
+        Server master = cluster.getMaster();
+        if (master == null || request.getHeader(Channel.FORWARDED_HEADER) != null) {
+            // 没有可转发的主节点, 当前节点又不是主节点, 直接失败
+            checkMaster();
+        }
+        String query = request.getQueryString();
+        String url = master.getUrl() + request.getRequestURI() + (query == null ? "" : "?" + query);
+        log.debug("czRegistry==> forward write request to master {}", url);
+        return channel.forward(url, JSON.toJSONString(body), type);
+    }
+
     /**
      * 检查字符串是否 包含192.168.31.151 有则进行替换
      *
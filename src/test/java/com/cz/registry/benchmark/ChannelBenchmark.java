@@ -0,0 +1,80 @@
+package com.cz.registry.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.cz.registry.cluster.connect.Channel;
+import com.cz.registry.cluster.connect.impl.BinaryCall;
+import com.cz.registry.cluster.connect.impl.HttpCall;
+import com.cz.registry.meta.Server;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 集群通信基准
+ * 对同一个注册中心节点的 /info 接口, 对比 http 与 binary 两种通信方式的单请求延迟和并发吞吐
+ * <p>
+ * 运行方式: 先以 --registry.transport=binary 启动一个注册中心节点, 再在 test classpath 下执行 main 方法,
+ * 可选参数依次为节点地址 (默认 http://127.0.0.1:9090)、单轮运行秒数 (默认 2 秒)
+ *
+ * @author Zjianru
+ */
+public class ChannelBenchmark {
+
+    private static final int[] CONCURRENCY = {1, 16, 64};
+
+    public static void main(String[] args) throws Exception {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        String url = (args.length > 0 ? args[0] : "http://127.0.0.1:9090") + "/info";
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 2L;
+        HttpCall http = new HttpCall(5000, 0);
+        Channel binary = new BinaryCall(http, 5000, 1000);
+        // 预热连接与 jit
+        run(http, url, 16, 1);
+        run(binary, url, 16, 1);
+        System.out.printf("%s, %ds per run%n", url, seconds);
+        System.out.printf("%-12s %-16s %-16s %-16s %-16s%n", "in-flight", "http ops/s", "http avg us", "binary ops/s", "binary avg us");
+        for (int inFlight : CONCURRENCY) {
+            long[] h = run(http, url, inFlight, seconds);
+            long[] b = run(binary, url, inFlight, seconds);
+            System.out.printf("%-12d %-16d %-16d %-16d %-16d%n", inFlight, h[0], h[1], b[0], b[1]);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 执行一轮测试, 始终保持 inFlight 个异步请求在途
+     *
+     * @param channel  通信方式
+     * @param url      请求地址
+     * @param inFlight 在途请求数
+     * @param seconds  运行秒数
+     * @return 每秒请求数与平均延迟 (微秒)
+     */
+    private static long[] run(Channel channel, String url, int inFlight, long seconds) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        LongAdder nanos = new LongAdder();
+        Semaphore permits = new Semaphore(inFlight);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < deadline) {
+            permits.acquire();
+            long begin = System.nanoTime();
+            CompletableFuture<Server> call = channel.getAsync(url, Server.class);
+            call.whenComplete((server, e) -> {
+                if (e == null) {
+                    ops.increment();
+                    nanos.add(System.nanoTime() - begin);
+                }
+                permits.release();
+            });
+        }
+        permits.acquire(inFlight);
+        long elapsed = System.nanoTime() - start;
+        long count = Math.max(ops.sum(), 1);
+        return new long[]{count * TimeUnit.SECONDS.toNanos(1) / elapsed, nanos.sum() / count / 1000};
+    }
+}
@@ -0,0 +1,74 @@
+package com.cz.registry.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.alibaba.fastjson2.JSON;
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.Snapshot;
+import com.cz.registry.service.DefaultRegistryService;
+import com.cz.registry.service.RegistryService;
+import com.cz.registry.service.impl.CzRegistryService;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.LinkedMultiValueMap;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * 实例内存占用基准
+ * 每个实例以 json 请求体反序列化后注册到多个服务, 与通过 http 注册时一样每次注册都是一个新对象,
+ * 对比共享实例对象前后注册表每次注册占用的堆内存 (包含实例列表、心跳记录与变更日志)
+ * <p>
+ * 运行方式: 在 test classpath 下执行 main 方法, 可选参数依次为实例数 (默认 20000)、每个实例注册的服务数 (默认 5)
+ *
+ * @author Zjianru
+ */
+public class InstanceMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        int instances = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int services = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        RegistryService registryService = new CzRegistryService();
+        long registrations = (long) instances * services;
+        System.out.printf("%d instances x %d services = %d registrations%n", instances, services, registrations);
+        // 预热, 使类加载与 jit 不计入测量
+        run(registryService, 1000, services, true);
+        run(registryService, 1000, services, false);
+        long before = run(registryService, instances, services, false);
+        long after = run(registryService, instances, services, true);
+        System.out.printf("%-16s %-16s%n", "", "bytes/registration");
+        System.out.printf("%-16s %-16d%n", "per-service copy", before / registrations);
+        System.out.printf("%-16s %-16d%n", "shared instance", after / registrations);
+    }
+
+    /**
+     * 清空注册表后注册所有实例, 返回注册表增加的堆内存
+     */
+    private static long run(RegistryService registryService, int instances, int services, boolean interning) {
+        DefaultRegistryService.reset(new Snapshot(new LinkedMultiValueMap<>(), new HashMap<>(), 0L, new HashMap<>()));
+        DefaultRegistryService.setInterning(interning);
+        long base = usedHeap();
+        for (int i = 0; i < instances; i++) {
+            for (int s = 0; s < services; s++) {
+                String body = "{\"scheme\":\"http\",\"host\":\"10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255)
+                        + "\",\"port\":8080,\"context\":\"app\",\"params\":{\"zone\":\"zone-" + (i % 8)
+                        + "\",\"env\":\"prod\",\"version\":\"1.0." + (i % 4) + "\"}}";
+                registryService.register("bench.service." + s, JSON.parseObject(body, InstanceMeta.class));
+            }
+        }
+        return usedHeap() - base;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,93 @@
+package com.cz.registry.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.service.RegistryService;
+import com.cz.registry.service.impl.CzRegistryService;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 注册表并发争用基准
+ * 每个线程操作自己的服务 (注册 / 心跳 / 注销 / 查询), 对比全局锁与按服务加锁在不同线程数下的吞吐
+ * <p>
+ * 运行方式: 在 test classpath 下执行 main 方法, 可选参数为单轮运行秒数, 默认 2 秒
+ *
+ * @author Zjianru
+ */
+public class RegistryContentionBenchmark {
+
+    private static final int INSTANCES_PER_SERVICE = 16;
+
+    public static void main(String[] args) throws Exception {
+        // 关闭注册表的 info 日志, 避免日志输出主导测试结果
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2L;
+        int cores = Runtime.getRuntime().availableProcessors();
+        RegistryService registryService = new CzRegistryService();
+        System.out.printf("cores=%d, %ds per run%n", cores, seconds);
+        System.out.printf("%-8s %-18s %-18s%n", "threads", "global-lock ops/s", "per-service ops/s");
+        for (int threads = 1; threads <= cores; threads <<= 1) {
+            long global = run(registryService, threads, seconds, new Object());
+            long striped = run(registryService, threads, seconds, null);
+            System.out.printf("%-8d %-18d %-18d%n", threads, global, striped);
+        }
+    }
+
+    /**
+     * 执行一轮测试
+     *
+     * @param registryService 注册服务
+     * @param threads         线程数
+     * @param seconds         运行秒数
+     * @param globalLock      不为空时所有操作串行在该锁上, 模拟原有的全局同步
+     * @return 每秒操作数
+     */
+    private static long run(RegistryService registryService, int threads, long seconds, Object globalLock)
+            throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + TimeUnit.MILLISECONDS.toNanos(100);
+        for (int t = 0; t < threads; t++) {
+            String service = "bench.service." + t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    int i = 0;
+                    while (System.nanoTime() < deadline) {
+                        InstanceMeta instance = InstanceMeta.http("10.0.0." + (i % INSTANCES_PER_SERVICE), 8080);
+                        if (globalLock == null) {
+                            iteration(registryService, service, instance);
+                        } else {
+                            synchronized (globalLock) {
+                                iteration(registryService, service, instance);
+                            }
+                        }
+                        ops.add(4);
+                        i++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        start.countDown();
+        done.await();
+        return ops.sum() / seconds;
+    }
+
+    private static void iteration(RegistryService registryService, String service, InstanceMeta instance) {
+        registryService.register(service, instance);
+        registryService.reNew(instance, service);
+        registryService.fetchAll(service);
+        registryService.unregister(service, instance);
+    }
+}
@@ -0,0 +1,102 @@
+package com.cz.registry.benchmark;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.cz.registry.meta.ChangeRecord;
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.service.store.WriteAheadLog;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * 预写日志写入基准
+ * 每个线程循环追加一条变更记录并等待其落盘, 模拟并发的注册请求, 对比开启与关闭组提交时的吞吐;
+ * 最后重放组提交写出的日志, 给出启动恢复的耗时
+ * <p>
+ * 运行方式: 在 test classpath 下执行 main 方法, 可选参数依次为数据目录 (默认系统临时目录)、单轮运行秒数 (默认 2 秒)
+ *
+ * @author Zjianru
+ */
+public class WriteAheadLogBenchmark {
+
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws Exception {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        Path base = args.length > 0 ? Path.of(args[0]) : Path.of(System.getProperty("java.io.tmpdir"));
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 2L;
+        Path dir = Files.createTempDirectory(base, "czRegistry-wal-bench");
+        System.out.printf("%s, %ds per run%n", dir, seconds);
+        System.out.printf("%-8s %-20s %-20s%n", "threads", "fsync-each ops/s", "group-commit ops/s");
+        for (int threads : THREADS) {
+            long single = run(dir.resolve("single-" + threads), false, threads, seconds);
+            long group = run(dir.resolve("group-" + threads), true, threads, seconds);
+            System.out.printf("%-8d %-20d %-20d%n", threads, single, group);
+        }
+        Path replayed = dir.resolve("group-" + THREADS[THREADS.length - 1]);
+        long start = System.nanoTime();
+        long records = new WriteAheadLog(replayed, true, Long.MAX_VALUE).recover(in -> {
+        }, record -> {
+        });
+        System.out.printf("replayed %d records in %dms%n", records, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        delete(dir);
+    }
+
+    /**
+     * 执行一轮测试
+     *
+     * @param dir         数据目录
+     * @param groupCommit 是否开启组提交
+     * @param threads     线程数
+     * @param seconds     运行秒数
+     * @return 每秒落盘的记录数
+     */
+    private static long run(Path dir, boolean groupCommit, int threads, long seconds) throws Exception {
+        // 只测日志写入, 不写出检查点
+        WriteAheadLog wal = new WriteAheadLog(dir, groupCommit, Long.MAX_VALUE);
+        wal.start(out -> {
+        }, 0);
+        AtomicLong versions = new AtomicLong();
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int t = 0; t < threads; t++) {
+            String service = "bench.service." + t;
+            Thread worker = new Thread(() -> {
+                try {
+                    int i = 0;
+                    while (System.nanoTime() < deadline) {
+                        InstanceMeta instance = InstanceMeta.http("10.0.0." + (i++ % 256), 8080);
+                        wal.append(new ChangeRecord(versions.incrementAndGet(), service, System.currentTimeMillis(),
+                                List.of(instance), List.of())).join();
+                        ops.increment();
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+            worker.start();
+        }
+        done.await();
+        wal.close();
+        return ops.sum() / seconds;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
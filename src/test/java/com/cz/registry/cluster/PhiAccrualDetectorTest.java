@@ -0,0 +1,73 @@
+package com.cz.registry.cluster;
+
+import com.cz.registry.config.ConfigProperties;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * phi accrual 故障检测
+ *
+ * @author Zjianru
+ */
+class PhiAccrualDetectorTest {
+
+    private static final long INTERVAL = 5000L;
+
+    @Test
+    void neverSeenIsSuspected() {
+        PhiAccrualDetector detector = new PhiAccrualDetector(100, 500, INTERVAL, INTERVAL);
+        assertEquals(Double.POSITIVE_INFINITY, detector.phi(0));
+    }
+
+    @Test
+    void defaultsToleratesOneMissedProbeButNotTwo() {
+        ConfigProperties config = new ConfigProperties();
+        PhiAccrualDetector detector = new PhiAccrualDetector(config.getPhiWindowSize(), config.getPhiMinStdDeviation(),
+                config.getPhiAcceptablePause(), INTERVAL);
+        // 每个周期开始时探测一次, 成功的探测在往返延迟后记录, 失败的探测在探测超时后才判定
+        long roundTrip = 20;
+        long probeAt = 0;
+        for (int i = 0; i < 20; i++) {
+            detector.heartbeat(probeAt + roundTrip);
+            probeAt += INTERVAL;
+        }
+        // 第一次失败的探测
+        double firstMiss = detector.phi(probeAt + config.getProbeTimeout());
+        assertTrue(firstMiss < config.getPhiThreshold(), "phi after one miss " + firstMiss);
+        // 下一个周期再次失败, 连续错过两次探测时判定下线
+        double secondMiss = detector.phi(probeAt + INTERVAL + config.getProbeTimeout());
+        assertTrue(secondMiss > config.getPhiThreshold(), "phi after two misses " + secondMiss);
+    }
+
+    @Test
+    void acceptablePauseDelaysSuspicion() {
+        PhiAccrualDetector detector = new PhiAccrualDetector(100, 500, INTERVAL, INTERVAL);
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            detector.heartbeat(now);
+            now += INTERVAL;
+        }
+        long last = now - INTERVAL;
+        // 停顿时长计入间隔均值, 错过一整个周期仍几乎没有怀疑
+        assertTrue(detector.phi(last + 2 * INTERVAL) < 1);
+        assertTrue(detector.phi(last + 3 * INTERVAL) > 8);
+    }
+
+    @Test
+    void jitteryHistoryRaisesSuspicionMoreSlowly() {
+        PhiAccrualDetector steady = new PhiAccrualDetector(100, 100, 0, INTERVAL);
+        PhiAccrualDetector jittery = new PhiAccrualDetector(100, 100, 0, INTERVAL);
+        long steadyAt = 0;
+        long jitteryAt = 0;
+        for (int i = 0; i < 50; i++) {
+            steady.heartbeat(steadyAt);
+            jittery.heartbeat(jitteryAt);
+            steadyAt += INTERVAL;
+            jitteryAt += i % 2 == 0 ? INTERVAL - 2000 : INTERVAL + 2000;
+        }
+        long pause = INTERVAL + 3000;
+        assertTrue(jittery.phi(jitteryAt - INTERVAL + pause) < steady.phi(steadyAt - INTERVAL + pause));
+    }
+}
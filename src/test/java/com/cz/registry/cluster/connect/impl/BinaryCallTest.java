@@ -0,0 +1,96 @@
+package com.cz.registry.cluster.connect.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 二进制长连接
+ *
+ * @author Zjianru
+ */
+class BinaryCallTest {
+
+    private static final long TIMEOUT = 100L;
+
+    private ServerSocket server;
+
+    /**
+     * 对端接受的连接, 从不读取也从不响应
+     */
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    private String url;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0);
+        url = "http://127.0.0.1:" + server.getLocalPort() + "/info";
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(server.accept());
+                }
+            } catch (IOException e) {
+                // 测试结束
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test
+    void consecutiveTimeoutsReconnect() throws InterruptedException {
+        BinaryCall call = new BinaryCall(null, TIMEOUT, 0);
+        for (int i = 0; i < BinaryCall.MAX_CONSECUTIVE_TIMEOUTS; i++) {
+            assertThrows(CompletionException.class, () -> call.getAsync(url, String.class).join());
+        }
+        assertEquals(1, accepted.size());
+        // 连续超时后连接已关闭, 下一个请求重新建立连接
+        assertThrows(CompletionException.class, () -> call.getAsync(url, String.class).join());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (accepted.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, accepted.size());
+    }
+
+    @Test
+    void sendDoesNotBlockWhenPeerStopsReading() throws InterruptedException {
+        BinaryCall call = new BinaryCall(null, TimeUnit.SECONDS.toMillis(30), 0);
+        call.getAsync(url, String.class);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (accepted.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        // 对端不读取, 写出的数据远超 socket 缓冲区, 调用线程仍只是入队
+        byte[] body = new byte[1024 * 1024];
+        long start = System.nanoTime();
+        for (int i = 0; i < 64; i++) {
+            call.postAsync(url, body, String.class);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed < TimeUnit.SECONDS.toMillis(5), "postAsync blocked for " + elapsed + "ms");
+    }
+}
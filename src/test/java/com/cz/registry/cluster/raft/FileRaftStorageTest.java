@@ -0,0 +1,95 @@
+package com.cz.registry.cluster.raft;
+
+import com.cz.registry.meta.InstanceChanges;
+import com.cz.registry.meta.InstanceMeta;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * raft 持久化状态的写入与加载
+ *
+ * @author Zjianru
+ */
+class FileRaftStorageTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reloadsHardStateAndLogAfterTruncate() throws IOException {
+        FileRaftStorage storage = new FileRaftStorage(dir);
+        RaftStorage.State empty = storage.load();
+        assertEquals(0, empty.term());
+        assertNull(empty.votedFor());
+        assertEquals(List.of(), empty.entries());
+
+        storage.saveHardState(3, "http://b");
+        storage.append(entries(1, 5, 2));
+        storage.truncateFrom(4);
+        storage.append(entries(4, 2, 3));
+        storage.close();
+
+        RaftStorage.State state = new FileRaftStorage(dir).load();
+        assertEquals(3, state.term());
+        assertEquals("http://b", state.votedFor());
+        assertEquals(5, state.entries().size());
+        assertEquals(entries(4, 2, 3), state.entries().subList(3, 5));
+    }
+
+    @Test
+    void snapshotReplacesCompactedEntries() throws IOException {
+        FileRaftStorage storage = new FileRaftStorage(dir);
+        storage.load();
+        storage.append(entries(1, 6, 1));
+        byte[] snapshot = {1, 2, 3};
+        storage.saveSnapshot(4, 1, snapshot, entries(5, 2, 1));
+        storage.append(entries(7, 1, 2));
+        storage.close();
+
+        RaftStorage.State state = new FileRaftStorage(dir).load();
+        assertEquals(4, state.snapshotIndex());
+        assertEquals(1, state.snapshotTerm());
+        assertArrayEquals(snapshot, state.snapshot());
+        assertEquals(entries(5, 2, 1), state.entries().subList(0, 2));
+        assertEquals(7, state.entries().get(2).getIndex());
+    }
+
+    @Test
+    void discardsTornTail() throws IOException {
+        FileRaftStorage storage = new FileRaftStorage(dir);
+        storage.load();
+        storage.append(entries(1, 3, 1));
+        storage.close();
+        // 模拟崩溃时最后一条只写出了一半
+        try (FileChannel file = FileChannel.open(dir.resolve(FileRaftStorage.LOG), StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 3);
+        }
+
+        FileRaftStorage reopened = new FileRaftStorage(dir);
+        assertEquals(entries(1, 2, 1), reopened.load().entries());
+        reopened.append(entries(3, 1, 2));
+        reopened.close();
+        assertEquals(3, new FileRaftStorage(dir).load().entries().get(2).getIndex());
+    }
+
+    private static List<LogEntry> entries(long from, int count, long term) {
+        List<LogEntry> entries = new ArrayList<>();
+        for (long index = from; index < from + count; index++) {
+            InstanceChanges changes = new InstanceChanges();
+            changes.getRegister().put("svc", List.of(InstanceMeta.http("10.0.0." + index, 8080)));
+            entries.add(new LogEntry(term, index, changes));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,349 @@
+package com.cz.registry.cluster.raft;
+
+import com.alibaba.fastjson2.JSON;
+import com.cz.registry.meta.InstanceChanges;
+import com.cz.registry.meta.InstanceMeta;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 在同一进程内用模拟网络驱动多个 raft 节点
+ *
+ * @author Zjianru
+ */
+class RaftNodeTest {
+
+    private final Map<String, RaftNode> nodes = new LinkedHashMap<>();
+
+    private final Map<String, List<InstanceChanges>> applied = new LinkedHashMap<>();
+
+    private final Map<String, MemoryStorage> storages = new LinkedHashMap<>();
+
+    private final Map<String, List<String>> peersOf = new LinkedHashMap<>();
+
+    private long seed = 7;
+
+    /**
+     * 已应用的日志超过该条数时压缩, 为 0 时不压缩
+     */
+    private int snapshotEntries;
+
+    private final Queue<RaftMessage> network = new ArrayDeque<>();
+
+    /**
+     * 被隔离的节点, 发往或来自这些节点的消息全部丢弃
+     */
+    private final Set<String> isolated = new HashSet<>();
+
+    @Test
+    void electsSingleLeaderAndCommitsOnQuorum() {
+        cluster("a", "b", "c");
+        RaftNode leader = awaitLeader();
+        nodes.values().forEach(node -> assertEquals(leader.getId(), node.getLeader()));
+
+        CompletableFuture<Object> result = leader.propose(register("svc", "1.1.1.1"));
+        run(10);
+
+        assertTrue(result.isDone());
+        assertFalse(result.isCompletedExceptionally());
+        applied.values().forEach(commands -> assertEquals(List.of(register("svc", "1.1.1.1")), commands));
+    }
+
+    @Test
+    void isolatedLeaderCannotCommitAndStepsDownAfterHeal() {
+        cluster("a", "b", "c");
+        RaftNode oldLeader = awaitLeader();
+        isolated.add(oldLeader.getId());
+
+        CompletableFuture<Object> lost = oldLeader.propose(register("svc", "1.1.1.1"));
+        RaftNode newLeader = awaitLeader();
+        assertNotEquals(oldLeader.getId(), newLeader.getId());
+        assertTrue(newLeader.getTerm() > oldLeader.getTerm());
+        assertFalse(lost.isDone());
+
+        CompletableFuture<Object> committed = newLeader.propose(register("svc", "2.2.2.2"));
+        run(10);
+        assertTrue(committed.isDone());
+
+        isolated.clear();
+        run(40);
+        assertEquals(RaftRole.FOLLOWER, oldLeader.getRole());
+        assertEquals(newLeader.getId(), oldLeader.getLeader());
+        assertTrue(lost.isCompletedExceptionally());
+        // 旧领导者未提交的条目被覆盖, 所有节点应用同样的日志
+        applied.values().forEach(commands -> assertEquals(List.of(register("svc", "2.2.2.2")), commands));
+    }
+
+    @Test
+    void followerRejectsProposal() {
+        cluster("a", "b", "c");
+        RaftNode leader = awaitLeader();
+        RaftNode follower = nodes.values().stream().filter(node -> node != leader).findFirst().orElseThrow();
+        assertTrue(follower.propose(register("svc", "1.1.1.1")).isCompletedExceptionally());
+    }
+
+    @Test
+    void leaseExpiresBeforeAnotherLeaderIsElected() {
+        cluster("a", "b", "c");
+        RaftNode oldLeader = awaitLeader();
+        run(2);
+        assertTrue(oldLeader.hasLease());
+
+        isolated.add(oldLeader.getId());
+        RaftNode newLeader = null;
+        for (int i = 0; i < 200 && newLeader == null; i++) {
+            run(1);
+            List<RaftNode> holders = nodes.values().stream().filter(RaftNode::hasLease).toList();
+            assertTrue(holders.size() <= 1, "leases overlap: " + holders.stream().map(RaftNode::getId).toList());
+            newLeader = holders.stream().filter(node -> node != oldLeader).findFirst().orElse(null);
+        }
+        assertTrue(newLeader != null);
+        // 租约过期但尚未得知新领导者时仍保持领导者角色, 只是不再持有租约
+        assertEquals(RaftRole.LEADER, oldLeader.getRole());
+        assertFalse(oldLeader.hasLease());
+    }
+
+    @Test
+    void followerIgnoresVoteRequestWithinLease() {
+        cluster("a", "b", "c");
+        RaftNode leader = awaitLeader();
+        RaftNode follower = nodes.values().stream().filter(node -> node != leader).findFirst().orElseThrow();
+        long term = follower.getTerm();
+
+        RaftMessage request = RaftMessage.of(RaftMessage.Type.REQUEST_VOTE, "d", follower.getId(), term + 1);
+        request.setLastLogIndex(follower.getLastIndex());
+        request.setLastLogTerm(term);
+        follower.handle(request);
+
+        assertEquals(term, follower.getTerm());
+        assertEquals(leader.getId(), follower.getLeader());
+        assertTrue(network.isEmpty());
+    }
+
+    @Test
+    void restartedNodeDoesNotVoteTwiceInSameTerm() {
+        cluster("a", "b", "c");
+        RaftNode follower = nodes.get("a");
+        RaftMessage first = RaftMessage.of(RaftMessage.Type.REQUEST_VOTE, "b", "a", 5);
+        follower.handle(first);
+        RaftMessage granted = network.poll();
+        assertTrue(granted.isSuccess());
+
+        restart("a");
+        RaftNode restarted = nodes.get("a");
+        assertEquals(5, restarted.getTerm());
+        RaftMessage second = RaftMessage.of(RaftMessage.Type.REQUEST_VOTE, "c", "a", 5);
+        restarted.handle(second);
+        assertFalse(network.poll().isSuccess());
+    }
+
+    @Test
+    void restartedNodeKeepsAcknowledgedLog() {
+        cluster("a", "b", "c");
+        RaftNode leader = awaitLeader();
+        leader.propose(register("svc", "1.1.1.1"));
+        leader.propose(register("svc", "2.2.2.2"));
+        run(10);
+
+        nodes.keySet().forEach(this::restart);
+        nodes.values().forEach(node -> assertEquals(3, node.getLastIndex()));
+        RaftNode newLeader = awaitLeader();
+        newLeader.propose(register("svc", "3.3.3.3"));
+        run(10);
+        List<InstanceChanges> expected = List.of(register("svc", "1.1.1.1"), register("svc", "2.2.2.2"),
+                register("svc", "3.3.3.3"));
+        applied.values().forEach(commands -> assertEquals(expected, commands));
+    }
+
+    @Test
+    void compactsLogAndInstallsSnapshotOnLaggingFollower() {
+        snapshotEntries = 4;
+        cluster("a", "b", "c");
+        RaftNode leader = awaitLeader();
+        RaftNode lagging = nodes.values().stream().filter(node -> node != leader).findFirst().orElseThrow();
+        isolated.add(lagging.getId());
+        List<InstanceChanges> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            InstanceChanges changes = register("svc", "1.1.1." + i);
+            expected.add(changes);
+            leader.propose(changes);
+            run(2);
+        }
+        assertTrue(leader.getSnapshotIndex() > 0);
+        assertEquals(leader.getLastIndex() - leader.getSnapshotIndex(), storages.get(leader.getId()).entries.size());
+
+        // 落后节点需要的日志已被压缩, 只能通过快照追上
+        isolated.clear();
+        run(40);
+        assertEquals(leader.getLastIndex(), lagging.getLastIndex());
+        assertEquals(expected, applied.get(lagging.getId()));
+
+        // 重启后从快照恢复, 再由领导者告知提交索引后应用快照之后的日志
+        restart(lagging.getId());
+        run(10);
+        assertEquals(expected, applied.get(lagging.getId()));
+    }
+
+    private void cluster(String... ids) {
+        for (String id : ids) {
+            List<String> peers = new ArrayList<>(List.of(ids));
+            peers.remove(id);
+            peersOf.put(id, peers);
+            storages.put(id, new MemoryStorage());
+            start(id);
+        }
+    }
+
+    /**
+     * 以持久化状态重新创建节点, 状态机与内存中的状态全部丢失
+     */
+    private void restart(String id) {
+        network.removeIf(message -> message.getTo().equals(id));
+        start(id);
+    }
+
+    private void start(String id) {
+        CommandList commands = new CommandList();
+        applied.put(id, commands.commands);
+        nodes.put(id, new RaftNode(id, peersOf.get(id), this::send, commands, storages.get(id),
+                new Random(seed++), 10, 2, snapshotEntries));
+    }
+
+    private void send(RaftMessage message) {
+        network.add(message);
+    }
+
+    /**
+     * 推进若干 tick, 每个 tick 之后投递所有在途消息
+     */
+    private void run(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            nodes.values().forEach(RaftNode::tick);
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        RaftMessage message;
+        while ((message = network.poll()) != null) {
+            if (!isolated.contains(message.getFrom()) && !isolated.contains(message.getTo())) {
+                nodes.get(message.getTo()).handle(message);
+            }
+        }
+    }
+
+    /**
+     * 推进时间直到未被隔离的节点中出现一个新的、被多数认可的领导者
+     */
+    private RaftNode awaitLeader() {
+        for (int i = 0; i < 200; i++) {
+            run(1);
+            List<RaftNode> leaders = nodes.values().stream()
+                    .filter(node -> !isolated.contains(node.getId()))
+                    .filter(node -> node.getRole() == RaftRole.LEADER)
+                    .toList();
+            if (leaders.size() == 1 && nodes.values().stream()
+                    .filter(node -> !isolated.contains(node.getId()))
+                    .allMatch(node -> leaders.get(0).getId().equals(node.getLeader()))) {
+                return leaders.get(0);
+            }
+        }
+        throw new AssertionError("no leader elected");
+    }
+
+    /**
+     * 记录应用过的命令, 快照为命令列表的 JSON
+     */
+    private static class CommandList implements RaftStateMachine {
+
+        private final List<InstanceChanges> commands = new ArrayList<>();
+
+        @Override
+        public Object apply(LogEntry entry) {
+            return commands.add(entry.getCommand());
+        }
+
+        @Override
+        public byte[] snapshot() {
+            return JSON.toJSONBytes(commands);
+        }
+
+        @Override
+        public void restore(byte[] snapshot) {
+            commands.clear();
+            commands.addAll(JSON.parseArray(snapshot, InstanceChanges.class));
+        }
+    }
+
+    /**
+     * 保存在内存中的持久化状态, 节点重启后仍然保留
+     */
+    private static class MemoryStorage implements RaftStorage {
+
+        private long term;
+
+        private String votedFor;
+
+        private long snapshotIndex;
+
+        private long snapshotTerm;
+
+        private byte[] snapshot;
+
+        private final List<LogEntry> entries = new ArrayList<>();
+
+        @Override
+        public State load() {
+            return new State(term, votedFor, snapshotIndex, snapshotTerm, snapshot, new ArrayList<>(entries));
+        }
+
+        @Override
+        public void saveHardState(long term, String votedFor) {
+            this.term = term;
+            this.votedFor = votedFor;
+        }
+
+        @Override
+        public void append(List<LogEntry> appended) {
+            for (LogEntry entry : appended) {
+                assertEquals(snapshotIndex + entries.size() + 1, entry.getIndex());
+                entries.add(entry);
+            }
+        }
+
+        @Override
+        public void truncateFrom(long index) {
+            entries.subList((int) (index - snapshotIndex - 1), entries.size()).clear();
+        }
+
+        @Override
+        public void saveSnapshot(long index, long term, byte[] snapshot, List<LogEntry> retained) {
+            this.snapshotIndex = index;
+            this.snapshotTerm = term;
+            this.snapshot = snapshot;
+            entries.clear();
+            entries.addAll(retained);
+        }
+    }
+
+    private static InstanceChanges register(String service, String host) {
+        InstanceChanges changes = new InstanceChanges();
+        changes.getRegister().put(service, List.of(InstanceMeta.http(host, 8080)));
+        return changes;
+    }
+}
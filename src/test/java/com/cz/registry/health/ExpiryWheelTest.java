@@ -0,0 +1,82 @@
+package com.cz.registry.health;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 过期检测时间轮的到期、重新放入与长时间停顿
+ *
+ * @author Zjianru
+ */
+class ExpiryWheelTest {
+
+    private static final long TICK = 100L;
+
+    @Test
+    void firesOnlyOnceDue() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(TICK, 16, 0);
+        wheel.schedule("a", 250);
+        wheel.schedule("b", 520);
+        List<String> fired = new ArrayList<>();
+
+        wheel.advance(200, item -> record(fired, item));
+        assertEquals(List.of(), fired);
+        assertEquals(2, wheel.size());
+
+        // 到期时间向上取整到槽位, 不会提前到期
+        wheel.advance(300, item -> record(fired, item));
+        assertEquals(List.of("a"), fired);
+        wheel.advance(500, item -> record(fired, item));
+        assertEquals(List.of("a"), fired);
+        wheel.advance(600, item -> record(fired, item));
+        assertEquals(List.of("a", "b"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void reschedulesUntilDone() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(TICK, 16, 0);
+        wheel.schedule("renewed", 100);
+        List<Long> firedAt = new ArrayList<>();
+        long[] now = {0};
+        for (now[0] = TICK; now[0] <= 1000; now[0] += TICK) {
+            wheel.advance(now[0], item -> {
+                firedAt.add(now[0]);
+                // 前两次到期时仍在续约, 顺延 300 毫秒
+                return firedAt.size() < 3 ? now[0] + 300 : ExpiryWheel.DONE;
+            });
+        }
+        assertEquals(List.of(100L, 400L, 700L), firedAt);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void longPauseFiresEverythingDueAndKeepsLaterRounds() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(TICK, 16, 0);
+        // 到期时间跨越多圈
+        for (int i = 1; i <= 40; i++) {
+            wheel.schedule("item-" + i, i * TICK);
+        }
+        wheel.schedule("later", 100 * TICK);
+        List<String> fired = new ArrayList<>();
+
+        // 停顿超过一整圈, 每个槽位只处理一次, 所有到期条目仍在这一次推进中处理
+        wheel.advance(50 * TICK, item -> record(fired, item));
+        assertEquals(40, fired.size());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(99 * TICK, item -> record(fired, item));
+        assertEquals(40, fired.size());
+        wheel.advance(100 * TICK, item -> record(fired, item));
+        assertEquals("later", fired.get(40));
+    }
+
+    private static long record(List<String> fired, String item) {
+        fired.add(item);
+        return ExpiryWheel.DONE;
+    }
+}
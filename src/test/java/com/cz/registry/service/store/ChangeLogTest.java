@@ -0,0 +1,79 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.ChangeRecord;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 有界变更日志的连续水位与环形覆盖
+ *
+ * @author Zjianru
+ */
+class ChangeLogTest {
+
+    @Test
+    void committedWaitsForOutOfOrderGap() {
+        ChangeLog changeLog = new ChangeLog(8);
+        changeLog.append(record(2));
+        changeLog.append(record(3));
+        assertEquals(0, changeLog.committed());
+        assertEquals(List.of(), changeLog.since(0, 10));
+
+        changeLog.append(record(1));
+        assertEquals(3, changeLog.committed());
+        assertEquals(List.of(2L, 3L), versions(changeLog.since(1, 10)));
+    }
+
+    @Test
+    void committedAdvancesAcrossWraparoundWithoutReads() {
+        ChangeLog changeLog = new ChangeLog(8);
+        for (long version = 1; version <= 20; version++) {
+            changeLog.append(record(version));
+        }
+        assertEquals(20, changeLog.committed());
+        assertNull(changeLog.since(0, 10));
+        assertEquals(List.of(13L, 14L, 15L, 16L, 17L, 18L, 19L, 20L), versions(changeLog.since(12, 10)));
+        assertEquals(List.of(19L, 20L), versions(changeLog.since(18, 10)));
+    }
+
+    @Test
+    void overwrittenGapAgesOutInsteadOfStalling() {
+        ChangeLog changeLog = new ChangeLog(8);
+        // 版本 1 一直没有写入, 其槽位被版本 9 覆盖
+        for (long version = 2; version <= 10; version++) {
+            changeLog.append(record(version));
+        }
+        assertEquals(10, changeLog.committed());
+        assertNull(changeLog.since(0, 10));
+        assertEquals(List.of(3L, 4L), versions(changeLog.since(2, 2)));
+
+        // 迟到的旧记录不覆盖槽位中的新记录
+        changeLog.append(record(1));
+        assertEquals(List.of(9L, 10L), versions(changeLog.since(8, 10)));
+    }
+
+    @Test
+    void resetStartsFromGivenVersion() {
+        ChangeLog changeLog = new ChangeLog(8);
+        changeLog.append(record(1));
+        changeLog.reset(100);
+        assertEquals(100, changeLog.committed());
+        assertNull(changeLog.since(1, 10));
+        changeLog.append(record(101));
+        assertEquals(List.of(101L), versions(changeLog.since(100, 10)));
+    }
+
+    private static ChangeRecord record(long version) {
+        ChangeRecord record = new ChangeRecord();
+        record.setVersion(version);
+        return record;
+    }
+
+    private static List<Long> versions(List<ChangeRecord> records) {
+        return records.stream().map(ChangeRecord::getVersion).toList();
+    }
+}
@@ -0,0 +1,53 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 共享的实例对象池
+ *
+ * @author Zjianru
+ */
+class InstancePoolTest {
+
+    private final InstancePool pool = new InstancePool();
+
+    @Test
+    void equalInstancesShareOneObject() {
+        InstanceMeta first = pool.intern(instance("10.0.0.1", "a"));
+        InstanceMeta second = pool.intern(instance("10.0.0.1", "a"));
+        assertSame(first, second);
+        assertTrue(pool.isShared(first));
+        // 请求中的对象不是共享对象, 之后修改它不影响池中的对象
+        InstanceMeta request = instance("10.0.0.1", "a");
+        assertSame(first, pool.intern(request));
+        assertFalse(pool.isShared(request));
+        // 不同实例的相同参数共享同一个参数表
+        assertSame(first.getParams(), pool.intern(instance("10.0.0.2", "a")).getParams());
+        assertThrows(UnsupportedOperationException.class, () -> first.getParams().put("zone", "b"));
+    }
+
+    @Test
+    void differentParamsOrStatusAreDifferentObjects() {
+        InstanceMeta first = pool.intern(instance("10.0.0.1", "a"));
+        assertNotSame(first, pool.intern(instance("10.0.0.1", "b")));
+        InstanceMeta offline = instance("10.0.0.1", "a");
+        offline.setStatus(false);
+        assertNotSame(first, pool.intern(offline));
+    }
+
+    private static InstanceMeta instance(String host, String zone) {
+        // 模拟反序列化出的新字符串
+        return new InstanceMeta(new String(host), 8080, new String("app"), new String("http"), true,
+                new HashMap<>(Map.of(new String("zone"), new String(zone))));
+    }
+}
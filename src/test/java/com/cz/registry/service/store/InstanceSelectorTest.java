@@ -0,0 +1,121 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.SelectStrategy;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 服务端实例选择器
+ *
+ * @author Zjianru
+ */
+class InstanceSelectorTest {
+
+    @Test
+    void roundRobinAndLeastRecentCarryOverVersions() {
+        List<InstanceMeta> hosts = hosts(4);
+        InstanceSelector first = selector(hosts, null);
+        // 按最久未分配选择过之后, 其他策略返回的实例才计入分配顺序
+        assertEquals(List.of(hosts.get(0)), first.select(SelectStrategy.LEAST_RECENT, 1, null));
+        assertEquals(hosts.subList(0, 2), first.select(SelectStrategy.ROUND_ROBIN, 2, null));
+        assertEquals(hosts.subList(2, 4), first.select(SelectStrategy.ROUND_ROBIN, 2, null));
+        // 轮询返回过的实例移到分配顺序的末尾, 最久未分配的是 0 号
+        first.select(SelectStrategy.ROUND_ROBIN, 1, null);
+        assertEquals(List.of(hosts.get(1), hosts.get(2)), first.select(SelectStrategy.LEAST_RECENT, 2, null));
+        // 新版本沿用游标与分配顺序, 新实例最先分配, 下线实例不参与选择
+        List<InstanceMeta> next = new ArrayList<>(hosts);
+        next.get(3).setStatus(false);
+        InstanceMeta added = InstanceMeta.http("10.0.1.0", 8080);
+        next.add(added);
+        InstanceSelector second = selector(next, first);
+        assertEquals(List.of(added, hosts.get(0), hosts.get(1), hosts.get(2)),
+                second.select(SelectStrategy.LEAST_RECENT, 10, null));
+        assertEquals(List.of(hosts.get(1)), second.select(SelectStrategy.ROUND_ROBIN, 1, null));
+    }
+
+    @Test
+    void otherStrategiesDoNotTrackOrderUntilLeastRecentIsUsed() {
+        List<InstanceMeta> hosts = hosts(3);
+        InstanceSelector selector = selector(hosts, null);
+        selector.select(SelectStrategy.ROUND_ROBIN, 2, null);
+        assertEquals(hosts, selector.select(SelectStrategy.LEAST_RECENT, 3, null));
+        // 轮询依次返回 2 号与 0 号, 此后计入分配顺序
+        selector.select(SelectStrategy.ROUND_ROBIN, 2, null);
+        assertEquals(List.of(hosts.get(1), hosts.get(2), hosts.get(0)), selector.select(SelectStrategy.LEAST_RECENT, 3, null));
+    }
+
+    @Test
+    void weightedFollowsWeightsAndSkipsZero() {
+        List<InstanceMeta> hosts = hosts(3);
+        hosts.get(0).setParams(Map.of("weight", 1));
+        hosts.get(1).setParams(Map.of("weight", "3"));
+        hosts.get(2).setParams(Map.of("weight", 0));
+        InstanceSelector selector = selector(hosts, null);
+        Map<InstanceMeta, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 40000; i++) {
+            counts.merge(selector.select(SelectStrategy.WEIGHTED, 1, null).get(0), 1, Integer::sum);
+        }
+        assertEquals(2, counts.size());
+        double ratio = counts.get(hosts.get(1)) / (double) counts.get(hosts.get(0));
+        assertTrue(ratio > 2.7 && ratio < 3.3, "ratio " + ratio);
+        assertEquals(2, selector.select(SelectStrategy.WEIGHTED, 5, null).size());
+    }
+
+    @Test
+    void hashIsStableAndMostlyUnaffectedByNewInstances() {
+        List<InstanceMeta> hosts = hosts(10);
+        InstanceSelector before = selector(hosts, null);
+        List<InstanceMeta> grown = new ArrayList<>(hosts);
+        grown.add(InstanceMeta.http("10.0.1.0", 8080));
+        InstanceSelector after = selector(grown, before);
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String key = "client-" + i;
+            List<InstanceMeta> picked = before.select(SelectStrategy.HASH, 2, key);
+            assertEquals(picked, before.select(SelectStrategy.HASH, 2, key));
+            assertNotEquals(picked.get(0), picked.get(1));
+            if (!picked.get(0).equals(after.select(SelectStrategy.HASH, 1, key).get(0))) {
+                moved++;
+            }
+        }
+        // 理想情况下约 1/11 的标识迁移到新实例
+        assertTrue(moved < 200, "moved " + moved);
+        // 需要全部实例时每个实例恰好出现一次
+        assertEquals(11, new HashSet<>(after.select(SelectStrategy.HASH, 11, "client")).size());
+    }
+
+    @Test
+    void serviceCachesSelectorPerVersion() {
+        ServiceInstances instances = new ServiceInstances("service");
+        instances.add(InstanceMeta.http("10.0.0.1", 8080), 1, 1);
+        InstanceSelector first = instances.selector("weight");
+        assertSame(first, instances.selector("weight"));
+        instances.add(InstanceMeta.http("10.0.0.2", 8080), 2, 2);
+        InstanceSelector second = instances.selector("weight");
+        assertEquals(2, second.size());
+        assertSame(second, instances.selector("weight"));
+    }
+
+    private static InstanceSelector selector(List<InstanceMeta> instances, InstanceSelector previous) {
+        return InstanceSelector.of(InstanceList.of(1L, 1L, instances), "weight", previous);
+    }
+
+    private static List<InstanceMeta> hosts(int count) {
+        List<InstanceMeta> hosts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            hosts.add(InstanceMeta.http("10.0.0." + i, 8080));
+        }
+        return hosts;
+    }
+}
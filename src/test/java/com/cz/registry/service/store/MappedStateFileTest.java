@@ -0,0 +1,75 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.ChangeRecord;
+import com.cz.registry.meta.InstanceMeta;
+import com.cz.registry.meta.Snapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 注册表的内存映射镜像
+ *
+ * @author Zjianru
+ */
+class MappedStateFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void restoresRegistryAndShiftsHeartbeatsByDowntime() throws IOException {
+        Path path = dir.resolve("state");
+        MappedStateFile file = new MappedStateFile(path, 16);
+        assertNull(file.load(1000));
+        InstanceMeta first = InstanceMeta.http("10.0.0.1", 8080).addParams(Map.of("zone", "a"));
+        InstanceMeta second = InstanceMeta.http("10.0.0.2", 8080);
+        file.apply(new ChangeRecord(1, "service", 1000, List.of(second), List.of()));
+        file.apply(new ChangeRecord(2, "service", 1100, List.of(first), List.of()));
+        file.apply(new ChangeRecord(3, "other", 1200, List.of(first), List.of()));
+        file.apply(new ChangeRecord(4, "other", 1300, List.of(), List.of(first)));
+        HeartbeatKey key = new HeartbeatKey("service", first);
+        file.sync(List.of(new Heartbeat(key, first, 1500)), 2000);
+        file.close();
+
+        // 停机 5 秒后重启
+        Snapshot snapshot = new MappedStateFile(path, 16).load(7000);
+        assertEquals(4L, snapshot.getVersion());
+        assertEquals(List.of(second, first), snapshot.getRegistry().get("service"));
+        assertEquals("a", snapshot.getRegistry().get("service").get(1).getParams().get("zone"));
+        assertEquals(List.of(), snapshot.getRegistry().get("other"));
+        assertEquals(2L, snapshot.getVersions().get("service").getInstanceVersion());
+        assertEquals(4L, snapshot.getVersions().get("other").getInstanceVersion());
+        assertEquals(6500L, snapshot.getTimeStamps().get(key.toString()));
+    }
+
+    @Test
+    void growsWhenSlotsRunOut() throws IOException {
+        Path path = dir.resolve("state");
+        MappedStateFile file = new MappedStateFile(path, 16);
+        file.load(0);
+        for (int i = 0; i < 100; i++) {
+            file.apply(new ChangeRecord(i + 1, "service", 0, List.of(InstanceMeta.http("10.0.0." + i, 8080)), List.of()));
+        }
+        file.close();
+        assertEquals(100, new MappedStateFile(path, 16).load(0).getRegistry().get("service").size());
+    }
+
+    @Test
+    void oversizedRegistrationDisablesRestart() throws IOException {
+        Path path = dir.resolve("state");
+        MappedStateFile file = new MappedStateFile(path, 16);
+        file.load(0);
+        InstanceMeta instance = InstanceMeta.http("10.0.0.1", 8080).addParams(Map.of("blob", "x".repeat(1024)));
+        file.apply(new ChangeRecord(1, "service", 0, List.of(instance), List.of()));
+        file.close();
+        assertNull(new MappedStateFile(path, 16).load(0));
+    }
+}
@@ -0,0 +1,108 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 单个服务的实例集合
+ *
+ * @author Zjianru
+ */
+class ServiceInstancesTest {
+
+    private static final InstanceMeta A = InstanceMeta.http("10.0.0.1", 8080);
+    private static final InstanceMeta B = InstanceMeta.http("10.0.0.2", 8080);
+    private static final InstanceMeta C = InstanceMeta.http("10.0.0.3", 8080);
+
+    @Test
+    void keepsRegistrationOrderAcrossRemovals() {
+        ServiceInstances instances = new ServiceInstances("service");
+        assertTrue(instances.add(A, 1, 1));
+        assertTrue(instances.add(B, 2, 2));
+        assertTrue(instances.add(C, 3, 3));
+        assertFalse(instances.add(InstanceMeta.http("10.0.0.2", 8080), 4, 4));
+        assertTrue(instances.remove(B, 4, 4));
+        assertTrue(instances.add(B, 5, 5));
+        assertEquals(List.of(A, C, B), instances.current().getInstances());
+        assertEquals(5L, instances.current().getVersion());
+    }
+
+    @Test
+    void materializesOncePerVersion() {
+        ServiceInstances instances = new ServiceInstances("service");
+        instances.add(A, 1, 1);
+        InstanceList first = instances.current();
+        assertSame(first, instances.current());
+        instances.add(B, 2, 2);
+        assertEquals(2L, instances.version());
+        InstanceList second = instances.current();
+        assertNotSame(first, second);
+        // 已发布的列表不受之后的变更影响
+        assertEquals(List.of(A), first.getInstances());
+        assertEquals(List.of(A, B), second.getInstances());
+    }
+
+    @Test
+    void applyOnlyConsumesVersionWhenChanged() {
+        ServiceInstances instances = new ServiceInstances("service");
+        long[] versions = {0};
+        assertTrue(instances.apply(List.of(A, B), List.of(), () -> ++versions[0], 1));
+        assertFalse(instances.apply(List.of(A), List.of(C), () -> ++versions[0], 2));
+        assertEquals(1, versions[0]);
+        instances.replay(List.of(), List.of(C), 7, 3);
+        assertEquals(7L, instances.version());
+        assertEquals(List.of(A, B), instances.current().getInstances());
+        assertFalse(instances.isEmpty());
+    }
+
+    @Test
+    void queryKeepsIndexesInStepWithChanges() {
+        ServiceInstances instances = new ServiceInstances("service");
+        InstanceMeta a = tagged("10.0.0.1", "a", false);
+        InstanceMeta b = tagged("10.0.0.2", "b", false);
+        InstanceMeta c = tagged("10.0.0.3", "a", true);
+        instances.add(a, 1, 1);
+        instances.add(b, 2, 2);
+        Set<String> indexed = Set.of("zone");
+        assertEquals(List.of(a), instances.query(Map.of("zone", "a", "canary", "false"), indexed));
+        // 建立索引之后的注册与注销增量维护索引, 注销请求中的实例不带参数
+        instances.add(c, 3, 3);
+        assertEquals(List.of(a, c), instances.query(Map.of("zone", "a"), indexed));
+        instances.remove(InstanceMeta.http("10.0.0.1", 8080), 4, 4);
+        assertEquals(List.of(c), instances.query(Map.of("zone", "a"), indexed));
+        assertEquals(List.of(c), instances.query(Map.of("canary", "true"), indexed));
+        assertEquals(List.of(), instances.query(Map.of("zone", "c"), indexed));
+    }
+
+    @Test
+    void queryReadsPostingsPublishedForCurrentVersion() {
+        ServiceInstances instances = new ServiceInstances("service");
+        InstanceMeta a = tagged("10.0.0.1", "a", false);
+        InstanceMeta b = tagged("10.0.0.2", "b", true);
+        instances.add(a, 1, 1);
+        Set<String> indexed = Set.of("zone", "canary");
+        List<InstanceMeta> before = instances.query(Map.of("zone", "a"), indexed);
+        instances.add(b, 2, 2);
+        instances.remove(a, 3, 3);
+        // 已返回的结果来自旧版本的快照, 不随之后的变更改变
+        assertEquals(List.of(a), before);
+        assertEquals(List.of(), instances.query(Map.of("zone", "a"), indexed));
+        // 之后才参与查询的参数在下次发布快照时加入
+        assertEquals(List.of(b), instances.query(Map.of("canary", "true"), indexed));
+        assertEquals(List.of(b), instances.query(Map.of("zone", "b", "canary", "true"), indexed));
+    }
+
+    private static InstanceMeta tagged(String host, String zone, boolean canary) {
+        return InstanceMeta.http(host, 8080).addParams(Map.of("zone", zone, "canary", String.valueOf(canary)));
+    }
+}
@@ -0,0 +1,82 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.InstanceMeta;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 快照流的写出与读取
+ *
+ * @author Zjianru
+ */
+class SnapshotStreamTest {
+
+    @Test
+    void roundTripsServicesInstancesAndHeartbeats() throws IOException {
+        InstanceMeta tagged = InstanceMeta.http("10.0.0.1", 8080).addParams(Map.of("zone", "a"));
+        InstanceMeta offline = InstanceMeta.http("10.0.0.2", 8081);
+        offline.setStatus(false);
+        byte[] bytes = write(42, writer -> {
+            writer.write("service", InstanceList.of(7L, 1000L, List.of(tagged, offline)),
+                    instance -> instance == tagged ? 1234L : SnapshotWriter.NONE);
+            writer.write("empty", InstanceList.EMPTY, instance -> SnapshotWriter.NONE);
+        });
+
+        SnapshotReader reader = new SnapshotReader(new ByteArrayInputStream(bytes));
+        assertEquals(42, reader.getVersion());
+        SnapshotReader.ServiceRecord first = reader.next();
+        assertEquals("service", first.service());
+        assertEquals(7L, first.instances().getVersion());
+        assertEquals(1000L, first.instances().getTimestamp());
+        List<InstanceMeta> instances = first.instances().getInstances();
+        assertEquals(List.of(tagged, offline), instances);
+        assertEquals("a", instances.get(0).getParams().get("zone"));
+        assertTrue(instances.get(0).isStatus());
+        assertFalse(instances.get(1).isStatus());
+        assertArrayEquals(new long[]{1234L, SnapshotWriter.NONE}, first.heartbeats());
+
+        SnapshotReader.ServiceRecord second = reader.next();
+        assertEquals("empty", second.service());
+        assertNull(second.instances().getVersion());
+        assertEquals(List.of(), second.instances().getInstances());
+        assertNull(reader.next());
+    }
+
+    @Test
+    void truncatedStreamFails() throws IOException {
+        byte[] bytes = write(1, writer -> writer.write("service",
+                InstanceList.of(1L, 1L, List.of(InstanceMeta.http("10.0.0.1", 8080))), instance -> SnapshotWriter.NONE));
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 8);
+        SnapshotReader reader = new SnapshotReader(new ByteArrayInputStream(truncated));
+        assertThrows(IOException.class, () -> {
+            while (reader.next() != null) {
+                // 读到被截断的记录时抛出异常
+            }
+        });
+    }
+
+    private interface Content {
+        void write(SnapshotWriter writer) throws IOException;
+    }
+
+    private static byte[] write(long version, Content content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SnapshotWriter writer = new SnapshotWriter(out, version);
+        content.write(writer);
+        writer.finish();
+        return out.toByteArray();
+    }
+}
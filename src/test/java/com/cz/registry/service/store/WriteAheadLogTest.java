@@ -0,0 +1,117 @@
+package com.cz.registry.service.store;
+
+import com.cz.registry.meta.ChangeRecord;
+import com.cz.registry.meta.InstanceMeta;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 预写日志的写入、检查点与恢复
+ *
+ * @author Zjianru
+ */
+class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysEveryCommittedRecordInOrder() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, true, Long.MAX_VALUE);
+        wal.recover(in -> {
+        }, record -> {
+        });
+        wal.start(out -> {
+        }, 0);
+        for (long version = 1; version <= 100; version++) {
+            wal.append(record(version)).join();
+        }
+        wal.close();
+
+        List<Long> replayed = new ArrayList<>();
+        long count = new WriteAheadLog(dir, true, Long.MAX_VALUE).recover(in -> {
+        }, record -> replayed.add(record.getVersion()));
+        assertEquals(100, count);
+        assertEquals(1L, replayed.get(0));
+        assertEquals(100L, replayed.get(99));
+    }
+
+    @Test
+    void discardsTornTail() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, false, Long.MAX_VALUE);
+        wal.start(out -> {
+        }, 0);
+        wal.append(record(1)).join();
+        wal.append(record(2)).join();
+        wal.close();
+        // 模拟崩溃时只写出了一半的记录
+        Path segment = files(WriteAheadLog.SEGMENT_PREFIX).get(0);
+        long size = Files.size(segment);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            file.truncate(size - 3);
+        }
+
+        List<Long> replayed = new ArrayList<>();
+        new WriteAheadLog(dir, false, Long.MAX_VALUE).recover(in -> {
+        }, record -> replayed.add(record.getVersion()));
+        assertEquals(List.of(1L), replayed);
+        // 截断后的日志段再次恢复结果相同
+        replayed.clear();
+        new WriteAheadLog(dir, false, Long.MAX_VALUE).recover(in -> {
+        }, record -> replayed.add(record.getVersion()));
+        assertEquals(List.of(1L), replayed);
+    }
+
+    @Test
+    void checkpointReplacesOlderSegments() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, true, Long.MAX_VALUE);
+        wal.start(out -> out.write("state".getBytes(StandardCharsets.UTF_8)), 0);
+        wal.append(record(1)).join();
+        wal.checkpoint();
+        wal.append(record(2)).join();
+        wal.close();
+        assertEquals(1, files(WriteAheadLog.CHECKPOINT_PREFIX).size());
+        assertEquals(1, files(WriteAheadLog.SEGMENT_PREFIX).size());
+
+        String[] loaded = new String[1];
+        List<Long> replayed = new ArrayList<>();
+        new WriteAheadLog(dir, true, Long.MAX_VALUE).recover(
+                in -> loaded[0] = new String(in.readAllBytes(), StandardCharsets.UTF_8),
+                record -> replayed.add(record.getVersion()));
+        assertEquals("state", loaded[0]);
+        assertEquals(List.of(2L), replayed);
+    }
+
+    @Test
+    void emptyDirectoryRecoversNothing() throws IOException {
+        String[] loaded = new String[1];
+        long count = new WriteAheadLog(dir.resolve("data"), true, Long.MAX_VALUE).recover(
+                in -> loaded[0] = "loaded", record -> {
+                });
+        assertEquals(0, count);
+        assertNull(loaded[0]);
+    }
+
+    private static ChangeRecord record(long version) {
+        return new ChangeRecord(version, "service", version, List.of(InstanceMeta.http("10.0.0.1", 8080)), List.of());
+    }
+
+    private List<Path> files(String prefix) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(path -> path.getFileName().toString().startsWith(prefix)).sorted().toList();
+        }
+    }
+}